@@ -0,0 +1,81 @@
+package org.birdfont.nioserver;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Fan-out of one message to all connections in the connection handler, 
+ * and to one of 100 topics that the connections have joined. The 
+ * connections have no socket and no reactor, the benchmark measures
+ * encoding, locking and queueing. The queues are drained after each message
+ * the way a reactor does it after a write, so frames are released as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+	static final int TOPICS = 100;
+
+	@Param({ "10", "1000", "10000" })
+	int connections;
+
+	ConnectionHandler handler;
+	ClientConnection[] clients;
+	String line;
+	Frame topicFrame;
+
+	@Setup
+	public void setup() throws SSLException {
+		Server server = new Server();
+		server.setUsingSSL(false);
+		server.setLogLevels(ServerLog.ERRORS);
+		handler = new ConnectionHandler(new SSLWorker(server), server);
+
+		BufferPool pool = new BufferPool();
+		clients = new ClientConnection[connections];
+
+		for (int i = 0; i < connections; i++) {
+			clients[i] = new ClientConnection(null, pool);
+			handler.addConnection(clients[i]);
+			handler.join(clients[i], "topic" + (i % TOPICS));
+		}
+
+		line = "BENCH 2017-07-14 04:40:00 a message to everyone";
+		topicFrame = Frame.encode("BENCH 2017-07-14 04:40:00 #topic0 a message to one topic");
+	}
+
+	@Benchmark
+	public void sendMessage() {
+		handler.sendMessage(line);
+
+		for (ClientConnection client : clients) {
+			OutboundQueue out = client.getOut();
+			out.removeFirst(out.size());
+		}
+	}
+
+	@Benchmark
+	public void publish() {
+		handler.publish("topic0", topicFrame);
+
+		for (int i = 0; i < connections; i += TOPICS) {
+			OutboundQueue out = clients[i].getOut();
+			out.removeFirst(out.size());
+		}
+	}
+}
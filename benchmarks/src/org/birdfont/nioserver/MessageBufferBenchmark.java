@@ -0,0 +1,69 @@
+package org.birdfont.nioserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Adding and reading lines in the input ring. The read and write indexes 
+ * move on every call, lines wrap around the end of the ring regularly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class MessageBufferBenchmark {
+	@Param({ "64", "512" })
+	int length;
+
+	MessageBuffer buffer;
+	String line;
+	byte[] bytes;
+
+	@Setup
+	public void setup() {
+		StringBuilder text = new StringBuilder();
+
+		for (int i = 0; i < length - 1; i++) {
+			text.append((char) ('a' + i % 26));
+		}
+
+		text.append('\n');
+		line = text.toString();
+		bytes = line.getBytes(StandardCharsets.UTF_8);
+		buffer = new MessageBuffer(ClientConnection.DEFAULT_BUFFER_SIZE);
+	}
+
+	@Benchmark
+	public String addString() {
+		buffer.add(line);
+		return buffer.nextLine();
+	}
+
+	@Benchmark
+	public String addBytes() {
+		buffer.add(bytes, 0, bytes.length);
+		return buffer.nextLine();
+	}
+
+	@Benchmark
+	public ByteBuffer asByteBuffer() {
+		buffer.add(bytes, 0, bytes.length);
+		ByteBuffer copy = buffer.asByteBuffer();
+		buffer.removeFirst(bytes.length);
+		return copy;
+	}
+}
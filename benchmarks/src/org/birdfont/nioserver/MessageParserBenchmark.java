@@ -0,0 +1,64 @@
+package org.birdfont.nioserver;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Parsing and formatting of chat messages. Each parser benchmark adds a 
+ * line to the input ring and consumes it, the view validates the line in 
+ * place the way the server does it, parseMessage decodes the line first.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class MessageParserBenchmark {
+	Message message;
+	byte[] bytes;
+	MessageBuffer buffer;
+	MessageView view;
+
+	@Setup
+	public void setup() {
+		// a fixed time stamp keeps the input identical between runs
+		message = new Message("BENCH", new Date(1500000000000L), "a message to everyone");
+		bytes = message.toString().getBytes(StandardCharsets.UTF_8);
+		buffer = new MessageBuffer(ClientConnection.DEFAULT_BUFFER_SIZE);
+		view = new MessageView();
+	}
+
+	@Benchmark
+	public Message parseMessage() throws ParseException {
+		buffer.add(bytes, 0, bytes.length);
+		return Message.parseMessage(buffer.nextLine());
+	}
+
+	@Benchmark
+	public long parseView() throws ParseException {
+		buffer.add(bytes, 0, bytes.length);
+		int length = buffer.indexOf('\n');
+		view.wrap(buffer, length);
+		view.parse();
+		buffer.removeFirst(length + 1);
+		return view.getTimeStamp();
+	}
+
+	@Benchmark
+	public String formatMessage() {
+		return message.toString();
+	}
+}
@@ -0,0 +1,194 @@
+package org.birdfont.nioserver;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Wrap and unwrap through a pair of engines in memory, without sockets. 
+ * The server engine is created by the SSL worker and uses the buffers of a
+ * client connection the same way as the worker does. The work of the client
+ * engine is included in the numbers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class SSLWorkerBenchmark {
+	@Param({ "64", "1024" })
+	int length;
+
+	ClientConnection connection;
+	SSLEngine server;
+	SSLEngine client;
+	Frame frame;
+	ByteBuffer line;
+	ByteBuffer clientInput;
+	int packetSize;
+
+	@Setup
+	public void setup() throws Exception {
+		Server nioServer = new Server();
+		nioServer.setUsingSSL(true);
+		nioServer.setLogLevels(ServerLog.ERRORS);
+
+		InputStream keyStore = getClass().getClassLoader().getResourceAsStream("testkeys");
+		nioServer.setKeyStore(keyStore, "testkeys");
+
+		SSLWorker worker = new SSLWorker(nioServer);
+		connection = new ClientConnection(null, new BufferPool());
+		worker.createSSLEngine(connection);
+		server = connection.getSSLEngine();
+
+		client = createClientContext().createSSLEngine("localhost", 0);
+		client.setUseClientMode(true);
+
+		packetSize = server.getSession().getPacketBufferSize();
+		clientInput = ByteBuffer.allocate(client.getSession().getApplicationBufferSize() + length);
+
+		StringBuilder text = new StringBuilder();
+
+		for (int i = 0; i < length - 1; i++) {
+			text.append((char) ('a' + i % 26));
+		}
+
+		frame = Frame.encode(text.toString());
+		line = ByteBuffer.wrap((text.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+
+		handshake();
+	}
+
+	/** Wrap a queued frame on the server and unwrap it on the client. */
+	@Benchmark
+	public int wrap() throws SSLException {
+		OutboundQueue out = connection.getOut();
+		MessageBuffer sslOutput = connection.getSSLOutput();
+
+		out.add(frame);
+		int views = out.gather();
+		SSLEngineResult result = server.wrap(out.getViews(), 0, views, sslOutput.writableRegion(packetSize));
+		sslOutput.commitWrite(result.bytesProduced());
+		out.removeFirst(result.bytesConsumed());
+
+		clientInput.clear();
+		result = client.unwrap(sslOutput.readableRegion(), clientInput);
+		sslOutput.removeFirst(result.bytesConsumed());
+		return result.bytesProduced();
+	}
+
+	/** Wrap a line on the client and unwrap it into the input ring on the server. */
+	@Benchmark
+	public String unwrap() throws SSLException {
+		MessageBuffer sslInput = connection.getSSLInput();
+		ChunkedBuffer in = connection.getIn();
+
+		line.rewind();
+		SSLEngineResult result = client.wrap(line, sslInput.writableRegion(packetSize));
+		sslInput.commitWrite(result.bytesProduced());
+
+		ByteBuffer sslData = sslInput.readableRegion();
+		int views = in.writableViews(sslData.remaining());
+		result = server.unwrap(sslData, in.getViews(), 0, views);
+		in.commitWrite(result.bytesProduced());
+		sslInput.removeFirst(result.bytesConsumed());
+		return in.nextLine();
+	}
+
+	private void handshake() throws SSLException {
+		ByteBuffer empty = ByteBuffer.allocate(0);
+		ByteBuffer toServer = ByteBuffer.allocate(packetSize * 4);
+		ByteBuffer toClient = ByteBuffer.allocate(packetSize * 4);
+		ByteBuffer sink = ByteBuffer.allocate(packetSize * 4);
+
+		client.beginHandshake();
+		server.beginHandshake();
+
+		for (int i = 0; i < 100; i++) {
+			if (isDone(client) && isDone(server)) {
+				return;
+			}
+
+			transfer(client, server, empty, toServer, sink);
+			transfer(server, client, empty, toClient, sink);
+		}
+
+		throw new SSLException("Handshake did not finish.");
+	}
+
+	/** Send all pending handshake records from one engine to the other. */
+	private static void transfer(SSLEngine from, SSLEngine to, ByteBuffer empty, 
+			ByteBuffer network, ByteBuffer sink) throws SSLException {
+		while (from.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+			from.wrap(empty, network);
+			runTasks(from);
+		}
+
+		network.flip();
+
+		while (network.hasRemaining()) {
+			sink.clear();
+			SSLEngineResult result = to.unwrap(network, sink);
+			runTasks(to);
+
+			if (result.bytesConsumed() == 0) {
+				break;
+			}
+		}
+
+		network.compact();
+	}
+
+	private static void runTasks(SSLEngine engine) {
+		Runnable task;
+
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	private static boolean isDone(SSLEngine engine) {
+		HandshakeStatus status = engine.getHandshakeStatus();
+		return status == HandshakeStatus.NOT_HANDSHAKING || status == HandshakeStatus.FINISHED;
+	}
+
+	private static SSLContext createClientContext() throws Exception {
+		X509TrustManager acceptingTrustManager = new X509TrustManager() {
+			public void checkClientTrusted(X509Certificate[] certificate, String authType) {
+			}
+
+			public void checkServerTrusted(X509Certificate[] certificate, String authType) {
+			}
+
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		};
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { acceptingTrustManager }, null);
+		return context;
+	}
+}
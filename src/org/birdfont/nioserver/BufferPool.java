@@ -0,0 +1,123 @@
+package org.birdfont.nioserver;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A pool of direct buffers carved out of large slabs. Buffers are grouped in
+ * size classes of powers of two. Connections borrow buffers while they have
+ * bytes in flight and return them when the data has been drained.
+ */
+public class BufferPool {
+	/** Size of the direct memory regions that are divided into buffers. */
+	public final static int SLAB_SIZE = 1024 * 1024;
+
+	/** The smallest buffer in the pool. */
+	public final static int MIN_BUFFER_SIZE = 256;
+
+	private final SizeClass[] sizeClasses;
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong borrowed = new AtomicLong();
+
+	public BufferPool() {
+		int classes = Integer.numberOfTrailingZeros(SLAB_SIZE / MIN_BUFFER_SIZE) + 1;
+		sizeClasses = new SizeClass[classes];
+
+		for (int i = 0; i < classes; i++) {
+			sizeClasses[i] = new SizeClass(MIN_BUFFER_SIZE << i);
+		}
+	}
+
+	/** Borrow a buffer, the buffer may be larger than the requested capacity.
+	 * @param capacity minimum capacity of the buffer
+	 * @return a cleared direct buffer
+	 */
+	public ByteBuffer acquire(int capacity) {
+		SizeClass sizeClass = getSizeClass(capacity);
+		ByteBuffer buffer;
+
+		if (sizeClass == null) {
+			// larger than a slab, not pooled
+			buffer = ByteBuffer.allocateDirect(capacity);
+			allocated.addAndGet(capacity);
+		} else {
+			buffer = sizeClass.free.poll();
+
+			if (buffer == null) {
+				buffer = sizeClass.allocateSlab();
+			}
+		}
+
+		borrowed.addAndGet(buffer.capacity());
+		buffer.clear();
+		return buffer;
+	}
+
+	/** Return a buffer to the pool. */
+	public void release(ByteBuffer buffer) {
+		borrowed.addAndGet(-buffer.capacity());
+		SizeClass sizeClass = getSizeClass(buffer.capacity());
+
+		if (sizeClass == null) {
+			allocated.addAndGet(-buffer.capacity());
+			return;
+		}
+
+		sizeClass.free.add(buffer);
+	}
+
+	/** Direct memory held by the pool. */
+	public long getAllocatedBytes() {
+		return allocated.get();
+	}
+
+	/** Direct memory currently lent out to connections. */
+	public long getBorrowedBytes() {
+		return borrowed.get();
+	}
+
+	private SizeClass getSizeClass(int capacity) {
+		if (capacity > SLAB_SIZE) {
+			return null;
+		}
+
+		int size = Math.max(capacity, MIN_BUFFER_SIZE);
+		int index = 32 - Integer.numberOfLeadingZeros(size - 1)
+				- Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+		return sizeClasses[index];
+	}
+
+	private class SizeClass {
+		final int bufferSize;
+		final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+		SizeClass(int bufferSize) {
+			this.bufferSize = bufferSize;
+		}
+
+		/** Divide a new slab into buffers, one of them is returned and the
+		 * rest are added to the free list.
+		 */
+		synchronized ByteBuffer allocateSlab() {
+			ByteBuffer buffer = free.poll();
+
+			if (buffer != null) {
+				return buffer;
+			}
+
+			ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+			allocated.addAndGet(SLAB_SIZE);
+
+			for (int offset = bufferSize; offset < SLAB_SIZE; offset += bufferSize) {
+				slab.limit(offset + bufferSize);
+				slab.position(offset);
+				free.add(slab.slice());
+			}
+
+			slab.position(0);
+			slab.limit(bufferSize);
+			return slab.slice();
+		}
+	}
+}
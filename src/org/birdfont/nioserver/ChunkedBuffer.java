@@ -0,0 +1,379 @@
+package org.birdfont.nioserver;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** A queue of bytes stored in linked chunks of the same size. The buffer 
+ * starts without memory and borrows chunks from the pool when data arrives,
+ * drained chunks are returned at once. The number of chunks offered to a 
+ * socket read doubles each time a read fills all of them and drops back to
+ * one chunk when the connection has been quiet for a while. An idle chat 
+ * client holds no memory and a small one a single chunk, bulk senders read
+ * deep buffers.
+ */
+public class ChunkedBuffer implements LineBuffer {
+	/** Size of a chunk, the smallest buffer in the pool. */
+	public final static int DEFAULT_CHUNK_SIZE = BufferPool.MIN_BUFFER_SIZE;
+	
+	/** Nanoseconds without full reads before the read window shrinks. */
+	public final static long IDLE_TIME = 1000L * 1000 * 1000;
+	
+	private final BufferPool pool;
+	private final int chunkSize;
+	private final int shift;
+	private int capacity;
+	
+	// chunks[0] holds the read position, chunks after the write position
+	// are free space that has been offered to a read
+	private ByteBuffer[] chunks = new ByteBuffer[4];
+	
+	// duplicates of the chunks for views, the chunks keep their limit for 
+	// absolute reads
+	private ByteBuffer[] regions = new ByteBuffer[4];
+	private int chunkCount = 0;
+	
+	// positions from the start of the first chunk
+	private int readPosition = 0;
+	private int writePosition = 0;
+	
+	private ByteBuffer[] views = new ByteBuffer[4];
+	private int window = 1;
+	private int offered = 0;
+	private long lastFullRead = 0;
+	
+	/** @param chunkSize size of each chunk, a power of two
+	 * @param capacity maximum number of bytes in the buffer
+	 * @param pool the pool that lends chunks to the buffer, null for heap memory
+	 */
+	public ChunkedBuffer(int chunkSize, int capacity, BufferPool pool) {
+		if (Integer.bitCount(chunkSize) != 1) {
+			throw new IllegalArgumentException("Chunk size must be a power of two.");
+		}
+		
+		this.chunkSize = chunkSize;
+		this.shift = Integer.numberOfTrailingZeros(chunkSize);
+		this.capacity = capacity;
+		this.pool = pool;
+	}
+	
+	public ChunkedBuffer(int capacity) {
+		this(DEFAULT_CHUNK_SIZE, capacity, null);
+	}
+	
+	/** Raise the maximum size, the buffer never gets smaller than this. */
+	public void setCapacity(int newCapacity) {
+		capacity = Math.max(capacity, newCapacity);
+	}
+	
+	public int capacity() {
+		return capacity;
+	}
+	
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	
+	/** Number of chunks borrowed by the buffer. */
+	public int getChunkCount() {
+		return chunkCount;
+	}
+	
+	/** Number of chunks offered to the next socket read. */
+	public int getWindow() {
+		return window;
+	}
+	
+	public boolean isAllocated() {
+		return chunkCount > 0;
+	}
+	
+	@Override
+	public int size() {
+		return writePosition - readPosition;
+	}
+	
+	@Override
+	public int available() {
+		return capacity - size();
+	}
+	
+	@Override
+	public ByteBuffer[] getViews() {
+		return views;
+	}
+	
+	/** Offer the read window, it is widened to all free space if the
+	 * connection has been quiet for less than the idle time.
+	 */
+	@Override
+	public int writableViews() {
+		if (window > 1 && System.nanoTime() - lastFullRead > IDLE_TIME) {
+			window = 1;
+		}
+		
+		return writableViews(window * chunkSize);
+	}
+	
+	/** Create views of at least the requested free space, or all space that 
+	 * is left before the buffer is full.
+	 * @param minimum number of bytes the caller wants to write
+	 * @return number of views in the array returned by getViews
+	 */
+	public int writableViews(int minimum) {
+		int length = Math.min(Math.max(minimum, chunkSize), available());
+		offered = length;
+		
+		if (length == 0) {
+			return 0;
+		}
+		
+		int end = writePosition + length;
+		
+		while (chunkCount << shift < end) {
+			addChunk();
+		}
+		
+		int first = writePosition >> shift;
+		int last = (end - 1) >> shift;
+		int count = last - first + 1;
+		
+		if (views.length < count) {
+			views = new ByteBuffer[Math.max(count, views.length * 2)];
+		}
+		
+		for (int i = 0; i < count; i++) {
+			int chunk = first + i;
+			int start = i == 0 ? writePosition - (chunk << shift) : 0;
+			int limit = chunk == last ? end - (chunk << shift) : chunkSize;
+			views[i] = getRegion(regions[chunk], start, limit);
+		}
+		
+		return count;
+	}
+	
+	/** Create views of the readable bytes, one view per chunk.
+	 * @return number of views in the array returned by getViews
+	 */
+	public int readableViews() {
+		int size = size();
+		
+		if (size == 0) {
+			return 0;
+		}
+		
+		int first = readPosition >> shift;
+		int last = (writePosition - 1) >> shift;
+		int count = last - first + 1;
+		
+		if (views.length < count) {
+			views = new ByteBuffer[Math.max(count, views.length * 2)];
+		}
+		
+		for (int i = 0; i < count; i++) {
+			int chunk = first + i;
+			int start = i == 0 ? readPosition - (chunk << shift) : 0;
+			int limit = chunk == last ? writePosition - (chunk << shift) : chunkSize;
+			views[i] = getRegion(regions[chunk], start, limit);
+		}
+		
+		return count;
+	}
+	
+	@Override
+	public void commitWrite(int bytes) {
+		if (bytes > (chunkCount << shift) - writePosition) {
+			throw new BufferOverflowException();
+		}
+		
+		writePosition += bytes;
+		
+		if (bytes > 0 && bytes == offered) {
+			// the read filled the window, offer more next time
+			lastFullRead = System.nanoTime();
+			
+			if (window * chunkSize < capacity) {
+				window *= 2;
+			}
+		}
+		
+		offered = 0;
+	}
+	
+	public void add(byte[] elements, int offset, int length) {
+		if (length > available()) {
+			throw new BufferOverflowException();
+		}
+		
+		int written = 0;
+		
+		while (written < length) {
+			if (writePosition == chunkCount << shift) {
+				addChunk();
+			}
+			
+			int chunk = writePosition >> shift;
+			int start = writePosition - (chunk << shift);
+			int bytes = Math.min(length - written, chunkSize - start);
+			getRegion(regions[chunk], start, start + bytes).put(elements, offset + written, bytes);
+			written += bytes;
+			writePosition += bytes;
+		}
+	}
+	
+	public void add(String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		add(bytes, 0, bytes.length);
+	}
+	
+	@Override
+	public int indexOf(char character) {
+		byte element = (byte) character;
+		int position = readPosition;
+		
+		while (position < writePosition) {
+			int chunk = position >> shift;
+			int limit = Math.min(writePosition, (chunk + 1) << shift);
+			ByteBuffer data = chunks[chunk];
+			int base = chunk << shift;
+			
+			for (int i = position - base; i < limit - base; i++) {
+				if (data.get(i) == element) {
+					return base + i - readPosition;
+				}
+			}
+			
+			position = limit;
+		}
+		
+		return -1;
+	}
+	
+	@Override
+	public byte get(int offset) {
+		int position = readPosition + offset;
+		return chunks[position >> shift].get(position & (chunkSize - 1));
+	}
+	
+	@Override
+	public void get(int offset, byte[] destination, int destinationOffset, int length) {
+		if (offset + length > size()) {
+			throw new BufferUnderflowException();
+		}
+		
+		int position = readPosition + offset;
+		int copied = 0;
+		
+		while (copied < length) {
+			int chunk = position >> shift;
+			int start = position - (chunk << shift);
+			int bytes = Math.min(length - copied, chunkSize - start);
+			getRegion(regions[chunk], start, start + bytes).get(destination, destinationOffset + copied, bytes);
+			copied += bytes;
+			position += bytes;
+		}
+	}
+	
+	/** Remove the first line from the buffer and return it as a string.
+	 * @return next line or null if no line has been added to the buffer
+	 */
+	public String nextLine() {
+		int length = indexOf('\n');
+		
+		if (length == -1) {
+			return null;
+		}
+		
+		byte[] line = new byte[length];
+		get(0, line, 0, length);
+		removeFirst(length + 1);
+		
+		return new String(line, StandardCharsets.UTF_8).trim();
+	}
+	
+	/** Remove bytes from the head, drained chunks go back to the pool. */
+	@Override
+	public void removeFirst(int bytes) {
+		if (bytes > size()) {
+			throw new BufferUnderflowException();
+		}
+		
+		readPosition += bytes;
+		
+		int drained = readPosition >> shift;
+		
+		if (drained > 0) {
+			for (int i = 0; i < drained; i++) {
+				releaseChunk(chunks[i]);
+			}
+			
+			System.arraycopy(chunks, drained, chunks, 0, chunkCount - drained);
+			System.arraycopy(regions, drained, regions, 0, chunkCount - drained);
+			
+			for (int i = chunkCount - drained; i < chunkCount; i++) {
+				chunks[i] = null;
+				regions[i] = null;
+			}
+			
+			chunkCount -= drained;
+			readPosition -= drained << shift;
+			writePosition -= drained << shift;
+		}
+	}
+	
+	@Override
+	public boolean release() {
+		if (size() > 0) {
+			return false;
+		}
+		
+		for (int i = 0; i < chunkCount; i++) {
+			releaseChunk(chunks[i]);
+			chunks[i] = null;
+			regions[i] = null;
+		}
+		
+		chunkCount = 0;
+		readPosition = 0;
+		writePosition = 0;
+		return true;
+	}
+	
+	@Override
+	public void clear() {
+		readPosition = 0;
+		writePosition = 0;
+		release();
+	}
+	
+	private void addChunk() {
+		if (chunkCount == chunks.length) {
+			ByteBuffer[] larger = new ByteBuffer[chunks.length * 2];
+			System.arraycopy(chunks, 0, larger, 0, chunkCount);
+			chunks = larger;
+			
+			larger = new ByteBuffer[regions.length * 2];
+			System.arraycopy(regions, 0, larger, 0, chunkCount);
+			regions = larger;
+		}
+		
+		ByteBuffer chunk = pool == null ? ByteBuffer.allocate(chunkSize) : pool.acquire(chunkSize);
+		chunks[chunkCount] = chunk;
+		regions[chunkCount] = chunk.duplicate();
+		chunkCount++;
+	}
+	
+	private void releaseChunk(ByteBuffer chunk) {
+		if (pool != null) {
+			pool.release(chunk);
+		}
+	}
+	
+	private static ByteBuffer getRegion(ByteBuffer chunk, int start, int limit) {
+		chunk.clear();
+		chunk.position(start);
+		chunk.limit(limit);
+		return chunk;
+	}
+}
@@ -2,31 +2,102 @@ package org.birdfont.nioserver;
 
 import java.io.IOException;
 import java.net.Socket;
-import java.nio.ByteBuffer;
+import java.nio.BufferOverflowException;
 import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import javax.net.ssl.SSLEngine;
 
 /** A client connection on the server.
 * @author Johan Mattsson
 */
-class ClientConnection {
+class ClientConnection implements SlotRegistry.Slotted {
 	public final static int DEFAULT_BUFFER_SIZE = 2048;
+	
+	/** The input grows in chunks up to this size, idle connections hold no input memory. */
+	public final static int DEFAULT_INPUT_CAPACITY = 32 * 1024;
+	
+	/** Queued output only holds references to shared frames, a deep queue is cheap. */
+	public final static int DEFAULT_OUTBOUND_CAPACITY = 64 * 1024;
+	
+	private final static int SSL_INPUT_SCHEDULED = 1;
+	private final static int SSL_OUTPUT_SCHEDULED = 2;
+	private final static int FLUSH_SCHEDULED = 4;
+	private final static int READ_SUSPENDED = 8;
+	private final static AtomicIntegerFieldUpdater<ClientConnection> SCHEDULED = 
+			AtomicIntegerFieldUpdater.newUpdater(ClientConnection.class, "scheduled");
+	
 	private SocketChannel socketChannel;
-	private MessageBuffer in = new MessageBuffer(DEFAULT_BUFFER_SIZE);
-	private MessageBuffer out = new MessageBuffer(DEFAULT_BUFFER_SIZE);
-	private MessageBuffer sslOutput = new MessageBuffer(DEFAULT_BUFFER_SIZE);
-	private MessageBuffer sslInput = new MessageBuffer(DEFAULT_BUFFER_SIZE);
+	private BufferPool pool;
+	private ChunkedBuffer in;
+	private OutboundQueue out = new OutboundQueue(DEFAULT_OUTBOUND_CAPACITY);
+	private MessageBuffer sslOutput;
+	private MessageBuffer sslInput;
 	private boolean closing = false;
 	private SSLEngine sslEngine;
-	private ByteBuffer sslWorkspace = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+	private Reactor reactor;
+	private volatile int scheduled = 0;
+	private Thread writer;
+	private long handshakeStart;
+	private volatile boolean paused = false;
+	private long congestedSince = 0;
+	private int slot = -1;
+	private volatile long readTime = 0;
+	private long wrapTime = 0;
+	private long wrappedReadTime = 0;
+	private Map<String, Topic.Subscription> subscriptions;
+	private volatile String closedName;
+	private volatile boolean handshaking = false;
+	private volatile long closingSince = 0;
+	private volatile long partialSince = 0;
+	private TimerWheel.Timeout timeout;
+	private Compressor compressor;
+	private long replayedSequence = 0;
+	private Journal.Transfer transfer;
 	
-	public ClientConnection(SocketChannel socketChannel) {
+	/** Create a connection, the buffers borrow memory from the pool only 
+	 * while they hold data.
+	 */
+	public ClientConnection(SocketChannel socketChannel, BufferPool pool) {
 		this.socketChannel = socketChannel;
+		this.pool = pool;
+		in = new ChunkedBuffer(ChunkedBuffer.DEFAULT_CHUNK_SIZE, DEFAULT_INPUT_CAPACITY, pool);
+		readTime = System.nanoTime();
 	}
 
 	public void setClosing(boolean closing) {
 		this.closing = closing;
+		closingSince = closing ? System.nanoTime() : 0;
+	}
+
+	/** System.nanoTime when the connection started to close, zero if it
+	 * is open. 
+	 */
+	public long getClosingSince() {
+		return closingSince;
+	}
+
+	/** System.nanoTime when the first byte of an incomplete line arrived,
+	 * zero if the input ends with a complete line.
+	 */
+	public long getPartialSince() {
+		return partialSince;
+	}
+
+	public void setPartialSince(long partialSince) {
+		this.partialSince = partialSince;
+	}
+
+	/** The deadline of the connection on the timer wheel of its reactor. */
+	public TimerWheel.Timeout getTimeout() {
+		return timeout;
+	}
+
+	public void setTimeout(TimerWheel.Timeout timeout) {
+		this.timeout = timeout;
 	}
 
 	public boolean isClosing() {
@@ -37,14 +108,33 @@ class ClientConnection {
 		return socketChannel;
 	}
 
-	public MessageBuffer getIn() {
+	public ChunkedBuffer getIn() {
 		return in;
 	}
 
-	public MessageBuffer getOut() {
+	public OutboundQueue getOut() {
 		return out;
 	}
 
+	public Reactor getReactor() {
+		return reactor;
+	}
+
+	public void setReactor(Reactor reactor) {
+		this.reactor = reactor;
+	}
+
+	/** The thread that writes to a blocking socket, null if the connection
+	 * is served by a reactor.
+	 */
+	public Thread getWriter() {
+		return writer;
+	}
+
+	public void setWriter(Thread writer) {
+		this.writer = writer;
+	}
+
 	public SSLEngine getSSLEngine() {
 		return sslEngine;
 	}
@@ -62,60 +152,359 @@ class ClientConnection {
 	}
 	
 	public void clearBuffers() {
-		sslInput.clear();
-		sslOutput.clear();
+		if (sslEngine != null) {
+			sslInput.clear();
+			sslOutput.clear();
+		}
+
+		if (compressor != null) {
+			compressor.getOutput().clear();
+		}
+
+		transfer = null;
 		in.clear();
 		out.clear();
 	}
+
+	/** Return the memory of all empty buffers to the pool. */
+	public void releaseDrainedBuffers() {
+		in.release();
+		out.release();
+		
+		if (sslEngine != null) {
+			sslInput.release();
+			sslOutput.release();
+		}
+
+		if (compressor != null) {
+			compressor.getOutput().release();
+		}
+	}
+
+	/** Sequence number of the last message replayed from the history, 
+	 * broadcasts up to it are not sent again. Guarded by the connection.
+	 */
+	public long getReplayedSequence() {
+		return replayedSequence;
+	}
+
+	public void setReplayedSequence(long sequence) {
+		replayedSequence = sequence;
+	}
+
+	/** Messages from the journal that are sent before the queued frames,
+	 * null if there is nothing to transfer.
+	 */
+	public Journal.Transfer getTransfer() {
+		return transfer;
+	}
+
+	public void setTransfer(Journal.Transfer transfer) {
+		this.transfer = transfer;
+	}
+
+	/** The compressor of the output, null if the client hasn't asked for
+	 * compression.
+	 */
+	public Compressor getCompressor() {
+		return compressor;
+	}
+
+	public void setCompressor(Compressor compressor) {
+		this.compressor = compressor;
+	}
 	
 	@Override
 	public String toString() {
-		return socketChannel.toString();
+		String name = closedName;
+		return name != null ? name : socketChannel.toString();
 	}
 
 	public boolean hasEmptyOutput() {
-		return getSSLOutput().size() == 0 && getOut().size() == 0;
-	}
+		if (sslOutput != null && sslOutput.size() > 0) {
+			return false;
+		}
+
+		if (compressor != null && compressor.getOutput().size() > 0) {
+			return false;
+		}
 
-	public ByteBuffer getWorkspace() {
-		sslWorkspace.clear();
-		return sslWorkspace;
+		if (transfer != null) {
+			return false;
+		}
+		
+		return getOut().size() == 0;
 	}
 
-	public void resizeBuffers(int packetSize) {
-		MessageBuffer old;
+	/** Bytes waiting to be written, queued frames, compressed bytes and 
+	 * encrypted records.
+	 */
+	public long getOutboundBytes() {
+		long bytes = out.size();
+		
+		if (sslOutput != null) {
+			bytes += sslOutput.size();
+		}
+
+		if (compressor != null) {
+			bytes += compressor.getOutput().size();
+		}
+
+		if (transfer != null) {
+			bytes += transfer.remaining();
+		}
 		
-		old = in;
-		in = new MessageBuffer(4 * packetSize);
-		in.append(old);
+		return bytes;
+	}
 
-		old = out;
-		out = new MessageBuffer(4 * packetSize);
-		in.append(out);
+	/** Index in the connection registry, -1 if the connection isn't 
+	 * registered. Guarded by the registry.
+	 */
+	@Override
+	public int getSlot() {
+		return slot;
+	}
 
-		old = sslInput;
-		sslInput = new MessageBuffer(4 * packetSize);
-		in.append(out);
+	@Override
+	public void setSlot(int slot) {
+		this.slot = slot;
+	}
 
-		old = sslOutput;
-		sslOutput = new MessageBuffer(4 * packetSize);
-		in.append(out);
+	/** Topics this connection has joined, guarded by the connection lock.
+	 * The map is created on the first join.
+	 */
+	public Map<String, Topic.Subscription> getSubscriptions() {
+		if (subscriptions == null) {
+			subscriptions = new HashMap<>();
+		}
 		
-		sslWorkspace = ByteBuffer.allocate(packetSize);
+		return subscriptions;
+	}
+
+	public boolean hasSubscriptions() {
+		return subscriptions != null && !subscriptions.isEmpty();
+	}
+
+	/** System.nanoTime of the last socket read, or of the accept if nothing
+	 * has been read.
+	 */
+	public long getReadTime() {
+		return readTime;
+	}
+
+	public void setReadTime(long readTime) {
+		this.readTime = readTime;
+	}
+
+	/** Remember the oldest frame in the SSL output ring, called with the 
+	 * connection lock held when frames have been wrapped.
+	 * @param readTime read time of the oldest wrapped frame
+	 */
+	public void addWrapped(long readTime) {
+		if (wrappedReadTime == 0 && readTime != 0) {
+			wrappedReadTime = readTime;
+			wrapTime = System.nanoTime();
+		}
+	}
+
+	public long getWrappedReadTime() {
+		return wrappedReadTime;
+	}
+
+	public long getWrapTime() {
+		return wrapTime;
+	}
+
+	public void clearWrapped() {
+		wrappedReadTime = 0;
+		wrapTime = 0;
+	}
+
+	/** True if the server has stopped reading from a slow consumer. */
+	public boolean isPaused() {
+		return paused;
+	}
+
+	public void setPaused(boolean paused) {
+		this.paused = paused;
+	}
+
+	/** Time in milliseconds when the output went above the high watermark, 
+	 * zero if the connection isn't congested.
+	 */
+	public long getCongestedSince() {
+		return congestedSince;
+	}
+
+	public void setCongestedSince(long congestedSince) {
+		this.congestedSince = congestedSince;
+	}
+
+	/** Create the buffers for encrypted data. The rings must hold a full 
+	 * SSL record since records are wrapped and unwrapped in place.
+	 */
+	public void createSSLBuffers(int packetSize, int applicationBufferSize) {
+		sslInput = new MessageBuffer(packetSize + DEFAULT_BUFFER_SIZE, pool);
+		sslOutput = new MessageBuffer(packetSize + DEFAULT_BUFFER_SIZE, pool);
+		in.setCapacity(applicationBufferSize + DEFAULT_BUFFER_SIZE);
+	}
+
+	/** Make room for the next record when the decrypted input doesn't fit. A
+	 * complete frame is read before the rest is unwrapped, the buffer grows
+	 * for the rest of a frame that is longer than the free space.
+	 * @throws BufferOverflowException if the frame can't fit in the buffer
+	 */
+	public void prepareUnwrap(Codec codec) {
+		int length;
+
+		try {
+			length = codec.frameLength(in);
+		} catch (ParseException exception) {
+			throw new BufferOverflowException();
+		}
+
+		if (length == -1) {
+			// a line without end that fills the buffer
+			throw new BufferOverflowException();
+		}
+
+		if (length > in.size()) {
+			// the codec limits the frame length
+			in.setCapacity(length + sslEngine.getSession().getApplicationBufferSize());
+		}
+	}
+
+	/** Remember when the handshake started.
+	 * @param nanos value of System.nanoTime for latency
+	 */
+	public void setHandshakeStart(long nanos) {
+		handshakeStart = nanos;
+		handshaking = true;
+	}
+
+	/** True from the start of the first handshake until it has finished. */
+	public boolean isHandshaking() {
+		return handshaking;
+	}
+
+	public void setHandshakeFinished() {
+		handshaking = false;
+	}
+
+	public long getHandshakeStart() {
+		return handshakeStart;
+	}
+
+	/** Mark the connection as queued for an unwrap.
+	 * @return false if the connection is already in the queue
+	 */
+	public boolean scheduleSSLInput() {
+		return schedule(SSL_INPUT_SCHEDULED);
+	}
+
+	/** Mark the connection as queued for a wrap.
+	 * @return false if the connection is already in the queue
+	 */
+	public boolean scheduleSSLOutput() {
+		return schedule(SSL_OUTPUT_SCHEDULED);
+	}
+
+	public void clearSSLInputScheduled() {
+		clear(SSL_INPUT_SCHEDULED);
+	}
+
+	public void clearSSLOutputScheduled() {
+		clear(SSL_OUTPUT_SCHEDULED);
+	}
+
+	/** Mark the connection as dirty in its reactor.
+	 * @return false if the connection is already waiting for a flush
+	 */
+	public boolean scheduleFlush() {
+		return schedule(FLUSH_SCHEDULED);
+	}
+
+	public void clearFlushScheduled() {
+		clear(FLUSH_SCHEDULED);
+	}
+
+	/** Mark the connection as not read until the SSL worker has made room
+	 * in the encrypted input.
+	 */
+	public void suspendRead() {
+		schedule(READ_SUSPENDED);
+	}
+
+	/** @return true if reading was suspended */
+	public boolean resumeRead() {
+		while (true) {
+			int flags = scheduled;
+
+			if ((flags & READ_SUSPENDED) == 0) {
+				return false;
+			}
+
+			if (SCHEDULED.compareAndSet(this, flags, flags & ~READ_SUSPENDED)) {
+				return true;
+			}
+		}
+	}
+
+	private boolean schedule(int flag) {
+		while (true) {
+			int flags = scheduled;
+
+			if ((flags & flag) != 0) {
+				return false;
+			}
+
+			if (SCHEDULED.compareAndSet(this, flags, flags | flag)) {
+				return true;
+			}
+		}
+	}
+
+	private void clear(int flag) {
+		while (true) {
+			int flags = scheduled;
+
+			if (SCHEDULED.compareAndSet(this, flags, flags & ~flag)) {
+				return;
+			}
+		}
 	}
 
 	public void close() {
 		Socket socket = socketChannel.socket();
 
+		// log records are formatted later, keep the address of the channel
+		if (ServerLog.isEnabled(ServerLog.ALL)) {
+			closedName = socketChannel.toString();
+		}
+
+		if (timeout != null) {
+			timeout.cancel();
+		}
+
 		try {	
 			socketChannel.close();
 
 			if (socket != null) {
-				ServerLog.connection("Closing connection " + socket);
+				ServerLog.connection("Closing connection {}", this);
 				socket.close();
 			}
 		} catch (IOException exception) {
-			ServerLog.error("Can't close socket " + socket);
+			ServerLog.error("Can't close socket {}", socket);
+		}
+
+		// the pooled memory of the buffers and the deflater are reused when 
+		// no thread is reading, writing or compressing with them
+		synchronized (this) {
+			clearBuffers();
+
+			if (compressor != null) {
+				compressor.release();
+			}
 		}
 	}
 
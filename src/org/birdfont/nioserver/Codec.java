@@ -0,0 +1,40 @@
+package org.birdfont.nioserver;
+
+import java.text.ParseException;
+
+/** The framing of messages on the wire. A codec finds the next frame in the
+ * input of a connection and points a message view to it, and it encodes the
+ * commands and replies that the server sends. Received messages are relayed
+ * in the encoding they arrived in, all connections of a server use the same
+ * codec.
+ */
+public interface Codec {
+	/** Point the view to the first frame in a buffer, the frame stays in the
+	 * buffer until the caller removes it.
+	 * @param buffer input from the client
+	 * @param message the view to fill in
+	 * @return length of the frame including delimiters, or -1 if the buffer
+	 * doesn't hold a complete frame yet
+	 * @throws ParseException if the input can't be framed
+	 */
+	int decode(LineBuffer buffer, MessageView message) throws ParseException;
+
+	/** Find the end of the first frame without decoding it, the frame may
+	 * not be complete.
+	 * @return length of the frame including delimiters, or -1 if the buffer
+	 * doesn't tell where the frame ends yet
+	 * @throws ParseException if the frame can't be accepted
+	 */
+	int frameLength(LineBuffer buffer) throws ParseException;
+
+	/** Encode a command or a reply like CLOSED or JOINED topic.
+	 * @return a new frame with one reference owned by the caller
+	 */
+	Frame encode(String line);
+
+	/** Add a sequence number to a broadcast that is kept in the history.
+	 * @param frame a message frame encoded by this codec
+	 * @return a new frame with one reference owned by the caller
+	 */
+	Frame stamp(Frame frame, long sequence);
+}
@@ -0,0 +1,57 @@
+package org.birdfont.nioserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters for compressed connections. */
+public class CompressionStatistics {
+	private final LongAdder connections = new LongAdder();
+	private final LongAdder uncompressedBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+	private final LongAdder compressionTime = new LongAdder();
+
+	void addConnection() {
+		connections.increment();
+	}
+
+	/** Count one batch of compressed output.
+	 * @param nanos time spent in the deflater
+	 */
+	void addBatch(long uncompressed, long compressed, long nanos) {
+		uncompressedBytes.add(uncompressed);
+		compressedBytes.add(compressed);
+		compressionTime.add(nanos);
+	}
+
+	/** Connections that have turned on compression. */
+	public long getConnections() {
+		return connections.sum();
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedBytes.sum();
+	}
+
+	public long getCompressedBytes() {
+		return compressedBytes.sum();
+	}
+
+	/** Uncompressed size divided by compressed size, zero before anything
+	 * has been compressed.
+	 */
+	public double getRatio() {
+		long compressed = compressedBytes.sum();
+		return compressed == 0 ? 0 : (double) uncompressedBytes.sum() / compressed;
+	}
+
+	/** Nanoseconds spent compressing. */
+	public long getCompressionTime() {
+		return compressionTime.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d connections, %d -> %d bytes, ratio %.2f, %d ms", 
+				getConnections(), getUncompressedBytes(), getCompressedBytes(),
+				getRatio(), getCompressionTime() / 1000000);
+	}
+}
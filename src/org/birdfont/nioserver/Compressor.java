@@ -0,0 +1,145 @@
+package org.birdfont.nioserver;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/** DEFLATE compression of the output of one connection. Queued frames are
+ * compressed into a ring that the socket or the SSL engine reads from, each
+ * batch ends with a sync flush so that the client can inflate everything it
+ * has received. Bytes that were queued before compression was turned on are
+ * copied to the ring as they are. Called with the connection lock held.
+ */
+public class Compressor {
+	/** Uncompressed bytes deflated in one step. */
+	public final static int BLOCK_SIZE = 8 * 1024;
+
+	private final static ByteBuffer[] NO_VIEWS = new ByteBuffer[0];
+
+	// the work space is shared by all connections served by a thread
+	private final static ThreadLocal<byte[][]> workspaces =
+			ThreadLocal.withInitial(() -> new byte[][] { new byte[BLOCK_SIZE], new byte[BLOCK_SIZE] });
+
+	private final DeflaterPool pool;
+	private final CompressionStatistics statistics;
+	private final MessageBuffer output;
+	private Deflater deflater;
+	private long plainBytes;
+
+	/** @param plainBytes number of queued bytes that are sent uncompressed */
+	public Compressor(DeflaterPool pool, BufferPool buffers, CompressionStatistics statistics, long plainBytes) {
+		this.pool = pool;
+		this.statistics = statistics;
+		this.plainBytes = plainBytes;
+		output = new MessageBuffer(4 * BLOCK_SIZE, buffers);
+		deflater = pool.acquire();
+	}
+
+	/** Move queued frames to the ring until the queue is empty or the ring
+	 * is full.
+	 * @return read time of the oldest frame that was completed, zero if no
+	 * frame with a time stamp was completed
+	 */
+	public long compress(OutboundQueue queue, LatencyStatistics latency, LatencyStatistics.Stage stage) {
+		if (deflater == null || queue.size() == 0) {
+			return 0;
+		}
+
+		byte[][] workspace = workspaces.get();
+		byte[] input = workspace[0];
+		byte[] compressed = workspace[1];
+		long start = System.nanoTime();
+		long consumed = 0;
+		long produced = 0;
+		long oldest = 0;
+
+		while (queue.size() > 0 && output.available() >= 2 * BLOCK_SIZE) {
+			int length = copy(queue, input, (int) Math.min(plainBytes > 0 ? plainBytes : BLOCK_SIZE, BLOCK_SIZE));
+
+			if (plainBytes > 0) {
+				output.add(input, 0, length);
+				plainBytes -= length;
+			} else {
+				deflater.setInput(input, 0, length);
+
+				while (!deflater.needsInput()) {
+					int bytes = deflater.deflate(compressed, 0, compressed.length, Deflater.NO_FLUSH);
+					add(compressed, bytes);
+					produced += bytes;
+				}
+
+				consumed += length;
+			}
+
+			long readTime = queue.removeFirst(length, latency, stage);
+
+			if (oldest == 0) {
+				oldest = readTime;
+			}
+		}
+
+		if (consumed > 0) {
+			int bytes;
+
+			do {
+				bytes = deflater.deflate(compressed, 0, compressed.length, Deflater.SYNC_FLUSH);
+				add(compressed, bytes);
+				produced += bytes;
+			} while (bytes == compressed.length);
+
+			statistics.addBatch(consumed, produced, System.nanoTime() - start);
+		}
+
+		return oldest;
+	}
+
+	/** Copy the head of the queue to the work space. */
+	private static int copy(OutboundQueue queue, byte[] destination, int maximum) {
+		int views = queue.gather();
+		ByteBuffer[] buffers = queue.getViews();
+		int length = 0;
+
+		for (int i = 0; i < views && length < maximum; i++) {
+			int bytes = Math.min(buffers[i].remaining(), maximum - length);
+			buffers[i].get(destination, length, bytes);
+			length += bytes;
+		}
+
+		return length;
+	}
+
+	private void add(byte[] bytes, int length) {
+		if (output.available() < length) {
+			// pending output in the deflater may exceed the margin
+			output.setCapacity(2 * output.capacity());
+		}
+
+		output.add(bytes, 0, length);
+	}
+
+	/** Create views of the compressed bytes.
+	 * @return number of views in the array returned by getViews
+	 */
+	public int readableViews() {
+		return output.readableViews();
+	}
+
+	public ByteBuffer[] getViews() {
+		ByteBuffer[] views = output.getViews();
+		return views == null ? NO_VIEWS : views;
+	}
+
+	/** Compressed bytes waiting for the socket or the SSL engine. */
+	public MessageBuffer getOutput() {
+		return output;
+	}
+
+	/** Return the deflater to the pool, nothing is compressed after this. */
+	public void release() {
+		if (deflater != null) {
+			pool.release(deflater);
+			deflater = null;
+		}
+
+		output.clear();
+	}
+}
@@ -4,12 +4,15 @@ import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** A worker thread that manages client connections in the server.
  * @author Johan Mattsson
  */
 public class ConnectionHandler {
-	private ArrayList<ClientConnection> connections;
+	private SlotRegistry<ClientConnection> connections;
+	private ConcurrentHashMap<String, Topic> topics;
 	private ArrayList<ClientConnection> pendingClose;
 	private SSLWorker sslWorker;
 	private Server server;
@@ -17,12 +20,20 @@ public class ConnectionHandler {
 	public ConnectionHandler(SSLWorker sslWorker, Server server) {
 		this.sslWorker = sslWorker;
 		this.server = server;
-		connections = new ArrayList<ClientConnection>();
+		connections = new SlotRegistry<>();
+		topics = new ConcurrentHashMap<>();
 		pendingClose = new ArrayList<ClientConnection>();
 	}
 
-	public synchronized void addConnection(ClientConnection connection) {
+	public void addConnection(ClientConnection connection) {
 		connections.add(connection); 
+
+		History history = server.getHistory();
+		int messages = server.getJoinHistory();
+
+		if (history != null && messages > 0) {
+			replay(connection, history.getLastSequence() - messages, null);
+		}
 	}
 
 	public synchronized void disconnectAllClients(Server server) {
@@ -30,93 +41,559 @@ public class ConnectionHandler {
 		processCloseMessages(server); 
 
 		if (connections.size() > 0) {
-			ServerLog.info("Sending close message to " + connections.size() + " clients.");
+			ServerLog.info("Sending close message to {} clients.", connections.size());
 		}
 
 		sendMessage("CLOSE");
 
 		for (ClientConnection connection : connections) {
-			pendingClose.add(connection);
+			addPendingClose(connection);
 		}
 
 		processCloseMessages(server);
 	}
 
-	public synchronized void removeConnection(ClientConnection connection) {
+	public void removeConnection(ClientConnection connection) {
 		connections.remove(connection);
+		leaveAll(connection);
+	}
+
+	/** Remove a connection and close its socket. */
+	public synchronized void closeConnection(ClientConnection connection) {
+		removeConnection(connection);
+
+		if (pendingClose.remove(connection) && pendingClose.isEmpty()) {
+			notifyAll();
+		}
+		
+		if (connection.getSocketChannel().isOpen()) {
+			connection.close();
+		} else {
+			// a reader or writer thread may have borrowed memory after the close
+			synchronized (connection) {
+				connection.clearBuffers();
+			}
+		}
 	}
 
-	public synchronized void closeDisconnectedSockets() {
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/** Close sockets that have sent their last message.
+	 * @param reactor only connections pinned to this reactor are closed
+	 */
+	public synchronized void closeDisconnectedSockets(Reactor reactor) {
 		Iterator<ClientConnection> iterator = pendingClose.iterator();
+		boolean remaining = false;
 
 		while (iterator.hasNext()) {
 			ClientConnection connection = iterator.next();
 
+			if (connection.getReactor() != reactor) {
+				continue;
+			}
+
 			synchronized (connection) {
-				if (connection.hasEmptyOutput()) {
+				if (connection.hasEmptyOutput() || !connection.getSocketChannel().isOpen()) {
 					removeConnection(connection);
 					connection.close();
 					iterator.remove();
+				} else {
+					remaining = true;
 				}
 			}
 		}
+
+		// the reactor looks again after its next flush
+		reactor.setClosesPending(remaining);
+
+		if (pendingClose.isEmpty()) {
+			notifyAll();
+		}
+	}
+
+	public void sendMessage(String message) {
+		// the message is encoded once and shared by all recipients
+		Frame frame = server.getCodec().encode(message.trim());
+
+		try {
+			sendMessage(frame);
+		} finally {
+			frame.release();
+		}
 	}
 
-	public synchronized void sendMessage(String message) {
+	/** Broadcast a frame, the connections are iterated without locking the
+	 * handler so accepts and closes don't wait for the fan out.
+	 */
+	public void sendMessage(Frame frame) {
 		for (ClientConnection connection : connections) {
-			try {
+			deliver(connection, frame);
+		}
+	}
+
+	/** Send a frame to the subscribers of a topic, nothing is sent if the
+	 * topic has no subscribers.
+	 */
+	public void publish(String name, Frame frame) {
+		Topic topic = topics.get(name);
+
+		if (topic == null) {
+			return;
+		}
+
+		for (Topic.Subscription subscription : topic.getSubscribers()) {
+			deliver(subscription.getConnection(), frame);
+		}
+	}
+
+	private void deliver(ClientConnection connection, Frame frame) {
+		try {
+			synchronized (connection) {
+				// broadcasts that were replayed from the history are not repeated
+				long sequence = frame.getSequence();
+				boolean replayed = sequence != 0 && sequence <= connection.getReplayedSequence();
+
+				if (!connection.isClosing() && !replayed) {
+					sendMessage(connection, frame);
+				}
+			}
+		} catch (IOException exception) {
+			ServerLog.error("{} (sendMessage) {}", exception.getMessage(), connection);
+		}
+	}
+
+	/** Subscribe a connection to a topic, the topic is created by the first
+	 * join and removed when the last subscriber leaves. The name must be 
+	 * valid and the connection and the server must be below their topic
+	 * limits, concurrent joins of new topics may pass the server limit by a 
+	 * few topics.
+	 * @return false if the join was rejected, true if the connection has 
+	 * joined the topic now or before
+	 */
+	public boolean join(ClientConnection connection, String name) {
+		if (!Topic.isValidName(name)) {
+			return false;
+		}
+
+		synchronized (connection) {
+			Map<String, Topic.Subscription> subscriptions = connection.getSubscriptions();
+
+			if (subscriptions.containsKey(name)) {
+				return true;
+			}
+
+			if (subscriptions.size() >= server.getMaxTopicsPerConnection()) {
+				return false;
+			}
+
+			while (true) {
+				if (!topics.containsKey(name) && topics.size() >= server.getMaxTopics()) {
+					return false;
+				}
+
+				Topic topic = topics.computeIfAbsent(name, Topic::new);
+				Topic.Subscription subscription = topic.subscribe(connection);
+
+				if (subscription != null) {
+					subscriptions.put(name, subscription);
+					return true;
+				}
+
+				// the last subscriber has just left, create a new topic
+				topics.remove(name, topic);
+			}
+		}
+	}
+
+	/** Unsubscribe a connection from a topic.
+	 * @return false if the connection hasn't joined the topic
+	 */
+	public boolean leave(ClientConnection connection, String name) {
+		synchronized (connection) {
+			if (!connection.hasSubscriptions()) {
+				return false;
+			}
+
+			Topic.Subscription subscription = connection.getSubscriptions().remove(name);
+
+			if (subscription == null) {
+				return false;
+			}
+
+			unsubscribe(subscription);
+			return true;
+		}
+	}
+
+	/** Leave all topics when a connection is removed. */
+	private void leaveAll(ClientConnection connection) {
+		synchronized (connection) {
+			if (!connection.hasSubscriptions()) {
+				return;
+			}
+
+			for (Topic.Subscription subscription : connection.getSubscriptions().values()) {
+				unsubscribe(subscription);
+			}
+
+			connection.getSubscriptions().clear();
+		}
+	}
+
+	private void unsubscribe(Topic.Subscription subscription) {
+		Topic topic = subscription.getTopic();
+
+		if (topic.unsubscribe(subscription)) {
+			topics.remove(topic.getName(), topic);
+		}
+	}
+
+	/** Number of topics with subscribers. */
+	public int getTopicCount() {
+		return topics.size();
+	}
+
+	/** Answer a request for compression. The reply is the last message 
+	 * that the client receives uncompressed, the output after it is a raw 
+	 * DEFLATE stream with a sync flush after each batch.
+	 * @param method the requested compression, only deflate is supported
+	 */
+	public void compress(ClientConnection connection, String method) {
+		boolean deflate = server.isCompressionEnabled() && method.equalsIgnoreCase("deflate");
+		Frame frame = server.getCodec().encode(deflate ? "COMPRESSED deflate" : "COMPRESSED none");
+
+		try {
+			synchronized (connection) {
+				enqueue(connection, frame);
+
+				if (deflate && connection.getCompressor() == null) {
+					long queued = connection.getOut().size();
+					connection.setCompressor(new Compressor(server.getDeflaterPool(), 
+							server.getBufferPool(), server.getCompressionStatistics(), queued));
+					server.getCompressionStatistics().addConnection();
+				}
+			}
+		} catch (IOException exception) {
+			ServerLog.error("{} {}", exception.getMessage(), connection);
+			connection.close();
+		} finally {
+			frame.release();
+		}
+	}
+
+	/** Send the broadcasts that a client missed while it was disconnected.
+	 * The reply RESUMED n has the sequence number of the first message that
+	 * follows, a client that gets a larger number than it asked for has lost
+	 * messages. Messages that the client receives after RESUME and before the
+	 * reply are repeated after it.
+	 * @param after the last sequence number that the client has received
+	 */
+	public void resume(ClientConnection connection, long after) {
+		if (server.getHistory() == null) {
+			sendReply(connection, "RESUMED none");
+			return;
+		}
+
+		replay(connection, after, "RESUMED ");
+	}
+
+	/** Queue the messages after a sequence number in one frame. The history
+	 * is locked until the frame has been queued, broadcasts that are added
+	 * to the history later are sent after it.
+	 * @param reply prefix of a reply with the first sequence number, null
+	 * for no reply
+	 */
+	private void replay(ClientConnection connection, long after, String reply) {
+		History history = server.getHistory();
+
+		synchronized (history) {
+			synchronized (connection) {
+				// leave room for the reply
+				OutboundQueue queue = connection.getOut();
+				int maximum = queue.capacity() - queue.size() - 64;
+				long start = history.getStart(after, maximum);
+				Frame frame = history.copyFrom(start);
+				Frame header = reply == null ? null : server.getCodec().encode(reply + start);
+
+				try {
+					if (header != null) {
+						enqueue(connection, header);
+					}
+
+					if (frame != null) {
+						enqueue(connection, frame);
+						connection.setReplayedSequence(frame.getSequence());
+					}
+				} catch (IOException exception) {
+					ServerLog.error("{} {}", exception.getMessage(), connection);
+					connection.close();
+				} finally {
+					if (header != null) {
+						header.release();
+					}
+
+					if (frame != null) {
+						frame.release();
+					}
+				}
+			}
+		}
+	}
+
+	/** Send the journaled broadcasts after a sequence number, followed by the
+	 * reply REPLAYED n with the number of the last message that was sent. A
+	 * plain text connection with an empty queue gets the messages straight
+	 * from the segment files, other connections get a copy of the messages 
+	 * that fit in the queue and ask again for the rest. Like a replay from
+	 * the history, the snapshot is taken under the lock that the broadcasts
+	 * are journaled with, broadcasts that are journaled but not yet sent 
+	 * are not repeated after the replay.
+	 * @param after the last sequence number that the client has received
+	 */
+	public void replayJournal(ClientConnection connection, long after) {
+		Journal journal = server.getJournal();
+
+		if (journal == null) {
+			sendReply(connection, "REPLAYED none");
+			return;
+		}
+
+		Object lock = server.getHistory() != null ? server.getHistory() : journal;
+		Frame frame = null;
+		Frame reply = null;
+
+		try {
+			synchronized (lock) {
 				synchronized (connection) {
-					if (!connection.isClosing()) {
-						sendMessage(connection, message.trim());
+					OutboundQueue queue = connection.getOut();
+					long last;
+
+					if (!server.isUsingSSL() && connection.getCompressor() == null 
+							&& queue.size() == 0 && connection.getTransfer() == null) {
+						Journal.Transfer transfer = journal.transfer(after);
+						connection.setTransfer(transfer);
+						last = transfer.getLastSequence();
+					} else {
+						// leave room for the reply
+						frame = journal.copy(after, queue.capacity() - queue.size() - 64);
+						last = frame == null ? after : frame.getSequence();
+
+						if (frame != null) {
+							enqueue(connection, frame);
+						}
 					}
+
+					reply = server.getCodec().encode("REPLAYED " + last);
+					enqueue(connection, reply);
+					connection.setReplayedSequence(Math.max(last, connection.getReplayedSequence()));
 				}
-			} catch (IOException exception) {
-				ServerLog.error(exception.getMessage() + " (sendMessage) " + connection);
+			}
+		} catch (IOException exception) {
+			ServerLog.error("{} {}", exception.getMessage(), connection);
+			connection.close();
+		} finally {
+			if (frame != null) {
+				frame.release();
+			}
+
+			if (reply != null) {
+				reply.release();
 			}
 		}
 	}
 
-	private void sendMessage(ClientConnection connection, String message) throws IOException {
-		MessageBuffer buffer = connection.getOut();
+	/** Send a reply to one connection, replies bypass the slow consumer policy. */
+	public void sendReply(ClientConnection connection, String reply) {
+		Frame frame = server.getCodec().encode(reply);
 
 		try {
-			buffer.add(message + "\n");
-			
-			if (server.isUsingSSL()) {
-				sslWorker.handleOutput(connection);
-			} else {
-				server.requestWrite(connection);
+			synchronized (connection) {
+				enqueue(connection, frame);
+			}
+		} catch (IOException exception) {
+			ServerLog.error("{} {}", exception.getMessage(), connection);
+			connection.close();
+		} finally {
+			frame.release();
+		}
+	}
+
+	/** Queue a broadcast, the slow consumer policy decides what happens if 
+	 * the output of the connection is above the high watermark.
+	 */
+	private void sendMessage(ClientConnection connection, Frame frame) throws IOException {
+		long outbound = connection.getOutboundBytes();
+
+		if (outbound + frame.length() > server.getHighWatermark() 
+				|| connection.getCongestedSince() != 0) {
+			if (!handleSlowConsumer(connection, frame, outbound)) {
+				return;
+			}
+		}
+
+		enqueue(connection, frame);
+	}
+
+	/** Apply the slow consumer policy, called with the connection lock held.
+	 * @return true if the frame should be queued
+	 */
+	private boolean handleSlowConsumer(ClientConnection connection, Frame frame, long outbound) {
+		SlowConsumerStatistics statistics = server.getSlowConsumerStatistics();
+		boolean aboveHigh = outbound + frame.length() > server.getHighWatermark();
+		boolean aboveLow = outbound > server.getLowWatermark();
+		long now = System.currentTimeMillis();
+
+		switch (server.getSlowConsumerPolicy()) {
+		case PAUSE:
+			if (aboveHigh && !connection.isPaused()) {
+				connection.setPaused(true);
+				statistics.addPause();
 			}
+
+			// a paused connection would overflow its queue, the broadcast is lost
+			if (connection.isPaused()) {
+				statistics.addDroppedPaused(1);
+				return false;
+			}
+
+			return true;
+		case DROP_OLDEST:
+			if (aboveHigh) {
+				long excess = outbound + frame.length() - server.getHighWatermark();
+				statistics.addDroppedOldest(connection.getOut().dropOldest(excess));
+			}
+
+			return true;
+		case DROP_NEWEST:
+			if (!aboveLow) {
+				connection.setCongestedSince(0);
+				return true;
+			}
+
+			// drop until the output has drained below the low watermark
+			if (connection.getCongestedSince() == 0) {
+				connection.setCongestedSince(now);
+			}
+
+			statistics.addDroppedNewest(1);
+			return false;
+		case DISCONNECT:
+			if (!aboveLow) {
+				connection.setCongestedSince(0);
+				return true;
+			}
+
+			if (connection.getCongestedSince() == 0) {
+				if (aboveHigh) {
+					connection.setCongestedSince(now);
+				}
+
+				return true;
+			}
+
+			if (now - connection.getCongestedSince() >= server.getSlowConsumerGracePeriod()) {
+				ServerLog.info("Disconnecting slow consumer {}", connection);
+				statistics.addDisconnect();
+				connection.close();
+				return false;
+			}
+
+			return true;
+		default:
+			return true;
+		}
+	}
+
+	/** Resume reading from a paused connection when its output has drained
+	 * below the low watermark, called with the connection lock held.
+	 * @return true if the connection was resumed
+	 */
+	boolean resumeIfDrained(ClientConnection connection) {
+		if (!connection.isPaused() 
+				|| connection.getOutboundBytes() > server.getLowWatermark()) {
+			return false;
+		}
+
+		connection.setPaused(false);
+		server.getSlowConsumerStatistics().addResume();
+		return true;
+	}
+
+	/** Queue a frame without applying the slow consumer policy. */
+	private void enqueue(ClientConnection connection, Frame frame) throws IOException {
+		OutboundQueue queue = connection.getOut();
+
+		try {
+			queue.add(frame);
+			server.getStatistics().addMessageOut();
+			server.requestOutput(connection);
 		} catch (BufferOverflowException bufferOverflow) {
-			ServerLog.error("Output buffer is full for " + connection);
+			ServerLog.error("Output buffer is full for {}", connection);
+			server.getStatistics().addBufferOverflow();
+			server.getSlowConsumerStatistics().addDisconnect();
 			connection.close();
 		}
 	}
 
+	/** Close the connection once its output has been sent. */
+	private synchronized void addPendingClose(ClientConnection connection) {
+		pendingClose.add(connection);
+		Reactor reactor = connection.getReactor();
+
+		if (reactor != null) {
+			reactor.closeLater();
+		}
+	}
+
 	/** Process all remaining close messages in shutdown procedure. */ 
 	private synchronized void processCloseMessages(Server server) {
-		// wait until close message is sent
+		// wait until close message is sent, the reactors are still running
+		// and close the sockets, clients that don't read their last message
+		// are closed by the close timeout
 		long time = System.currentTimeMillis();
-		while (pendingClose.size() > 0) { 
-			sslWorker.processInput();
-			sslWorker.processOutput();
+		long timeout = Math.max(server.getCloseTimeout(), 1000) + TimerWheel.DEFAULT_TICK;
 
-			server.processConnections();
+		while (pendingClose.size() > 0) { 
+			long wait = time + timeout - System.currentTimeMillis();
 
-			if (System.currentTimeMillis() - time > 10 * 1000) {
+			if (wait <= 0) {
 				ServerLog.error("Timeout in terminate server.");
 				break;
 			}
+
+			if (server.isUsingSSL()) {
+				// the SSL worker has stopped, wrap the last messages here
+				sslWorker.processInput();
+				sslWorker.processOutput();
+				wait = Math.min(wait, 10);
+			}
+
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				ServerLog.info("Interrupted while closing connections.");
+			}
 		}
 	}
 
 	public synchronized void sendClosedMessage(ClientConnection connection) {
 		try {
-			connection.setClosing(true);
-			sendMessage(connection, "CLOSED");
-			pendingClose.add(connection);
+			Frame closed = server.getCodec().encode("CLOSED");
+
+			try {
+				synchronized (connection) {
+					connection.setClosing(true);
+					enqueue(connection, closed);
+				}
+			} finally {
+				closed.release();
+			}
+
+			addPendingClose(connection);
 		} catch (IOException e) {
-			ServerLog.error(e.getMessage() + " " + connection);
+			ServerLog.error("{} {}", e.getMessage(), connection);
 			connection.close();
 		}
 	}
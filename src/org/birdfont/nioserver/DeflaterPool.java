@@ -0,0 +1,51 @@
+package org.birdfont.nioserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/** Deflaters that are reused by compressed connections. A deflater holds
+ * native memory, connections return it when they close instead of leaving
+ * it to the garbage collector.
+ */
+public class DeflaterPool {
+	/** Number of idle deflaters kept in the pool. */
+	public final static int MAX_IDLE = 1024;
+
+	private final int level;
+	private final Queue<Deflater> idle = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	/** @param level compression level, see Deflater */
+	public DeflaterPool(int level) {
+		this.level = level;
+	}
+
+	/** Borrow a deflater that writes raw DEFLATE data without a zlib header. */
+	public Deflater acquire() {
+		Deflater deflater = idle.poll();
+
+		if (deflater == null) {
+			return new Deflater(level, true);
+		}
+
+		idleCount.decrementAndGet();
+		return deflater;
+	}
+
+	public void release(Deflater deflater) {
+		if (idleCount.incrementAndGet() > MAX_IDLE) {
+			idleCount.decrementAndGet();
+			deflater.end();
+			return;
+		}
+
+		deflater.reset();
+		idle.add(deflater);
+	}
+
+	public int getLevel() {
+		return level;
+	}
+}
@@ -0,0 +1,144 @@
+package org.birdfont.nioserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** An encoded message that is shared by all recipients of a broadcast. The 
+ * bytes are immutable, every outbound queue that points to the frame holds a
+ * reference to it.
+ */
+public final class Frame {
+	private final byte[] data;
+	private final int length;
+	private final AtomicInteger references = new AtomicInteger(1);
+	private long readTime = 0;
+	private long queueTime = 0;
+	private long sequence = 0;
+
+	private Frame(byte[] data, int length) {
+		this.data = data;
+		this.length = length;
+	}
+
+	/** Encode a line once for all recipients.
+	 * @param line message without line break
+	 * @return a new frame with one reference owned by the caller
+	 */
+	public static Frame encode(String line) {
+		byte[] text = line.getBytes(StandardCharsets.UTF_8);
+		byte[] data = new byte[text.length + 1];
+		System.arraycopy(text, 0, data, 0, text.length);
+		data[text.length] = '\n';
+		return new Frame(data, data.length);
+	}
+
+	/** Create a frame from encoded bytes, the array may not be modified
+	 * after this call.
+	 * @return a new frame with one reference owned by the caller
+	 */
+	public static Frame wrap(byte[] data) {
+		return new Frame(data, data.length);
+	}
+
+	/** Copy an encoded frame from a buffer without changing it.
+	 * @param offset offset from the read index of the buffer
+	 */
+	public static Frame copyBytes(LineBuffer buffer, int offset, int length) {
+		byte[] data = new byte[length];
+		buffer.get(offset, data, 0, length);
+		return new Frame(data, data.length);
+	}
+
+	/** Copy a line from a buffer to a new frame, the line break is added.
+	 * @param offset offset from the read index of the buffer
+	 * @param length length of the line without line break
+	 */
+	public static Frame copyOf(LineBuffer buffer, int offset, int length) {
+		byte[] data = new byte[length + 1];
+		buffer.get(offset, data, 0, length);
+		data[length] = '\n';
+		return new Frame(data, data.length);
+	}
+
+	/** Set the time when the line was read from the socket and the time
+	 * when the fan-out started, before the frame is queued. Frames without
+	 * time stamps are not measured.
+	 */
+	public void setTimes(long readTime, long queueTime) {
+		this.readTime = readTime;
+		this.queueTime = queueTime;
+	}
+
+	/** System.nanoTime when the line was read, zero if it isn't measured. */
+	public long getReadTime() {
+		return readTime;
+	}
+
+	public long getQueueTime() {
+		return queueTime;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	/** Sequence number of a broadcast that is kept in the history, zero for
+	 * other frames. A frame with the resumed history of a client has the
+	 * number of its last message.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	/** Copy bytes of the frame to a buffer. */
+	public void copyTo(int offset, int length, ByteBuffer destination) {
+		destination.put(data, offset, length);
+	}
+
+	/** A view of the frame that starts at an offset, no bytes are copied. 
+	 * The view is only read by the socket or the SSL engine.
+	 * @param reuse a view that the queue made before or null, it is reset
+	 * and returned if it points to this frame
+	 */
+	ByteBuffer view(int offset, ByteBuffer reuse) {
+		if (reuse != null && reuse.array() == data) {
+			reuse.limit(length);
+			reuse.position(offset);
+			return reuse;
+		}
+
+		return ByteBuffer.wrap(data, offset, length - offset);
+	}
+
+	/** Frames are not pooled, the count catches a frame that is used after
+	 * its last reference was released.
+	 */
+	public Frame retain() {
+		int count;
+		
+		do {
+			count = references.get();
+			
+			if (count <= 0) {
+				throw new IllegalStateException("Frame has already been released.");
+			}
+		} while (!references.compareAndSet(count, count + 1));
+		
+		return this;
+	}
+
+	public void release() {
+		if (references.decrementAndGet() < 0) {
+			throw new IllegalStateException("Frame has already been released.");
+		}
+	}
+
+	public int references() {
+		return references.get();
+	}
+}
@@ -0,0 +1,61 @@
+package org.birdfont.nioserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters for SSL handshakes. A handshake is resumed when the client 
+ * presented a cached session or a session ticket, the latency is measured 
+ * from the time the connection was accepted until the handshake has finished.
+ */
+public class HandshakeStatistics {
+	private final AtomicLong fullHandshakes = new AtomicLong();
+	private final AtomicLong resumedHandshakes = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+
+	void addHandshake(boolean resumed, long latencyNanos) {
+		if (resumed) {
+			resumedHandshakes.incrementAndGet();
+		} else {
+			fullHandshakes.incrementAndGet();
+		}
+
+		totalLatency.addAndGet(latencyNanos);
+		maxLatency.accumulateAndGet(latencyNanos, Math::max);
+	}
+
+	public long getFullHandshakes() {
+		return fullHandshakes.get();
+	}
+
+	public long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	public long getHandshakes() {
+		return fullHandshakes.get() + resumedHandshakes.get();
+	}
+
+	/** Share of the handshakes that resumed a session, between 0 and 1. */
+	public double getResumptionRate() {
+		long handshakes = getHandshakes();
+		return handshakes == 0 ? 0 : (double) getResumedHandshakes() / handshakes;
+	}
+
+	/** Average time of a handshake in microseconds. */
+	public long getAverageLatency() {
+		long handshakes = getHandshakes();
+		return handshakes == 0 ? 0 : totalLatency.get() / handshakes / 1000;
+	}
+
+	/** The slowest handshake in microseconds. */
+	public long getMaxLatency() {
+		return maxLatency.get() / 1000;
+	}
+
+	@Override
+	public String toString() {
+		return "Handshakes: " + getFullHandshakes() + " full, " 
+				+ getResumedHandshakes() + " resumed, average " 
+				+ getAverageLatency() + " us, max " + getMaxLatency() + " us";
+	}
+}
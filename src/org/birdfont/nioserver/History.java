@@ -0,0 +1,169 @@
+package org.birdfont.nioserver;
+
+import java.nio.ByteBuffer;
+
+/** The most recent broadcasts in a ring of direct memory. Every broadcast
+ * gets the next sequence number, the encoded frames are kept until the ring
+ * runs out of messages or bytes. A client that reconnects gets the frames it
+ * missed in one frame that is written in one go.
+ */
+public class History {
+	private final ByteBuffer data;
+	private final long[] positions;
+	private final int[] lengths;
+	private long first = 1;
+	private long next = 1;
+	private long head = 0;
+	private long tail = 0;
+
+	/** @param messages maximum number of frames in the ring
+	 * @param bytes size of the ring in bytes
+	 */
+	public History(int messages, int bytes) {
+		data = ByteBuffer.allocateDirect(bytes);
+		positions = new long[messages];
+		lengths = new int[messages];
+	}
+
+	/** Give a broadcast the next sequence number and keep it in the ring.
+	 * @param frame the broadcast without sequence number
+	 * @param codec the codec that adds the sequence number to the frame
+	 * @return a new frame with the sequence number, one reference is owned by
+	 * the caller
+	 */
+	public synchronized Frame add(Frame frame, Codec codec) {
+		Frame stamped = codec.stamp(frame, next);
+		put(stamped);
+		return stamped;
+	}
+
+	/** Put a frame from the journal back in the ring when the server starts,
+	 * the following broadcasts continue from its sequence number.
+	 * @param stamped a frame that has a sequence number
+	 */
+	public synchronized void restore(Frame stamped) {
+		if (stamped.getSequence() < next) {
+			return;
+		}
+
+		if (stamped.getSequence() > next) {
+			// the journal has a gap, start the ring over
+			first = stamped.getSequence();
+			next = first;
+			head = tail;
+		}
+
+		put(stamped);
+	}
+
+	private void put(Frame stamped) {
+		long sequence = next++;
+		int length = stamped.length();
+
+		while (first < next - 1 && (next - first > positions.length
+				|| tail + length - head > data.capacity())) {
+			removeFirst();
+		}
+
+		if (length > data.capacity()) {
+			// too large for the ring, a resume starts after it
+			first = next;
+			head = tail;
+			return;
+		}
+
+		int index = index(sequence);
+		positions[index] = tail;
+		lengths[index] = length;
+
+		int capacity = data.capacity();
+		int offset = (int) (tail % capacity);
+		int firstPart = Math.min(length, capacity - offset);
+
+		ByteBuffer view = data.duplicate();
+		view.position(offset);
+		stamped.copyTo(0, firstPart, view);
+		view.position(0);
+		stamped.copyTo(firstPart, length - firstPart, view);
+		tail += length;
+	}
+
+	private void removeFirst() {
+		head += lengths[index(first)];
+		first++;
+	}
+
+	private int index(long sequence) {
+		return (int) (sequence % positions.length);
+	}
+
+	/** Find the first message to send to a client that has received the
+	 * messages up to a sequence number. Messages that have left the ring are
+	 * skipped and so are the oldest messages if all of them don't fit.
+	 * @param after the last sequence number that the client has received
+	 * @param maximum number of bytes that the client can receive
+	 * @return a sequence number, the next sequence number if there is 
+	 * nothing to send
+	 */
+	public synchronized long getStart(long after, int maximum) {
+		long start = Math.max(after + 1, first);
+		long last = next - 1;
+
+		if (start > last) {
+			return next;
+		}
+
+		long end = tail;
+
+		while (start <= last && end - positions[index(start)] > maximum) {
+			start++;
+		}
+
+		return start;
+	}
+
+	/** Copy the messages from a sequence number to the newest one into one
+	 * frame, call getStart first.
+	 * @return a frame with the sequence number of its last message or null if
+	 * there is nothing to send, one reference is owned by the caller
+	 */
+	public synchronized Frame copyFrom(long start) {
+		long last = next - 1;
+
+		if (start > last || start < first) {
+			return null;
+		}
+
+		long end = tail;
+		long position = positions[index(start)];
+		byte[] bytes = new byte[(int) (end - position)];
+		int capacity = data.capacity();
+		int offset = (int) (position % capacity);
+		int firstPart = Math.min(bytes.length, capacity - offset);
+
+		ByteBuffer view = data.duplicate();
+		view.position(offset);
+		view.get(bytes, 0, firstPart);
+		view.position(0);
+		view.get(bytes, firstPart, bytes.length - firstPart);
+
+		Frame frame = Frame.wrap(bytes);
+		frame.setSequence(last);
+		return frame;
+	}
+
+	/** Maximum number of frames in the ring. */
+	public int getCapacity() {
+		return positions.length;
+	}
+
+	/** Sequence number of the oldest frame in the ring. */
+	public synchronized long getFirstSequence() {
+		return first;
+	}
+
+	/** Sequence number of the newest frame, zero before the first broadcast. */
+	public synchronized long getLastSequence() {
+		return next - 1;
+	}
+}
@@ -0,0 +1,620 @@
+package org.birdfont.nioserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/** An append only journal of broadcasts in memory mapped segment files.
+ * Appending a message is a copy to the mapped data file and an entry in
+ * the mapped index, the reactors make no system calls. A commit thread
+ * forces the written pages to disk once per commit interval, all messages
+ * that arrived during the interval are made durable by the same force. The
+ * commit thread also creates the next segment before it is needed and 
+ * deletes the segments that are beyond the retention limit.
+ *
+ * The data files hold the encoded frames back to back, a range of messages
+ * can be sent to a plain text socket with FileChannel.transferTo. Each
+ * index entry has a sequence number, an offset and a length.
+ */
+public class Journal implements Closeable {
+	/** Default size of the data file of a segment. */
+	public final static int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/** Default time between two forces in milliseconds. */
+	public final static long DEFAULT_COMMIT_INTERVAL = 5;
+
+	/** Default number of segments that are kept, 1 GB with the default size. */
+	public final static int DEFAULT_MAX_SEGMENTS = 16;
+
+	private final static int INDEX_ENTRY = 16;
+
+	private final Path directory;
+	private final int segmentSize;
+	private final long commitInterval;
+	private final int maxSegments;
+	private final ArrayList<Segment> segments = new ArrayList<>();
+	private Segment current;
+	private Segment spare;
+	private long lastSequence = 0;
+
+	// segments beyond the retention limit, deleted by the commit thread
+	private final ArrayList<Segment> retired = new ArrayList<>();
+
+	// segments written since the last commit, guarded by the journal
+	private final ArrayList<Segment> dirty = new ArrayList<>();
+	private volatile long appends = 0;
+	private volatile long committed = 0;
+	private volatile long commits = 0;
+	private volatile boolean running = true;
+	private final Thread committer;
+
+	public Journal(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_INTERVAL);
+	}
+
+	public Journal(Path directory, int segmentSize, long commitInterval) throws IOException {
+		this(directory, segmentSize, commitInterval, DEFAULT_MAX_SEGMENTS);
+	}
+
+	/** Open the segments in a directory, new messages are appended to the
+	 * last segment. Segments beyond the retention limit are deleted, the 
+	 * oldest first, a replay from a deleted segment starts at the oldest
+	 * message that is left.
+	 * @param segmentSize bytes in the data file of each segment
+	 * @param commitInterval the latency budget of a commit in milliseconds
+	 * @param maxSegments number of segments that are kept, zero keeps all
+	 */
+	public Journal(Path directory, int segmentSize, long commitInterval, int maxSegments) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.commitInterval = Math.max(1, commitInterval);
+		this.maxSegments = Math.max(0, maxSegments);
+
+		Files.createDirectories(directory);
+		ArrayList<Integer> numbers = new ArrayList<>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.journal")) {
+			for (Path file : stream) {
+				String name = file.getFileName().toString();
+				numbers.add(Integer.parseInt(name.substring(0, name.indexOf('.'))));
+			}
+		}
+
+		Collections.sort(numbers);
+
+		// empty segments at the end are spares that the commit thread prepared
+		while (!numbers.isEmpty() && isEmpty(numbers.get(numbers.size() - 1))) {
+			deleteFiles(numbers.remove(numbers.size() - 1));
+		}
+
+		// only the segments within the retention limit are mapped
+		while (maxSegments > 0 && numbers.size() > maxSegments) {
+			deleteFiles(numbers.remove(0));
+		}
+
+		for (int number : numbers) {
+			Segment segment = new Segment(number, segmentSize);
+			segments.add(segment);
+
+			if (segment.count > 0) {
+				lastSequence = segment.getSequence(segment.count - 1);
+			}
+		}
+
+		if (segments.isEmpty()) {
+			segments.add(new Segment(0, segmentSize));
+		}
+
+		current = segments.get(segments.size() - 1);
+
+		committer = new Thread(this::commitLoop, "Journal commit");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	private static String getName(int number) {
+		return String.format("%010d", number);
+	}
+
+	/** True if the first index entry of a segment has no sequence number. */
+	private boolean isEmpty(int number) throws IOException {
+		Path file = directory.resolve(getName(number) + ".index");
+		ByteBuffer entry = ByteBuffer.allocate(8);
+
+		if (!Files.exists(file)) {
+			return true;
+		}
+
+		try (FileChannel index = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (entry.hasRemaining() && index.read(entry) > 0) {
+				// read the sequence number
+			}
+		}
+
+		return entry.hasRemaining() || entry.getLong(0) == 0;
+	}
+
+	private void deleteFiles(int number) throws IOException {
+		Files.deleteIfExists(directory.resolve(getName(number) + ".journal"));
+		Files.deleteIfExists(directory.resolve(getName(number) + ".index"));
+	}
+
+	/** Append a broadcast, called by the reactor threads. A frame with a
+	 * sequence number from the history keeps it, other frames get the next
+	 * number of the journal. Frames with sequence numbers must arrive in
+	 * order.
+	 * @return the sequence number or zero if the frame is larger than a
+	 * segment or older than the last message
+	 */
+	public synchronized long append(Frame frame) {
+		int length = frame.length();
+
+		if (length > segmentSize) {
+			ServerLog.error("Frame of {} bytes is too large for the journal.", length);
+			return 0;
+		}
+
+		if (frame.getSequence() != 0 && frame.getSequence() <= lastSequence) {
+			// renumbering it would shift every message after it
+			ServerLog.error("Message {} is out of order in the journal.", frame.getSequence());
+			return 0;
+		}
+
+		if (current.isFull(length)) {
+			roll();
+		}
+
+		long sequence = frame.getSequence() != 0 ? frame.getSequence() : lastSequence + 1;
+		current.add(sequence, frame);
+		lastSequence = sequence;
+
+		if (dirty.isEmpty() || dirty.get(dirty.size() - 1) != current) {
+			dirty.add(current);
+		}
+
+		appends++;
+		return sequence;
+	}
+
+	private void roll() {
+		Segment next = spare;
+		spare = null;
+
+		if (next == null) {
+			// the commit thread hasn't prepared the next segment
+			try {
+				next = new Segment(current.number + 1, segmentSize);
+			} catch (IOException exception) {
+				throw new IllegalStateException("Can't create journal segment. " + exception.getMessage(), exception);
+			}
+		}
+
+		segments.add(next);
+		current = next;
+
+		while (maxSegments > 0 && segments.size() > maxSegments) {
+			Segment oldest = segments.remove(0);
+			dirty.remove(oldest);
+			retired.add(oldest);
+		}
+	}
+
+	private void commitLoop() {
+		ArrayList<Segment> batch = new ArrayList<>();
+
+		while (running) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(commitInterval));
+			commit(batch);
+			prepareSegment();
+			deleteRetired();
+		}
+	}
+
+	/** Force the segments that were written since the last commit. */
+	private void commit(ArrayList<Segment> batch) {
+		long written;
+
+		synchronized (this) {
+			written = appends;
+
+			if (written == committed) {
+				return;
+			}
+
+			batch.addAll(dirty);
+			dirty.clear();
+		}
+
+		for (Segment segment : batch) {
+			segment.force();
+		}
+
+		batch.clear();
+		committed = written;
+		commits++;
+	}
+
+	private void prepareSegment() {
+		int number;
+
+		synchronized (this) {
+			if (spare != null || !current.isHalfFull()) {
+				return;
+			}
+
+			number = current.number + 1;
+		}
+
+		try {
+			Segment segment = new Segment(number, segmentSize);
+			boolean stale;
+
+			synchronized (this) {
+				// the reactors may have rolled to this number without the spare
+				stale = spare != null || current.number + 1 != number;
+
+				if (!stale) {
+					spare = segment;
+				}
+			}
+
+			if (stale) {
+				segment.close();
+			}
+		} catch (IOException exception) {
+			ServerLog.error("Can't create journal segment {}", exception.getMessage());
+		}
+	}
+
+	private void deleteRetired() {
+		ArrayList<Segment> list;
+
+		synchronized (this) {
+			if (retired.isEmpty()) {
+				return;
+			}
+
+			list = new ArrayList<>(retired);
+			retired.clear();
+		}
+
+		for (Segment segment : list) {
+			try {
+				segment.delete();
+			} catch (IOException exception) {
+				ServerLog.error("Can't delete journal segment {}", exception.getMessage());
+			}
+		}
+	}
+
+	/** Read the messages after a sequence number in order, used to restore
+	 * the history when the server starts.
+	 * @param consumer receives frames with their sequence numbers, the
+	 * consumer releases them
+	 */
+	public void read(long after, Consumer<Frame> consumer) {
+		ArrayList<Segment> list;
+
+		synchronized (this) {
+			list = new ArrayList<>(segments);
+		}
+
+		for (Segment segment : list) {
+			int count;
+
+			synchronized (this) {
+				count = segment.count;
+			}
+
+			for (int i = segment.find(after, count); i < count; i++) {
+				consumer.accept(segment.read(i));
+			}
+		}
+	}
+
+	/** Copy messages after a sequence number into one frame, the oldest
+	 * messages first.
+	 * @param maximum number of bytes in the frame
+	 * @return a frame with the sequence number of its last message or null
+	 * if there is nothing to send, one reference is owned by the caller
+	 */
+	public synchronized Frame copy(long after, int maximum) {
+		ArrayList<Frame> frames = new ArrayList<>();
+		int length = 0;
+
+		for (Segment segment : segments) {
+			for (int i = segment.find(after, segment.count); i < segment.count; i++) {
+				if (length + segment.getLength(i) > maximum) {
+					return join(frames, length);
+				}
+
+				Frame frame = segment.read(i);
+				frames.add(frame);
+				length += frame.length();
+			}
+		}
+
+		return join(frames, length);
+	}
+
+	private static Frame join(ArrayList<Frame> frames, int length) {
+		if (frames.isEmpty()) {
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		long last = frames.get(frames.size() - 1).getSequence();
+
+		for (Frame frame : frames) {
+			frame.copyTo(0, frame.length(), buffer);
+			frame.release();
+		}
+
+		Frame frame = Frame.wrap(buffer.array());
+		frame.setSequence(last);
+		return frame;
+	}
+
+	/** Prepare a transfer of the messages after a sequence number straight
+	 * from the segment files to a socket.
+	 */
+	public synchronized Transfer transfer(long after) {
+		ArrayList<Segment> list = new ArrayList<>();
+		ArrayList<long[]> ranges = new ArrayList<>();
+		long last = after;
+
+		for (Segment segment : segments) {
+			int start = segment.find(after, segment.count);
+
+			if (start < segment.count) {
+				list.add(segment);
+				ranges.add(new long[] { segment.getOffset(start), segment.size });
+				last = segment.getSequence(segment.count - 1);
+			}
+		}
+
+		FileChannel[] channels = new FileChannel[list.size()];
+		long[] positions = new long[list.size()];
+		long[] ends = new long[list.size()];
+
+		for (int i = 0; i < channels.length; i++) {
+			channels[i] = list.get(i).channel;
+			positions[i] = ranges.get(i)[0];
+			ends[i] = ranges.get(i)[1];
+		}
+
+		return new Transfer(channels, positions, ends, last);
+	}
+
+	/** Sequence number of the newest message, zero if the journal is empty. */
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/** Number of messages that have been appended since the journal was opened. */
+	public long getAppends() {
+		return appends;
+	}
+
+	/** Number of forces, each one commits a batch of messages. */
+	public long getCommits() {
+		return commits;
+	}
+
+	/** Force the remaining messages and close the segment files. */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		LockSupport.unpark(committer);
+
+		try {
+			committer.join(1000);
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this) {
+			for (Segment segment : segments) {
+				segment.force();
+				segment.close();
+			}
+
+			if (spare != null) {
+				spare.close();
+			}
+		}
+
+		deleteRetired();
+	}
+
+	/** A data file and its index, both mapped into memory. */
+	private class Segment {
+		private final int number;
+		private final FileChannel channel;
+		private final FileChannel indexChannel;
+		private final MappedByteBuffer data;
+		private final MappedByteBuffer index;
+		private final int entries;
+		private int size = 0;
+		private int count = 0;
+
+		Segment(int number, int segmentSize) throws IOException {
+			this.number = number;
+			String name = getName(number);
+			entries = Math.max(1024, segmentSize / 64);
+
+			channel = FileChannel.open(directory.resolve(name + ".journal"), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			indexChannel = FileChannel.open(directory.resolve(name + ".index"), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			data = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) entries * INDEX_ENTRY);
+
+			// the entries end at the first sequence number that is zero or
+			// at an entry that was not completely written
+			while (count < entries && getSequence(count) != 0) {
+				int end = getOffset(count) + getLength(count);
+
+				if (getOffset(count) != size || end > data.capacity()) {
+					break;
+				}
+
+				size = end;
+				count++;
+			}
+		}
+
+		boolean isFull(int length) {
+			return count == entries || size + length > data.capacity();
+		}
+
+		boolean isHalfFull() {
+			return count > entries / 2 || size > data.capacity() / 2;
+		}
+
+		void add(long sequence, Frame frame) {
+			ByteBuffer view = data.duplicate();
+			view.position(size);
+			frame.copyTo(0, frame.length(), view);
+
+			// the sequence number is written last, it marks the entry as complete
+			int position = count * INDEX_ENTRY;
+			index.putInt(position + 8, size);
+			index.putInt(position + 12, frame.length());
+			index.putLong(position, sequence);
+			size += frame.length();
+			count++;
+		}
+
+		long getSequence(int entry) {
+			return index.getLong(entry * INDEX_ENTRY);
+		}
+
+		int getOffset(int entry) {
+			return index.getInt(entry * INDEX_ENTRY + 8);
+		}
+
+		int getLength(int entry) {
+			return index.getInt(entry * INDEX_ENTRY + 12);
+		}
+
+		/** Binary search for the first entry after a sequence number. */
+		int find(long after, int count) {
+			int low = 0;
+			int high = count;
+
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+
+				if (getSequence(middle) <= after) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+
+			return low;
+		}
+
+		Frame read(int entry) {
+			byte[] bytes = new byte[getLength(entry)];
+			ByteBuffer view = data.duplicate();
+			view.position(getOffset(entry));
+			view.get(bytes);
+
+			Frame frame = Frame.wrap(bytes);
+			frame.setSequence(getSequence(entry));
+			return frame;
+		}
+
+		void force() {
+			data.force();
+			index.force();
+		}
+
+		void close() throws IOException {
+			channel.close();
+			indexChannel.close();
+		}
+
+		/** Close and remove the files, a transfer that still reads the
+		 * segment fails and its connection is closed.
+		 */
+		void delete() throws IOException {
+			close();
+			deleteFiles(number);
+		}
+	}
+
+	/** Messages from the journal that are written to a plain text socket
+	 * without copying them to the heap. Guarded by the connection.
+	 */
+	public static class Transfer {
+		private final FileChannel[] channels;
+		private final long[] positions;
+		private final long[] ends;
+		private final long lastSequence;
+		private int current = 0;
+
+		Transfer(FileChannel[] channels, long[] positions, long[] ends, long lastSequence) {
+			this.channels = channels;
+			this.positions = positions;
+			this.ends = ends;
+			this.lastSequence = lastSequence;
+		}
+
+		/** Transfer bytes until the socket is full or everything is sent.
+		 * @return number of bytes written
+		 */
+		public long transferTo(WritableByteChannel target) throws IOException {
+			long written = 0;
+
+			while (current < channels.length) {
+				long bytes = channels[current].transferTo(positions[current],
+						ends[current] - positions[current], target);
+				positions[current] += bytes;
+				written += bytes;
+
+				if (positions[current] < ends[current]) {
+					break;
+				}
+
+				current++;
+			}
+
+			return written;
+		}
+
+		public boolean isDone() {
+			return current == channels.length;
+		}
+
+		/** Bytes left to transfer. */
+		public long remaining() {
+			long bytes = 0;
+
+			for (int i = current; i < channels.length; i++) {
+				bytes += ends[i] - positions[i];
+			}
+
+			return bytes;
+		}
+
+		/** Sequence number of the last message in the transfer. */
+		public long getLastSequence() {
+			return lastSequence;
+		}
+	}
+}
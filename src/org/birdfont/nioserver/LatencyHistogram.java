@@ -0,0 +1,114 @@
+package org.birdfont.nioserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A histogram of durations in nanoseconds with a fixed number of buckets.
+ * Values below 16 ns have one bucket each, larger values are grouped by
+ * power of two with eight linear buckets in each group. Percentiles are 
+ * accurate to one eighth of their magnitude. Recording is one atomic 
+ * increment, the memory never grows.
+ */
+public class LatencyHistogram {
+	private final static int SUB_BUCKET_BITS = 3;
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private final static int LINEAR = 2 * SUB_BUCKETS;
+	private final static int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong maximum = new AtomicLong();
+
+	/** Add a duration, negative values are counted as zero. */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(index(value));
+
+		long max = maximum.get();
+		while (value > max && !maximum.compareAndSet(max, value)) {
+			max = maximum.get();
+		}
+	}
+
+	static int index(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+		return LINEAR + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/** The largest value in a bucket. */
+	static long upperBound(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+
+		int group = (index - LINEAR) / SUB_BUCKETS;
+		int subBucket = (index - LINEAR) % SUB_BUCKETS;
+		int shift = group + 1;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		long count = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+
+		return count;
+	}
+
+	public long getMaximum() {
+		return maximum.get();
+	}
+
+	/** The value that the given percentage of all durations are at or below.
+	 * @param percentile a percentage like 99.9
+	 * @return nanoseconds, zero if nothing has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+
+			if (seen >= rank) {
+				return Math.min(upperBound(i), getMaximum());
+			}
+		}
+
+		return getMaximum();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+
+		maximum.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us (%d)", 
+				getPercentile(50) / 1000.0, getPercentile(99) / 1000.0, 
+				getPercentile(99.9) / 1000.0, getMaximum() / 1000.0, getCount());
+	}
+}
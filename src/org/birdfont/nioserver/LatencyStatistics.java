@@ -0,0 +1,77 @@
+package org.birdfont.nioserver;
+
+/** Latency of messages from the socket read to the socket write of each
+ * recipient, split in stages. The parse stage ends when the line has been
+ * copied to a frame, it includes the unwrap for SSL connections. The fan-out 
+ * stage queues the frame for all recipients. The wrap stage ends when the
+ * SSL engine has consumed the frame for one recipient, the write stage ends
+ * when the last byte has been written to the socket.
+ */
+public class LatencyStatistics {
+	public enum Stage {
+		PARSE,
+		FAN_OUT,
+		WRAP,
+		WRITE,
+		
+		/** From the socket read to the socket write. */
+		TOTAL
+	}
+	
+	private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+	
+	public LatencyStatistics() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+	
+	public LatencyHistogram getHistogram(Stage stage) {
+		return histograms[stage.ordinal()];
+	}
+	
+	void record(Stage stage, long nanos) {
+		histograms[stage.ordinal()].record(nanos);
+	}
+	
+	/** Record a frame that has been written or wrapped for one recipient. */
+	void recordFrame(Frame frame, Stage stage, long now) {
+		record(stage, now - frame.getQueueTime());
+		
+		if (stage == Stage.WRITE) {
+			record(Stage.TOTAL, now - frame.getReadTime());
+		}
+	}
+	
+	/** Record the write stage of encrypted output when the SSL output ring
+	 * of a connection has been drained. Records don't map to frames, the 
+	 * oldest wrapped frame is measured.
+	 */
+	void recordEncryptedWrite(ClientConnection connection) {
+		if (connection.getWrappedReadTime() == 0 || connection.getSSLOutput().size() > 0) {
+			return;
+		}
+		
+		long now = System.nanoTime();
+		record(Stage.WRITE, now - connection.getWrapTime());
+		record(Stage.TOTAL, now - connection.getWrappedReadTime());
+		connection.clearWrapped();
+	}
+	
+	public void reset() {
+		for (LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		
+		for (Stage stage : Stage.values()) {
+			text.append(stage).append(": ").append(getHistogram(stage)).append('\n');
+		}
+		
+		return text.toString();
+	}
+}
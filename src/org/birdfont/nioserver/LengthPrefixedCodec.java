@@ -0,0 +1,146 @@
+package org.birdfont.nioserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/** Binary frames with a length prefix. A frame starts with the length of
+ * the rest of the frame as a four byte big endian integer, followed by a
+ * type byte. A message frame continues with a two byte sender length, the
+ * sender in UTF-8, an eight byte time stamp in milliseconds since the epoch
+ * and the body. The body is the rest of the frame and may contain line 
+ * breaks. A command frame holds a command or a reply as UTF-8 text. A 
+ * message from the history has the type SEQUENCED, its eight byte sequence
+ * number is followed by the rest of a message frame. Frames are found 
+ * without scanning the input.
+ */
+public class LengthPrefixedCodec implements Codec {
+	/** Type of frames with a message. */
+	public final static byte MESSAGE = 1;
+
+	/** Type of frames with a command like JOIN topic or a reply. */
+	public final static byte COMMAND = 2;
+
+	/** Type of message frames with a sequence number. */
+	public final static byte SEQUENCED = 3;
+
+	/** Largest frame accepted from clients, without the length prefix. */
+	public final static int MAX_FRAME_LENGTH = 16 * 1024;
+
+	private final static int PREFIX_LENGTH = 4;
+	private final static int HEADER_LENGTH = PREFIX_LENGTH + 1;
+
+	@Override
+	public int decode(LineBuffer buffer, MessageView message) throws ParseException {
+		int end = frameLength(buffer);
+
+		if (end == -1 || buffer.size() < end) {
+			return -1;
+		}
+
+		byte type = buffer.get(PREFIX_LENGTH);
+
+		if (type == COMMAND) {
+			message.wrap(buffer, HEADER_LENGTH, end);
+		} else if (type == MESSAGE) {
+			int senderStart = HEADER_LENGTH + 2;
+
+			if (senderStart > end) {
+				throw new ParseException("Invalid message.", HEADER_LENGTH);
+			}
+
+			int senderLength = (int) read(buffer, HEADER_LENGTH, 2);
+			int timeStampStart = senderStart + senderLength;
+			int bodyStart = timeStampStart + 8;
+
+			if (senderLength == 0 || bodyStart > end) {
+				throw new ParseException("Invalid message.", senderStart);
+			}
+
+			long timeStamp = read(buffer, timeStampStart, 8);
+			message.wrapMessage(buffer, end, senderStart, senderLength, timeStamp, bodyStart);
+		} else {
+			throw new ParseException("Unknown frame type " + type + ".", PREFIX_LENGTH);
+		}
+
+		return end;
+	}
+
+	@Override
+	public int frameLength(LineBuffer buffer) throws ParseException {
+		if (buffer.size() < PREFIX_LENGTH) {
+			return -1;
+		}
+
+		int length = (int) read(buffer, 0, PREFIX_LENGTH);
+
+		if (length < 1 || length > MAX_FRAME_LENGTH) {
+			throw new ParseException("Invalid frame length " + length + ".", 0);
+		}
+
+		return PREFIX_LENGTH + length;
+	}
+
+	/** Read a big endian number. */
+	private static long read(LineBuffer buffer, int offset, int length) {
+		long value = 0;
+
+		for (int i = 0; i < length; i++) {
+			value = (value << 8) | (buffer.get(offset + i) & 0xFF);
+		}
+
+		return value;
+	}
+
+	@Override
+	public Frame encode(String line) {
+		return Frame.wrap(encodeCommand(line));
+	}
+
+	@Override
+	public Frame stamp(Frame frame, long sequence) {
+		// the sequence number goes between the type and the message
+		byte[] data = new byte[frame.length() + 8];
+		frame.copyTo(0, frame.length(), ByteBuffer.wrap(data, 8, frame.length()));
+		ByteBuffer header = ByteBuffer.wrap(data);
+		header.putInt(data.length - PREFIX_LENGTH);
+		header.put(SEQUENCED);
+		header.putLong(sequence);
+
+		Frame stamped = Frame.wrap(data);
+		stamped.setTimes(frame.getReadTime(), frame.getQueueTime());
+		stamped.setSequence(sequence);
+		return stamped;
+	}
+
+	/** Encode a command or a reply, used by clients and the server. */
+	public static byte[] encodeCommand(String line) {
+		byte[] text = line.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + text.length);
+		frame.putInt(1 + text.length);
+		frame.put(COMMAND);
+		frame.put(text);
+		return frame.array();
+	}
+
+	/** Encode a message, used by clients.
+	 * @param timeStamp milliseconds since the epoch
+	 */
+	public static byte[] encodeMessage(String sender, long timeStamp, String body) {
+		byte[] name = sender.getBytes(StandardCharsets.UTF_8);
+		byte[] text = body.getBytes(StandardCharsets.UTF_8);
+
+		if (name.length > 0xFFFF) {
+			throw new IllegalArgumentException("Sender is too long.");
+		}
+
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + 2 + name.length + 8 + text.length);
+		frame.putInt(frame.capacity() - PREFIX_LENGTH);
+		frame.put(MESSAGE);
+		frame.putShort((short) name.length);
+		frame.put(name);
+		frame.putLong(timeStamp);
+		frame.put(text);
+		return frame.array();
+	}
+}
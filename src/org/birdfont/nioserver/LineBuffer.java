@@ -0,0 +1,44 @@
+package org.birdfont.nioserver;
+
+import java.nio.ByteBuffer;
+
+/** A buffer that sockets scatter bytes into and lines are parsed from. 
+ * Offsets are relative to the read index.
+ */
+public interface LineBuffer {
+	/** Create views of the free space, the bytes written to the views must
+	 * be committed with commitWrite.
+	 * @return number of views in the array returned by getViews
+	 */
+	int writableViews();
+
+	ByteBuffer[] getViews();
+
+	/** Mark bytes that have been written to the writable views as readable. */
+	void commitWrite(int bytes);
+
+	/** Find a byte in the readable part of the buffer.
+	 * @return offset from the read index or -1 if the byte was not found
+	 */
+	int indexOf(char character);
+
+	/** Read a byte without removing it. */
+	byte get(int offset);
+
+	/** Copy bytes without removing them. */
+	void get(int offset, byte[] destination, int destinationOffset, int length);
+
+	void removeFirst(int bytes);
+
+	int size();
+
+	/** Number of bytes that can be added before the buffer is full. */
+	int available();
+
+	/** Return the memory to the pool if all data has been read.
+	 * @return true if the buffer holds no memory
+	 */
+	boolean release();
+
+	void clear();
+}
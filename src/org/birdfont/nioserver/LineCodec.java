@@ -0,0 +1,47 @@
+package org.birdfont.nioserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** Newline delimited UTF-8 text, messages have the layout
+ * Name YYYY-MM-dd HH:mm:ss Message. Messages from the history start with
+ * their sequence number, @123 Name YYYY-MM-dd HH:mm:ss Message.
+ */
+public class LineCodec implements Codec {
+
+	@Override
+	public int decode(LineBuffer buffer, MessageView message) {
+		int length = buffer.indexOf('\n');
+
+		if (length == -1) {
+			return -1;
+		}
+
+		message.wrap(buffer, length);
+		return length + 1;
+	}
+
+	@Override
+	public int frameLength(LineBuffer buffer) {
+		int length = buffer.indexOf('\n');
+		return length == -1 ? -1 : length + 1;
+	}
+
+	@Override
+	public Frame encode(String line) {
+		return Frame.encode(line);
+	}
+
+	@Override
+	public Frame stamp(Frame frame, long sequence) {
+		byte[] prefix = ("@" + sequence + " ").getBytes(StandardCharsets.US_ASCII);
+		byte[] data = new byte[prefix.length + frame.length()];
+		System.arraycopy(prefix, 0, data, 0, prefix.length);
+		frame.copyTo(0, frame.length(), ByteBuffer.wrap(data, prefix.length, frame.length()));
+
+		Frame stamped = Frame.wrap(data);
+		stamped.setTimes(frame.getReadTime(), frame.getQueueTime());
+		stamped.setSequence(sequence);
+		return stamped;
+	}
+}
@@ -0,0 +1,101 @@
+package org.birdfont.nioserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A bounded ring of log records with many producers and one consumer. The
+ * records are allocated up front and reused, a producer claims a slot with
+ * a compare and set on the tail and publishes it by advancing the sequence
+ * number of the slot. Records are rejected rather than waiting when the ring
+ * is full.
+ */
+class LogRing {
+	private final Record[] records;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head = 0;
+
+	/** @param capacity number of records, rounded up to a power of two */
+	LogRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		records = new Record[size];
+		mask = size - 1;
+
+		for (int i = 0; i < size; i++) {
+			records[i] = new Record(i);
+		}
+	}
+
+	/** Add a record, called by any thread.
+	 * @return false if the ring is full
+	 */
+	boolean offer(String format, int arguments, Object first, Object second) {
+		long position;
+		Record record;
+
+		while (true) {
+			position = tail.get();
+			record = records[(int) position & mask];
+			long difference = record.sequence - position;
+
+			if (difference < 0) {
+				return false;
+			}
+
+			if (difference == 0 && tail.compareAndSet(position, position + 1)) {
+				break;
+			}
+		}
+
+		record.format = format;
+		record.arguments = arguments;
+		record.first = first;
+		record.second = second;
+		record.sequence = position + 1;
+		return true;
+	}
+
+	/** Take the oldest record, called by the consumer thread only. The record
+	 * must be handed back with release before the next call.
+	 * @return the record or null if the ring is empty
+	 */
+	Record poll() {
+		long position = head;
+		Record record = records[(int) position & mask];
+
+		if (record.sequence != position + 1) {
+			return null;
+		}
+
+		return record;
+	}
+
+	/** Clear the record returned by poll and make the slot available. */
+	void release(Record record) {
+		long position = head;
+		record.format = null;
+		record.first = null;
+		record.second = null;
+		head = position + 1;
+		record.sequence = position + records.length;
+	}
+
+	boolean isEmpty() {
+		return head == tail.get();
+	}
+
+	int capacity() {
+		return records.length;
+	}
+
+	static class Record {
+		volatile long sequence;
+		String format;
+		int arguments;
+		Object first;
+		Object second;
+
+		Record(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+}
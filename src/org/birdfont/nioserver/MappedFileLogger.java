@@ -0,0 +1,61 @@
+package org.birdfont.nioserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** A logger that appends lines to a memory mapped file. Writing a line is a
+ * copy to the mapped region, the operating system writes the pages to disk
+ * in the background. The file grows one region at a time and is truncated
+ * to the logged bytes when the logger is closed. Only the log thread in
+ * ServerLog calls log, flush ServerLog before closing the logger.
+ */
+public class MappedFileLogger implements ServerLogger, Closeable {
+	/** Size of the file regions that are mapped into memory. */
+	public final static int REGION_SIZE = 16 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private MappedByteBuffer region;
+	private long regionStart = 0;
+
+	public MappedFileLogger(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+	}
+
+	@Override
+	public void log(String message) {
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+
+		try {
+			if (region.remaining() < bytes.length + 1) {
+				regionStart += region.position();
+				int size = Math.max(REGION_SIZE, bytes.length + 1);
+				region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, size);
+			}
+		} catch (IOException exception) {
+			throw new IllegalStateException("Can't map log file. " + exception.getMessage(), exception);
+		}
+
+		region.put(bytes);
+		region.put((byte) '\n');
+	}
+
+	/** Number of bytes that have been logged. */
+	public long size() {
+		return regionStart + region.position();
+	}
+
+	@Override
+	public void close() throws IOException {
+		region.force();
+		channel.truncate(size());
+		channel.close();
+	}
+}
@@ -0,0 +1,949 @@
+package org.birdfont.nioserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Persistent links between servers that share their messages. Each node
+ * listens for peer links on its own port and connects to the peers it has
+ * been given, a message that a client sends to one node is sent to the
+ * clients of all nodes. A node sends the messages of its clients to its
+ * peers and relays the messages it receives from a peer to its other peers,
+ * so a chain of nodes works as well as a full mesh. Links carry messages in
+ * both directions, it is enough that one of two nodes knows the other. When
+ * both nodes connect to each other, only the links they opened are used.
+ *
+ * Every message carries the id of the node that accepted it and a sequence
+ * number from that node. A message that arrives twice, over two paths or
+ * relayed back to its origin, is dropped. Node ids are random, a node that
+ * restarts starts a new series of sequence numbers. An origin that has been
+ * quiet for the origin timeout is forgotten.
+ *
+ * The links are served by one selector thread. Messages are queued on each
+ * link by the thread that accepted them and all messages that were queued
+ * since the last iteration go out in one gathering write. A link that has
+ * more than the high watermark queued makes the node stop reading from its
+ * peers until it has drained below the low watermark, the peers feel the
+ * pressure through TCP flow control. Messages that don't fit in a full
+ * queue or arrive while a link is down are dropped for that peer.
+ *
+ * All nodes must use the same codec, the messages are relayed in the
+ * encoding they arrived in.
+ */
+public class Mesh implements Runnable {
+	/** Bytes that may be queued on one link. */
+	public final static int DEFAULT_LINK_CAPACITY = 4 * 1024 * 1024;
+
+	/** Default time between two attempts to connect to a peer in milliseconds. */
+	public final static long DEFAULT_RETRY_INTERVAL = 1000;
+
+	/** Default time an origin is remembered after its last message in milliseconds. */
+	public final static long DEFAULT_ORIGIN_TIMEOUT = 10 * 60 * 1000;
+
+	/** Type of the record that starts a link, it holds the node id. */
+	final static byte HELLO = 1;
+
+	/** Type of records with a message. */
+	final static byte MESSAGE = 2;
+
+	/** Largest record accepted from a peer, without the length prefix. */
+	final static int MAX_RECORD_LENGTH = 64 * 1024;
+
+	private final static int PREFIX_LENGTH = 4;
+
+	/** Number of sequence numbers that are remembered for each origin. */
+	private final static int WINDOW = 1024;
+
+	private final InetSocketAddress address;
+	private final long nodeId;
+	private final ArrayList<Link> peers = new ArrayList<>();
+	private final CopyOnWriteArrayList<Link> inbound = new CopyOnWriteArrayList<>();
+	private final HashMap<Long, Window> origins = new HashMap<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicBoolean flushPending = new AtomicBoolean();
+	private volatile long dirtySince;
+	private Server server;
+	private Selector selector;
+	private ServerSocketChannel listener;
+	private Thread thread;
+	private volatile boolean running = false;
+	private volatile boolean relay = true;
+	private volatile long batchDelay = 0;
+	private volatile long retryInterval = DEFAULT_RETRY_INTERVAL;
+	private volatile long originTimeout = DEFAULT_ORIGIN_TIMEOUT;
+	private long nextOriginCheck = 0;
+	private volatile int lowWatermark = 256 * 1024;
+	private volatile int highWatermark = 1024 * 1024;
+	private boolean congested = false;
+
+	private final LongAdder forwarded = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private volatile long received = 0;
+	private volatile long duplicates = 0;
+	private volatile long writes = 0;
+	private volatile long pauses = 0;
+	private volatile int knownOrigins = 0;
+
+	/** @param address where the node listens for links from its peers */
+	public Mesh(InetSocketAddress address) {
+		this.address = address;
+
+		long id;
+
+		do {
+			id = ThreadLocalRandom.current().nextLong();
+		} while (id == 0);
+
+		nodeId = id;
+	}
+
+	/** Connect to a peer when the server starts, call it before start. The
+	 * node reconnects if the link is lost.
+	 * @param peer the address where the peer listens for links
+	 */
+	public void addPeer(InetSocketAddress peer) {
+		peers.add(new Link(peer));
+	}
+
+	/** Open the peer port and start the link thread, called by the server. */
+	void start(Server server) throws IOException {
+		this.server = server;
+		selector = Selector.open();
+		listener = ServerSocketChannel.open();
+		listener.configureBlocking(false);
+		listener.bind(address);
+		listener.register(selector, SelectionKey.OP_ACCEPT);
+
+		running = true;
+		thread = new Thread(this, "Mesh " + address.getPort());
+		thread.start();
+	}
+
+	/** Close all links, called by the server when it stops. */
+	void stop() {
+		if (thread == null) {
+			return;
+		}
+
+		running = false;
+		selector.wakeup();
+
+		boolean done = false;
+		while (!done) {
+			try {
+				thread.join();
+				done = true;
+			} catch (InterruptedException e) {
+				ServerLog.info("Mesh was interrupted.");
+			}
+		}
+
+		thread = null;
+	}
+
+	/** Send a message from a client of this node to the peers, called by
+	 * the thread that accepted the message. The record is encoded once and
+	 * shared by all links.
+	 * @param frame the message as it was received
+	 * @param topic the topic of the message or null for a broadcast
+	 */
+	void forward(Frame frame, String topic) {
+		if (!running || (peers.isEmpty() && inbound.isEmpty())) {
+			return;
+		}
+
+		Frame record = encode(nodeId, sequence.incrementAndGet(), topic, frame);
+
+		try {
+			send(record, 0, 0);
+			forwarded.increment();
+		} finally {
+			record.release();
+		}
+	}
+
+	/** Queue a record on the links to all peers except two.
+	 * @param from peer that sent the record, zero for none
+	 * @param origin node that accepted the message
+	 */
+	private void send(Frame record, long from, long origin) {
+		boolean queued = false;
+
+		for (Link link : peers) {
+			queued |= send(link, record, from, origin);
+		}
+
+		for (Link link : inbound) {
+			// a link that is not up yet has not been introduced
+			if (link.connected && !hasPeerLink(link.peerId)) {
+				queued |= send(link, record, from, origin);
+			}
+		}
+
+		if (queued && flushPending.compareAndSet(false, true)) {
+			dirtySince = System.nanoTime();
+
+			if (Thread.currentThread() != thread) {
+				selector.wakeup();
+			}
+		}
+	}
+
+	/** @return true if the record was queued */
+	private boolean send(Link link, Frame record, long from, long origin) {
+		synchronized (link) {
+			if (!link.connected) {
+				dropped.increment();
+				return false;
+			}
+
+			if (link.peerId == from || link.peerId == origin) {
+				return false;
+			}
+
+			try {
+				link.out.add(record);
+				return true;
+			} catch (BufferOverflowException bufferOverflow) {
+				dropped.increment();
+				return false;
+			}
+		}
+	}
+
+	/** True if this node has opened a link to the peer and it is up, the 
+	 * link that the peer opened is not used for messages then.
+	 */
+	private boolean hasPeerLink(long peerId) {
+		for (Link link : peers) {
+			if (link.connected && link.peerId == peerId) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static Frame encode(long origin, long sequence, String topic, Frame frame) {
+		byte[] name = topic == null ? new byte[0] : topic.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(PREFIX_LENGTH + 1 + 8 + 8 + 2 + name.length + frame.length());
+		record.putInt(record.capacity() - PREFIX_LENGTH);
+		record.put(MESSAGE);
+		record.putLong(origin);
+		record.putLong(sequence);
+		record.putShort((short) name.length);
+		record.put(name);
+		frame.copyTo(0, frame.length(), record);
+		return Frame.wrap(record.array());
+	}
+
+	private Frame hello() {
+		ByteBuffer record = ByteBuffer.allocate(PREFIX_LENGTH + 1 + 8);
+		record.putInt(1 + 8);
+		record.put(HELLO);
+		record.putLong(nodeId);
+		return Frame.wrap(record.array());
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			long now = System.currentTimeMillis();
+			long delay = connectPeers(now);
+			long flushWait = getFlushWait();
+
+			if (!origins.isEmpty()) {
+				long originWait = Math.max(1, nextOriginCheck - now);
+				delay = delay == 0 ? originWait : Math.min(delay, originWait);
+			}
+
+			try {
+				if (flushWait == 0) {
+					selector.selectNow();
+				} else {
+					if (flushWait > 0) {
+						// the select has millisecond resolution, round the batch delay up
+						long flushMillis = (flushWait + 999999) / 1000000;
+						delay = delay == 0 ? flushMillis : Math.min(delay, flushMillis);
+					}
+
+					selector.select(delay);
+				}
+			} catch (IOException exception) {
+				ServerLog.error(exception.getMessage());
+				continue;
+			} catch (ClosedSelectorException selectorException) {
+				ServerLog.error("Selector is closed.");
+				break;
+			}
+
+			processSelectedKeys();
+			flushLinks();
+			updateCongestion();
+			expireOrigins(System.currentTimeMillis());
+		}
+
+		closeLinks();
+	}
+
+	/** Connect the peers that are due for a new attempt.
+	 * @return milliseconds until the next attempt, zero if no peer is waiting
+	 */
+	private long connectPeers(long now) {
+		long delay = 0;
+
+		for (Link link : peers) {
+			if (link.channel != null) {
+				continue;
+			}
+
+			long wait = link.retryAt - now;
+
+			if (wait > 0) {
+				delay = delay == 0 ? wait : Math.min(delay, wait);
+				continue;
+			}
+
+			try {
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				link.channel = channel;
+				link.key = channel.register(selector, SelectionKey.OP_CONNECT, link);
+
+				if (channel.connect(link.address)) {
+					connected(link);
+				}
+			} catch (IOException exception) {
+				ServerLog.info("Can't connect to peer {} {}", link, exception.getMessage());
+				close(link);
+				delay = delay == 0 ? retryInterval : Math.min(delay, retryInterval);
+			}
+		}
+
+		return delay;
+	}
+
+	private void processSelectedKeys() {
+		Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+		while (iterator.hasNext()) {
+			SelectionKey key = iterator.next();
+			iterator.remove();
+
+			try {
+				if (!key.isValid()) {
+					continue;
+				}
+
+				if (key.isAcceptable()) {
+					acceptLinks();
+					continue;
+				}
+
+				Link link = (Link) key.attachment();
+
+				if (key.isConnectable()) {
+					finishConnect(link);
+					continue;
+				}
+
+				if (key.isReadable()) {
+					read(link);
+				}
+
+				if (key.isValid() && key.isWritable()) {
+					flush(link);
+				}
+			} catch (CancelledKeyException exception) {
+				ServerLog.info("Mesh link cancelled.");
+			} catch (IOException exception) {
+				Link link = (Link) key.attachment();
+
+				if (link != null) {
+					ServerLog.error("{} on mesh link {}", exception.getMessage(), link);
+					close(link);
+				}
+			}
+		}
+	}
+
+	private void acceptLinks() throws IOException {
+		SocketChannel channel;
+
+		while ((channel = listener.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			Link link = new Link(null);
+			link.channel = channel;
+			link.key = channel.register(selector, congested ? 0 : SelectionKey.OP_READ, link);
+			inbound.add(link);
+			ServerLog.connection("New mesh link {}", channel);
+		}
+	}
+
+	private void finishConnect(Link link) {
+		try {
+			if (link.channel.finishConnect()) {
+				connected(link);
+			}
+		} catch (IOException exception) {
+			// the peer may not be up yet
+			ServerLog.info("Can't connect to peer {} {}", link, exception.getMessage());
+			close(link);
+		}
+	}
+
+	/** The connection to a peer is open, introduce this node. The link
+	 * carries messages when the peer has answered.
+	 */
+	private void connected(Link link) {
+		Frame hello = hello();
+
+		try {
+			synchronized (link) {
+				link.out.add(hello);
+			}
+		} finally {
+			hello.release();
+		}
+
+		link.key.interestOps(congested ? 0 : SelectionKey.OP_READ);
+		flush(link);
+	}
+
+	/** Read the records from a peer, called by the link thread. */
+	private void read(Link link) throws IOException {
+		ByteBuffer in = link.in;
+		int bytes = link.channel.read(in);
+
+		if (bytes < 0) {
+			ServerLog.info("Mesh link closed by peer {}", link);
+			close(link);
+			return;
+		}
+
+		in.flip();
+
+		while (in.remaining() >= PREFIX_LENGTH) {
+			int length = in.getInt(in.position());
+
+			if (length < 1 || length > MAX_RECORD_LENGTH) {
+				throw new IOException("Invalid record length " + length);
+			}
+
+			if (in.remaining() < PREFIX_LENGTH + length) {
+				break;
+			}
+
+			int start = in.position();
+			in.position(start + PREFIX_LENGTH);
+			byte type = in.get();
+
+			if (type == HELLO) {
+				hello(link, in.getLong());
+			} else if (type == MESSAGE) {
+				receive(link, in, start, length);
+			} else {
+				throw new IOException("Unknown record type " + type);
+			}
+
+			in.position(start + PREFIX_LENGTH + length);
+		}
+
+		in.compact();
+	}
+
+	private void hello(Link link, long peerId) {
+		boolean reply = link.address == null;
+
+		synchronized (link) {
+			link.peerId = peerId;
+			link.connected = true;
+		}
+
+		ServerLog.info("Mesh link to node {} is up {}", Long.toHexString(peerId), link);
+
+		if (reply) {
+			connected(link);
+		}
+	}
+
+	/** Deliver a message from a peer to the clients of this node and relay
+	 * it to the other peers, duplicates are dropped.
+	 */
+	private void receive(Link link, ByteBuffer in, int start, int length) throws IOException {
+		long origin = in.getLong();
+		long number = in.getLong();
+		int nameLength = in.getShort() & 0xFFFF;
+		int payload = start + PREFIX_LENGTH + length - in.position() - nameLength;
+
+		if (!link.connected || payload <= 0) {
+			throw new IOException("Invalid message record.");
+		}
+
+		if (origin == nodeId || !accept(origin, number, System.currentTimeMillis())) {
+			duplicates++;
+			return;
+		}
+
+		byte[] name = new byte[nameLength];
+		in.get(name);
+		String topic = nameLength == 0 ? null : new String(name, StandardCharsets.UTF_8);
+
+		byte[] data = new byte[payload];
+		in.get(data);
+		received++;
+
+		if (relay && peers.size() + inbound.size() > 1) {
+			byte[] bytes = new byte[PREFIX_LENGTH + length];
+			ByteBuffer view = in.duplicate();
+			view.position(start);
+			view.get(bytes);
+			Frame record = Frame.wrap(bytes);
+
+			try {
+				send(record, link.peerId, origin);
+			} finally {
+				record.release();
+			}
+		}
+
+		Frame frame = Frame.wrap(data);
+		long now = System.nanoTime();
+		frame.setTimes(now, now);
+		server.distribute(frame, topic);
+	}
+
+	/** Check the sequence number of a message against the numbers that have
+	 * been seen from its origin.
+	 * @return false if the message is a duplicate
+	 */
+	private boolean accept(long origin, long number, long now) {
+		Window window = origins.get(origin);
+
+		if (window == null) {
+			if (origins.isEmpty()) {
+				nextOriginCheck = now + Math.max(1, originTimeout / 2);
+			}
+
+			window = new Window();
+			origins.put(origin, window);
+			knownOrigins = origins.size();
+		}
+
+		window.lastMessage = now;
+		return window.accept(number);
+	}
+
+	/** Forget the origins that have been quiet for the origin timeout, a node
+	 * that restarts comes back with a new id.
+	 */
+	private void expireOrigins(long now) {
+		if (origins.isEmpty() || now < nextOriginCheck) {
+			return;
+		}
+
+		long timeout = originTimeout;
+		origins.values().removeIf(window -> now - window.lastMessage >= timeout);
+		knownOrigins = origins.size();
+		nextOriginCheck = now + Math.max(1, timeout / 2);
+	}
+
+	/** Time left of the batch delay.
+	 * @return nanoseconds until the links should be flushed, zero if they are
+	 * due and -1 if there is nothing to flush
+	 */
+	private long getFlushWait() {
+		if (!flushPending.get()) {
+			return -1;
+		}
+
+		long delay = batchDelay * 1000;
+
+		if (delay == 0) {
+			return 0;
+		}
+
+		return Math.max(0, dirtySince + delay - System.nanoTime());
+	}
+
+	private void flushLinks() {
+		if (getFlushWait() != 0) {
+			// nothing queued, or the select wakes up when the batch delay is over
+			return;
+		}
+
+		flushPending.set(false);
+
+		for (Link link : peers) {
+			flush(link);
+		}
+
+		for (Link link : inbound) {
+			flush(link);
+		}
+	}
+
+	/** Write the queued records of a link with one gathering write, the
+	 * rest is written when the socket becomes writable.
+	 */
+	private void flush(Link link) {
+		synchronized (link) {
+			SocketChannel channel = link.channel;
+			OutboundQueue queue = link.out;
+
+			if (channel == null || !channel.isConnected() || queue.size() == 0) {
+				return;
+			}
+
+			try {
+				int views = queue.gather();
+				long written = channel.write(queue.getViews(), 0, views);
+				queue.removeFirst(written);
+				writes++;
+
+				int operations = link.key.interestOps() & ~SelectionKey.OP_WRITE;
+				link.key.interestOps(queue.size() > 0 ? operations | SelectionKey.OP_WRITE : operations);
+
+				if (queue.size() == 0) {
+					queue.release();
+				}
+			} catch (CancelledKeyException exception) {
+				ServerLog.info("Mesh link cancelled.");
+			} catch (IOException exception) {
+				ServerLog.error("{} in write to mesh link {}", exception.getMessage(), link);
+				close(link);
+			}
+		}
+	}
+
+	/** Stop reading from the peers when a link has queued more than the
+	 * high watermark, start again when all links are below the low watermark.
+	 * Links in both directions carry messages and are paused alike.
+	 */
+	private void updateCongestion() {
+		boolean aboveHigh = false;
+		boolean aboveLow = false;
+
+		for (Link link : peers) {
+			synchronized (link) {
+				int size = link.out.size();
+				aboveHigh |= size > highWatermark;
+				aboveLow |= size > lowWatermark;
+			}
+		}
+
+		for (Link link : inbound) {
+			synchronized (link) {
+				int size = link.out.size();
+				aboveHigh |= size > highWatermark;
+				aboveLow |= size > lowWatermark;
+			}
+		}
+
+		boolean next = congested ? aboveLow : aboveHigh;
+
+		if (next == congested) {
+			return;
+		}
+
+		congested = next;
+
+		if (next) {
+			pauses++;
+		}
+
+		for (Link link : peers) {
+			// links that are still connecting start paused in connected()
+			if (link.channel != null && link.channel.isConnected()) {
+				setReading(link, !next);
+			}
+		}
+
+		for (Link link : inbound) {
+			setReading(link, !next);
+		}
+	}
+
+	private void setReading(Link link, boolean reading) {
+		try {
+			int operations = link.key.interestOps() & ~SelectionKey.OP_READ;
+			link.key.interestOps(reading ? operations | SelectionKey.OP_READ : operations);
+		} catch (CancelledKeyException exception) {
+			ServerLog.info("Mesh link cancelled.");
+		}
+	}
+
+	/** Close a link, a link to a peer is opened again after the retry
+	 * interval.
+	 */
+	private void close(Link link) {
+		synchronized (link) {
+			if (link.key != null) {
+				link.key.cancel();
+			}
+
+			try {
+				if (link.channel != null) {
+					link.channel.close();
+				}
+			} catch (IOException exception) {
+				ServerLog.error("{} (mesh link)", exception.getMessage());
+			}
+
+			link.out.clear();
+			link.in.clear();
+			link.channel = null;
+			link.key = null;
+			link.connected = false;
+			link.retryAt = System.currentTimeMillis() + retryInterval;
+		}
+
+		if (link.address == null) {
+			inbound.remove(link);
+		}
+	}
+
+	private void closeLinks() {
+		for (Link link : peers) {
+			close(link);
+		}
+
+		for (Link link : inbound) {
+			close(link);
+		}
+
+		try {
+			listener.close();
+			selector.close();
+		} catch (IOException exception) {
+			ServerLog.error("{} (mesh)", exception.getMessage());
+		}
+	}
+
+	/** Relay the messages from one peer to the other peers, turn it off in
+	 * a full mesh where every node has a link to every other node.
+	 */
+	public void setRelay(boolean relay) {
+		this.relay = relay;
+	}
+
+	public boolean isRelay() {
+		return relay;
+	}
+
+	/** Wait before writing to the peers, messages that arrive during the
+	 * delay are sent in the same batch.
+	 * @param microseconds the delay, zero writes as soon as possible
+	 */
+	public void setBatchDelay(long microseconds) {
+		batchDelay = Math.max(0, microseconds);
+	}
+
+	public long getBatchDelay() {
+		return batchDelay;
+	}
+
+	/** Time between two attempts to connect to a peer. */
+	public void setRetryInterval(long milliseconds) {
+		retryInterval = Math.max(1, milliseconds);
+	}
+
+	public long getRetryInterval() {
+		return retryInterval;
+	}
+
+	/** Time an origin is remembered after its last message. A copy of a
+	 * message that arrives later than this is delivered again.
+	 */
+	public void setOriginTimeout(long milliseconds) {
+		originTimeout = Math.max(1, milliseconds);
+	}
+
+	public long getOriginTimeout() {
+		return originTimeout;
+	}
+
+	/** Limits for the records queued on each link. The node stops reading
+	 * from its peers when a link is above the high watermark.
+	 * @param low watermark in bytes
+	 * @param high watermark in bytes, at most the capacity of a link
+	 */
+	public void setLinkWatermarks(int low, int high) {
+		if (low < 0 || low > high) {
+			throw new IllegalArgumentException("Invalid watermarks " + low + ", " + high);
+		}
+
+		highWatermark = Math.min(high, DEFAULT_LINK_CAPACITY);
+		lowWatermark = Math.min(low, highWatermark);
+	}
+
+	public int getLowWatermark() {
+		return lowWatermark;
+	}
+
+	public int getHighWatermark() {
+		return highWatermark;
+	}
+
+	/** The random id of this node, the origin of the messages it forwards. */
+	public long getNodeId() {
+		return nodeId;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/** Number of links to peers that have answered. */
+	public int getConnectedPeers() {
+		int count = 0;
+
+		for (Link link : peers) {
+			if (link.connected) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/** Number of links that peers have opened to this node and that are up. */
+	public int getInboundLinks() {
+		int count = 0;
+
+		for (Link link : inbound) {
+			if (link.connected) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/** Number of nodes whose sequence numbers are remembered. */
+	public int getOrigins() {
+		return knownOrigins;
+	}
+
+	/** Messages from clients of this node that were sent to the peers. */
+	public long getForwardedMessages() {
+		return forwarded.sum();
+	}
+
+	/** Messages from peers that were delivered to the clients of this node. */
+	public long getReceivedMessages() {
+		return received;
+	}
+
+	/** Messages from peers that had been received already. */
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	/** Records that were not sent to a peer because its link was down or full. */
+	public long getDroppedMessages() {
+		return dropped.sum();
+	}
+
+	/** Number of writes to the links, each one sends a batch of records. */
+	public long getWrites() {
+		return writes;
+	}
+
+	/** Number of times the node stopped reading from its peers. */
+	public long getPauses() {
+		return pauses;
+	}
+
+	/** A link to or from a peer. The queue and the state that other threads
+	 * read are guarded by the link, the channel is used by the link thread.
+	 */
+	private class Link {
+		/** The address of the peer, null for links that the peer opened. */
+		final InetSocketAddress address;
+		final OutboundQueue out = new OutboundQueue(DEFAULT_LINK_CAPACITY);
+		final ByteBuffer in = ByteBuffer.allocate(2 * (PREFIX_LENGTH + MAX_RECORD_LENGTH));
+		SocketChannel channel;
+		SelectionKey key;
+		volatile boolean connected = false;
+		long peerId = 0;
+		long retryAt = 0;
+
+		Link(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		@Override
+		public String toString() {
+			SocketChannel channel = this.channel;
+			return address != null ? address.toString() : String.valueOf(channel);
+		}
+	}
+
+	/** The sequence numbers that have been seen from one origin, a bit for
+	 * each of the last numbers below the highest one.
+	 */
+	private static class Window {
+		private final long[] bits = new long[WINDOW / 64];
+		private long highest = 0;
+		long lastMessage = 0;
+
+		boolean accept(long number) {
+			if (number > highest) {
+				if (number - highest >= WINDOW) {
+					Arrays.fill(bits, 0);
+				} else {
+					for (long skipped = highest + 1; skipped < number; skipped++) {
+						clear(skipped);
+					}
+				}
+
+				highest = number;
+				set(number);
+				return true;
+			}
+
+			if (highest - number >= WINDOW || isSet(number)) {
+				return false;
+			}
+
+			set(number);
+			return true;
+		}
+
+		private boolean isSet(long number) {
+			int slot = (int) (number % WINDOW);
+			return (bits[slot >>> 6] & (1L << slot)) != 0;
+		}
+
+		private void set(long number) {
+			int slot = (int) (number % WINDOW);
+			bits[slot >>> 6] |= 1L << slot;
+		}
+
+		private void clear(long number) {
+			int slot = (int) (number % WINDOW);
+			bits[slot >>> 6] &= ~(1L << slot);
+		}
+	}
+}
@@ -92,8 +92,7 @@ public class Message {
 			messageBody = line.substring(dateSeparator);
 		}
 		
-		SimpleDateFormat dateFormat = getDateFormat();
-		Date timeStamp = dateFormat.parse(date);
+		Date timeStamp = new Date(TimestampCodec.getDefault().parse(date));
 		
 		return new Message(name, timeStamp, messageBody.trim());
 	}
@@ -103,7 +102,8 @@ public class Message {
 	}
 	
 	public String toString() {
-		return sender + " " + getDateFormat().format(timeStamp) + " " + body + "\n";
+		String date = TimestampCodec.getDefault().format(timeStamp.getTime());
+		return sender + " " + date + " " + body + "\n";
 	}
 }
 
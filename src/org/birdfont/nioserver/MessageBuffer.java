@@ -1,154 +1,440 @@
 package org.birdfont.nioserver;
 
-import java.io.UnsupportedEncodingException;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
-/** A ring buffer 
+/** A ring buffer. The readable and writable regions can be accessed as one
+* or two views, sockets and SSL engines can read and write straight from the
+* ring without copying the data to a workspace. A buffer created with a pool
+* borrows its memory on the first write and returns it when it is released
+* while empty.
 * @author Johan Mattsson
 */
-public class MessageBuffer {
-	byte[] data;
-	
+public class MessageBuffer implements LineBuffer {
+	private ByteBuffer data;
+	private BufferPool pool;
+	private int capacity;
+
 	int readIndex = 0;
 	int writeIndex = 0;
-	
+
+	private ByteBuffer[] views;
+	private ByteBuffer region;
+
 	public MessageBuffer(int capacity) {
-		data = new byte[capacity];
+		this.capacity = capacity;
+		setData(ByteBuffer.allocate(capacity));
 	}
-	
-	/** Remove the first line from the buffer and return it as a string.
-	 * @return next line or null if no line has been added to the buffer  
+
+	/** Create a buffer that borrows direct memory from a pool when it is used.
+	 * @param capacity minimum capacity of the ring
+	 * @param pool the pool that lends memory to the buffer
 	 */
-	public String nextLine() {
-		final int FIRST_BIT = 1 << 7;
+	public MessageBuffer(int capacity, BufferPool pool) {
+		this.capacity = capacity;
+		this.pool = pool;
+	}
+
+	private void setData(ByteBuffer buffer) {
+		data = buffer;
+
+		if (buffer == null) {
+			views = null;
+			region = null;
+			return;
+		}
+
+		capacity = buffer.capacity();
+		views = new ByteBuffer[] { buffer.duplicate(), buffer.duplicate() };
+		region = buffer.duplicate();
+	}
+
+	/** Make sure that memory has been borrowed before the ring is written. */
+	private void allocate() {
+		if (data == null) {
+			setData(pool.acquire(capacity));
+		}
+	}
+
+	/** Return the memory to the pool if all data has been read.
+	 * @return true if the buffer holds no memory
+	 */
+	public boolean release() {
+		if (pool == null || data == null) {
+			return data == null;
+		}
+
+		if (size() > 0) {
+			return false;
+		}
+
+		ByteBuffer buffer = data;
+		setData(null);
+		readIndex = 0;
+		writeIndex = 0;
+		pool.release(buffer);
+		return true;
+	}
+
+	public boolean isAllocated() {
+		return data != null;
+	}
+
+	/** Change the capacity, the data is moved to a new buffer if memory
+	 * has been borrowed already.
+	 */
+	public void setCapacity(int newCapacity) {
+		if (data == null) {
+			capacity = newCapacity;
+			return;
+		}
+
+		if (newCapacity <= data.capacity()) {
+			return;
+		}
+
 		int size = size();
-		int endOfLine = -1; 
-		int length = 0;
-		
-		for (int i = 0; i < size; i++) {
-			int index = (i + readIndex) % data.length;
-			if ((data[index] & FIRST_BIT) == 0) {
-				if (data[index] == '\n') {
-					endOfLine = index;
-					length++;
-					break;
-				}
-			}
-			length++;
+		ByteBuffer old = data;
+		ByteBuffer oldRegion = region;
+		int oldReadIndex = readIndex;
+
+		if (pool != null) {
+			setData(pool.acquire(newCapacity));
+		} else {
+			setData(ByteBuffer.allocate(newCapacity));
+		}
+
+		readIndex = 0;
+		writeIndex = 0;
+
+		int first = Math.min(size, old.capacity() - oldReadIndex);
+		add(getRegion(oldRegion, oldReadIndex, first));
+		add(getRegion(oldRegion, 0, size - first));
+
+		if (pool != null) {
+			pool.release(old);
 		}
-		
-		if (endOfLine == -1) {
+	}
+
+	/** Remove the first line from the buffer and return it as a string.
+	 * @return next line or null if no line has been added to the buffer
+	 */
+	public String nextLine() {
+		int length = indexOf('\n');
+
+		if (length == -1) {
 			return null;
 		}
 
 		byte[] line = new byte[length];
+		copy(readIndex, line, 0, length);
+		removeFirst(length + 1);
+
+		String nextLine = new String(line, StandardCharsets.UTF_8);
+		return nextLine.trim();
+	}
+
+	/** Find a byte in the readable part of the buffer.
+	 * @return offset from the read index or -1 if the byte was not found
+	 */
+	public int indexOf(char character) {
+		byte element = (byte) character;
+		int size = size();
+		int index = readIndex;
+
 		for (int i = 0; i < size; i++) {
-			int index = (i + readIndex) % data.length;
-			
-			if (index == endOfLine) {
-				break;
+			if (data.get(index) == element) {
+				return i;
+			}
+
+			index++;
+
+			if (index == capacity) {
+				index = 0;
 			}
-			
-			line[i] = data[index];
 		}
-		
-		readIndex = endOfLine + 1;
-		
-		String nextLine = new String(line, Charset.forName("UTF-8"));
-		return nextLine.trim();
+
+		return -1;
+	}
+
+	/** Copy bytes from the ring to an array, at most two bulk copies. */
+	private void copy(int from, byte[] destination, int offset, int length) {
+		int first = Math.min(length, capacity - from);
+		getRegion(region, from, first).get(destination, offset, first);
+
+		if (first < length) {
+			getRegion(region, 0, length - first).get(destination, offset + first, length - first);
+		}
 	}
-	
+
+	/** Read a byte without removing it.
+	 * @param offset offset from the read index
+	 */
+	public byte get(int offset) {
+		int index = readIndex + offset;
+
+		if (index >= capacity) {
+			index -= capacity;
+		}
+
+		return data.get(index);
+	}
+
+	/** Copy bytes without removing them.
+	 * @param offset offset from the read index
+	 */
+	public void get(int offset, byte[] destination, int destinationOffset, int length) {
+		if (offset + length > size()) {
+			throw new BufferUnderflowException();
+		}
+
+		int index = readIndex + offset;
+
+		if (index >= capacity) {
+			index -= capacity;
+		}
+
+		copy(index, destination, destinationOffset, length);
+	}
+
+	private static ByteBuffer getRegion(ByteBuffer view, int start, int length) {
+		view.clear();
+		view.position(start);
+		view.limit(start + length);
+		return view;
+	}
+
 	public void clear() {
 		readIndex = 0;
 		writeIndex = 0;
+		release();
 	}
-	
+
 	public int capacity() {
-		return data.length;
+		return capacity;
+	}
+
+	/** Number of bytes that can be added before the buffer is full. */
+	public int available() {
+		return capacity - 1 - size();
 	}
-	
+
 	public void add(byte element) {
-		if (size() + 1 >= data.length) {
+		if (size() + 1 >= capacity) {
 			throw new BufferOverflowException();
 		}
-		
-		data[writeIndex] = element;
+
+		allocate();
+		data.put(writeIndex, element);
 		writeIndex++;
-		
-		if (writeIndex == data.length) {
+
+		if (writeIndex == capacity) {
 			writeIndex = 0;
 		}
 	}
 
+	public void add(byte[] elements, int offset, int length) {
+		if (size() + length >= capacity) {
+			throw new BufferOverflowException();
+		}
+
+		allocate();
+		int first = Math.min(length, capacity - writeIndex);
+		getRegion(region, writeIndex, first).put(elements, offset, first);
+		getRegion(region, 0, length - first).put(elements, offset + first, length - first);
+		commitWrite(length);
+	}
+
 	public void append(MessageBuffer elements) {
 		int size = elements.size();
-		
-		if (size() + size >= data.length) {
+
+		if (size() + size >= capacity) {
 			throw new BufferOverflowException();
 		}
-		
-		for (int i = 0; i < size; i++) {
-			int index = (i + elements.readIndex) % elements.data.length;
-			add(elements.data[index]);
+
+		int views = elements.readableViews();
+
+		for (int i = 0; i < views; i++) {
+			add(elements.getViews()[i]);
 		}
-		
+
 		elements.clear();
 	}
-	
+
 	public void add(ByteBuffer elements) {
-		if (size() + elements.remaining() >= data.length) {
+		int length = elements.remaining();
+
+		if (size() + length >= capacity) {
 			throw new BufferOverflowException();
 		}
-		
-		while (elements.hasRemaining()) {
-			add(elements.get());
+
+		if (length == 0) {
+			return;
 		}
+
+		allocate();
+		int first = Math.min(length, capacity - writeIndex);
+		int limit = elements.limit();
+
+		elements.limit(elements.position() + first);
+		getRegion(region, writeIndex, first).put(elements);
+		elements.limit(limit);
+		getRegion(region, 0, length - first).put(elements);
+
+		commitWrite(length);
 	}
 
 	public void add(String text) {
-		try {
-			byte[] bytes;
-			bytes = text.getBytes("UTF-8");
-			
-			for (int j = 0; j < bytes.length; j++) {
-				add(bytes[j]);
-			}
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-		}
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		add(bytes, 0, bytes.length);
 	}
-	
+
 	public void removeFirst(int bytes) {
 		if (bytes > size()) {
 			throw new BufferUnderflowException();
 		}
-		
+
+		if (bytes == 0) {
+			return;
+		}
+
 		readIndex += bytes;
-		readIndex %= data.length;
+		readIndex %= capacity;
+	}
+
+	/** Mark bytes that have been written to the writable views as readable. */
+	public void commitWrite(int bytes) {
+		if (bytes > available()) {
+			throw new BufferOverflowException();
+		}
+
+		if (bytes == 0) {
+			return;
+		}
+
+		writeIndex += bytes;
+		writeIndex %= capacity;
+	}
+
+	/** Create views of the readable bytes, one view or two if the data wraps
+	 * around the end of the ring.
+	 * @return number of views in the array returned by getViews
+	 */
+	public int readableViews() {
+		if (data == null) {
+			return 0;
+		}
+
+		if (writeIndex >= readIndex) {
+			return setViews(readIndex, writeIndex - readIndex, 0, 0);
+		}
+
+		return setViews(readIndex, capacity - readIndex, 0, writeIndex);
+	}
+
+	/** Create views of the free space in the ring, the bytes written to the
+	 * views must be committed with commitWrite.
+	 * @return number of views in the array returned by getViews
+	 */
+	public int writableViews() {
+		allocate();
+
+		if (writeIndex >= readIndex) {
+			if (readIndex == 0) {
+				return setViews(writeIndex, capacity - 1 - writeIndex, 0, 0);
+			}
+
+			return setViews(writeIndex, capacity - writeIndex, 0, readIndex - 1);
+		}
+
+		return setViews(writeIndex, readIndex - 1 - writeIndex, 0, 0);
+	}
+
+	public ByteBuffer[] getViews() {
+		return views;
+	}
+
+	private int setViews(int firstStart, int firstLength, int secondStart, int secondLength) {
+		if (firstLength == 0) {
+			return 0;
+		}
+
+		getRegion(views[0], firstStart, firstLength);
+
+		if (secondLength == 0) {
+			return 1;
+		}
+
+		getRegion(views[1], secondStart, secondLength);
+		return 2;
+	}
+
+	/** A single view of all readable bytes, used where the consumer can't
+	 * handle scattered data. The ring is compacted if the data wraps around.
+	 */
+	public ByteBuffer readableRegion() {
+		allocate();
+
+		if (writeIndex < readIndex) {
+			compact();
+		}
+
+		return getRegion(views[0], readIndex, writeIndex - readIndex);
+	}
+
+	/** A single view of the free space after the readable bytes. The ring is
+	 * compacted if the contiguous free space is smaller than the requested size.
+	 * @param minimum the number of bytes the caller wants to write
+	 */
+	public ByteBuffer writableRegion(int minimum) {
+		if (writableViews() == 0 || views[0].remaining() < minimum) {
+			compact();
+			writableViews();
+		}
+
+		return views[0];
 	}
-	
+
+	/** Move the readable bytes to the beginning of the ring. */
+	public void compact() {
+		int size = size();
+
+		if (data == null) {
+			return;
+		}
+
+		if (writeIndex >= readIndex) {
+			getRegion(region, readIndex, size).compact();
+		} else {
+			byte[] head = new byte[writeIndex];
+			getRegion(region, 0, writeIndex).get(head);
+			getRegion(region, readIndex, capacity - readIndex).compact();
+			getRegion(region, capacity - readIndex, writeIndex).put(head);
+		}
+
+		readIndex = 0;
+		writeIndex = size;
+	}
+
 	public ByteBuffer asByteBuffer () {
 		int size = size();
-		ByteBuffer buffer = ByteBuffer.allocate(size);
+		byte[] copy = new byte[size];
 
-		for (int i = 0; i < size; i++) {
-			int index = (i + readIndex) % data.length;
-			buffer.put(data[index]);
+		if (size > 0) {
+			copy(readIndex, copy, 0, size);
 		}
-		
-		buffer.flip();
-		return buffer;
+
+		return ByteBuffer.wrap(copy);
 	}
-	
+
 	public int size() {
 		if (writeIndex >= readIndex) {
 			return writeIndex - readIndex;
 		}
-		
-		return (writeIndex + data.length) - readIndex;
+
+		return (writeIndex + capacity) - readIndex;
 	}
 }
 
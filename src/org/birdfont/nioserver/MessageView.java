@@ -0,0 +1,246 @@
+package org.birdfont.nioserver;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/** A reusable view of a message in a LineBuffer. A text line is 
+ * validated in place, the layout is Name YYYY-MM-dd HH:mm:ss Message. Binary
+ * frames are decoded by their codec. Valid messages can be copied to a frame
+ * without decoding the text.
+ */
+public final class MessageView {
+	private final TimestampCodec codec;
+	private final byte[] timeStampBytes = new byte[TimestampCodec.LENGTH];
+
+	private LineBuffer buffer;
+	private int start;
+	private int end;
+	private int nameEnd;
+	private int bodyStart;
+	private long timeStamp;
+	private int frameLength;
+	private boolean binary;
+
+	public MessageView() {
+		this(TimestampCodec.getDefault());
+	}
+
+	public MessageView(TimestampCodec codec) {
+		this.codec = codec;
+	}
+
+	/** Point the view to the first line in a buffer. Whitespace around the
+	 * line is ignored, the line stays in the buffer.
+	 * @param buffer the buffer with the line
+	 * @param length offset of the line break from the read index
+	 */
+	public void wrap(LineBuffer buffer, int length) {
+		wrap(buffer, 0, length);
+	}
+
+	/** Point the view to text in a buffer, like a command in a binary frame.
+	 * @param from offset of the text from the read index
+	 * @param to offset of the end of the text
+	 */
+	public void wrap(LineBuffer buffer, int from, int to) {
+		this.buffer = buffer;
+		start = from;
+		end = to;
+		binary = false;
+
+		while (start < end && isWhitespace(buffer.get(start))) {
+			start++;
+		}
+
+		while (end > start && isWhitespace(buffer.get(end - 1))) {
+			end--;
+		}
+
+		nameEnd = -1;
+		bodyStart = -1;
+		timeStamp = 0;
+	}
+
+	/** Point the view to a message in a binary frame that starts at the read
+	 * index, the frame has been validated by the codec.
+	 * @param frameLength length of the whole frame
+	 * @param senderStart offset of the sender
+	 * @param timeStamp milliseconds since the epoch
+	 * @param bodyStart offset of the body, the body ends with the frame
+	 */
+	public void wrapMessage(LineBuffer buffer, int frameLength, int senderStart, 
+			int senderLength, long timeStamp, int bodyStart) {
+		this.buffer = buffer;
+		this.frameLength = frameLength;
+		this.timeStamp = timeStamp;
+		this.bodyStart = bodyStart;
+		start = senderStart;
+		nameEnd = senderStart + senderLength;
+		end = frameLength;
+		binary = true;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		// same as String.trim, bytes in multi byte characters are not whitespace
+		return (b & 0xFF) <= ' ';
+	}
+
+	public boolean isEmpty() {
+		return start == end;
+	}
+
+	/** Compare the line to a command like CLOSE. */
+	public boolean equals(String command) {
+		int length = command.length();
+
+		if (binary) {
+			return false;
+		}
+
+		if (length != end - start) {
+			return false;
+		}
+
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(start + i) != command.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/** Check for a command with one argument like JOIN topic. The argument
+	 * may not contain spaces, messages from a sender with the same name as
+	 * the command are not mistaken for commands.
+	 */
+	public boolean isCommand(String command) {
+		int length = command.length();
+
+		if (binary) {
+			return false;
+		}
+
+		if (end - start <= length + 1 || buffer.get(start + length) != ' ') {
+			return false;
+		}
+
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(start + i) != command.charAt(i)) {
+				return false;
+			}
+		}
+
+		for (int i = start + length + 1; i < end; i++) {
+			if (buffer.get(i) == ' ') {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/** The argument of a command, call isCommand first. */
+	public String getArgument(String command) {
+		int offset = start + command.length() + 1;
+		return decode(offset, end - offset);
+	}
+
+	/** Validate the line as a message.
+	 * @throws ParseException if the message is malformed
+	 */
+	public void parse() throws ParseException {
+		if (binary) {
+			return;
+		}
+
+		nameEnd = start;
+
+		while (nameEnd < end && buffer.get(nameEnd) != ' ') {
+			nameEnd++;
+		}
+
+		int timeStampStart = nameEnd + 1;
+		int timeStampEnd = timeStampStart + TimestampCodec.LENGTH;
+
+		if (nameEnd == start || timeStampEnd > end) {
+			throw new ParseException("Invalid message.", nameEnd);
+		}
+
+		buffer.get(timeStampStart, timeStampBytes, 0, TimestampCodec.LENGTH);
+		timeStamp = codec.parse(timeStampBytes, 0);
+
+		if (timeStampEnd == end) { // empty message
+			bodyStart = end;
+		} else if (buffer.get(timeStampEnd) == ' ') {
+			bodyStart = timeStampEnd + 1;
+		} else {
+			throw new ParseException("Invalid message.", timeStampEnd);
+		}
+	}
+
+	public int getSenderLength() {
+		return nameEnd - start;
+	}
+
+	/** Time stamp in milliseconds since the epoch. */
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+
+	public int getBodyLength() {
+		return end - bodyStart;
+	}
+
+	public boolean hasBody() {
+		return bodyStart < end;
+	}
+
+	/** The topic of a message with a body like #topic text, null if the 
+	 * message is for all connections.
+	 */
+	public String getTopic() {
+		if (!hasBody() || buffer.get(bodyStart) != '#') {
+			return null;
+		}
+
+		int topicEnd = bodyStart + 1;
+
+		while (topicEnd < end && buffer.get(topicEnd) != ' ') {
+			topicEnd++;
+		}
+
+		if (topicEnd == bodyStart + 1) {
+			return null;
+		}
+
+		return decode(bodyStart + 1, topicEnd - bodyStart - 1);
+	}
+
+	/** Decode the sender, this creates a string. */
+	public String getSender() {
+		return decode(start, getSenderLength());
+	}
+
+	/** Decode the message body, this creates a string. */
+	public String getBody() {
+		return decode(bodyStart, getBodyLength()).trim();
+	}
+
+	private String decode(int offset, int length) {
+		byte[] text = new byte[length];
+		buffer.get(offset, text, 0, length);
+		return new String(text, StandardCharsets.UTF_8);
+	}
+
+	/** Copy the message to a new frame for broadcasting, the frame has the
+	 * encoding that the message arrived in.
+	 */
+	public Frame toFrame() {
+		if (binary) {
+			return Frame.copyBytes(buffer, 0, frameLength);
+		}
+
+		return Frame.copyOf(buffer, start, end - start);
+	}
+}
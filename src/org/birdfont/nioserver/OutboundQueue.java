@@ -0,0 +1,202 @@
+package org.birdfont.nioserver;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/** A queue of shared frames waiting to be written to one connection. The 
+ * queue only holds references to the frames, the bytes are copied when they
+ * are written to the socket or wrapped by the SSL engine.
+ */
+class OutboundQueue {
+	/** Maximum number of frames in one gathering write. */
+	public final static int MAX_GATHER = 64;
+	
+	private final static ByteBuffer[] NO_VIEWS = new ByteBuffer[0];
+	
+	// allocated while frames are queued
+	private ArrayDeque<Frame> frames;
+	private ByteBuffer[] views;
+	private int headOffset = 0;
+	private int gathered = 0;
+	private int size = 0;
+	private int capacity;
+
+	public OutboundQueue(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/** Add a frame to the queue, the queue retains its own reference.
+	 * @throws BufferOverflowException if the queue would exceed its capacity
+	 */
+	public void add(Frame frame) {
+		if (size + frame.length() > capacity) {
+			throw new BufferOverflowException();
+		}
+
+		if (frames == null) {
+			frames = new ArrayDeque<>();
+		}
+
+		frames.add(frame.retain());
+		size += frame.length();
+	}
+
+	/** Create views of the queued bytes for a gathering write.
+	 * @return number of views in the array returned by getViews
+	 */
+	public int gather() {
+		int count = 0;
+		int offset = headOffset;
+
+		if (frames == null) {
+			return 0;
+		}
+
+		if (views == null) {
+			views = new ByteBuffer[Math.min(MAX_GATHER, Math.max(frames.size(), 4))];
+		}
+
+		for (Frame frame : frames) {
+			if (count == views.length) {
+				if (views.length == MAX_GATHER) {
+					break;
+				}
+
+				views = Arrays.copyOf(views, Math.min(MAX_GATHER, 2 * views.length));
+			}
+
+			views[count] = frame.view(offset, views[count]);
+			offset = 0;
+			count++;
+		}
+
+		gathered = count;
+		return count;
+	}
+
+	public ByteBuffer[] getViews() {
+		return views == null ? NO_VIEWS : views;
+	}
+
+	/** Remove bytes that have been written and release frames that are done. */
+	public void removeFirst(long bytes) {
+		removeFirst(bytes, null, null);
+	}
+
+	/** Remove bytes and record the latency of frames that are done.
+	 * @param latency statistics or null
+	 * @param stage WRITE if the bytes went to the socket, WRAP if they were
+	 * consumed by the SSL engine
+	 * @return read time of the oldest measured frame that is done, zero if
+	 * there is none
+	 */
+	public long removeFirst(long bytes, LatencyStatistics latency, LatencyStatistics.Stage stage) {
+		if (bytes > size) {
+			throw new BufferUnderflowException();
+		}
+
+		size -= bytes;
+		long now = 0;
+		long oldest = 0;
+		int done = 0;
+
+		while (bytes > 0) {
+			Frame head = frames.peek();
+			int remaining = head.length() - headOffset;
+
+			if (bytes < remaining) {
+				headOffset += bytes;
+				break;
+			}
+
+			bytes -= remaining;
+
+			if (latency != null && head.getReadTime() != 0) {
+				if (now == 0) {
+					now = System.nanoTime();
+					oldest = head.getReadTime();
+				}
+
+				latency.recordFrame(head, stage, now);
+			}
+
+			frames.poll().release();
+			headOffset = 0;
+			gathered = Math.max(0, gathered - 1);
+			done++;
+		}
+
+		// the views of the remaining frames move with them to be reused
+		if (done > 0 && views != null) {
+			int shift = Math.min(done, views.length);
+			System.arraycopy(views, shift, views, 0, views.length - shift);
+			Arrays.fill(views, views.length - shift, views.length, null);
+		}
+
+		return oldest;
+	}
+
+	/** Drop whole frames from the head of the queue. Frames that may be in 
+	 * flight, since the last gather or partially written, are kept.
+	 * @param bytes the number of bytes to free
+	 * @return number of dropped frames
+	 */
+	public int dropOldest(long bytes) {
+		if (frames == null) {
+			return 0;
+		}
+
+		int keep = Math.max(gathered, headOffset > 0 ? 1 : 0);
+		int dropped = 0;
+		long freed = 0;
+		Iterator<Frame> iterator = frames.iterator();
+
+		for (int i = 0; i < keep && iterator.hasNext(); i++) {
+			iterator.next();
+		}
+
+		while (freed < bytes && iterator.hasNext()) {
+			Frame frame = iterator.next();
+			iterator.remove();
+			freed += frame.length();
+			size -= frame.length();
+			frame.release();
+			dropped++;
+		}
+
+		return dropped;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public void clear() {
+		Frame frame;
+
+		while (frames != null && (frame = frames.poll()) != null) {
+			frame.release();
+		}
+
+		headOffset = 0;
+		gathered = 0;
+		size = 0;
+		release();
+	}
+
+	/** Drop the per connection state when the queue is drained. */
+	public void release() {
+		if (size == 0) {
+			frames = null;
+			views = null;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package org.birdfont.nioserver;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** An event loop with its own selector. Each client connection is pinned to
+ * one reactor for its whole life, the server spreads new connections over
+ * all reactors. Connections with new output are marked as dirty and flushed 
+ * once per iteration of the loop, messages that arrive in the same iteration
+ * go out in one gathering write. Other threads hand work to the reactor 
+ * through a task queue, the selector is woken up once for all tasks and 
+ * dirty connections that arrive while the loop is running. An idle reactor 
+ * blocks in select until its next deadline.
+ */
+class Reactor implements Runnable {
+	private Server server;
+	private int id;
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean running = false;
+	private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private AtomicBoolean wakeupPending = new AtomicBoolean();
+	private volatile boolean closesPending = false;
+	private Queue<ClientConnection> dirty = new ConcurrentLinkedQueue<>();
+	private AtomicBoolean flushPending = new AtomicBoolean();
+	private volatile long dirtySince;
+	private long writes = 0;
+	private TimerWheel timers = new TimerWheel();
+
+	public Reactor(Server server, int id) throws IOException {
+		this.server = server;
+		this.id = id;
+		selector = Selector.open();
+	}
+
+	public void start() {
+		running = true;
+		thread = new Thread(this, "Reactor " + id);
+		thread.start();
+	}
+
+	public void stop() {
+		if (thread == null) {
+			return;
+		}
+
+		running = false;
+		selector.wakeup();
+
+		boolean done = false;
+		while (!done) {
+			try {
+				thread.join();
+				done = true;
+			} catch (InterruptedException e) {
+				ServerLog.info("Reactor {} was interrupted.", id);
+			}
+		}
+
+		try {
+			if (selector.isOpen()) {
+				selector.close();
+			}
+		} catch (IOException exception) {
+			ServerLog.error("{} (selector)", exception.getMessage());
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public Selector getSelector() {
+		return selector;
+	}
+
+	public boolean isReactorThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	/** Hand a new connection over to this reactor. The channel is registered
+	 * by the reactor thread since registering on a selector that is blocked in
+	 * select may block the caller. The connection receives broadcasts once it
+	 * has been registered.
+	 */
+	public void register(ClientConnection connection) {
+		connection.setReactor(this);
+		execute(() -> registerConnection(connection));
+	}
+
+	/** Run a task on the reactor thread in the next iteration of the loop.
+	 * The queue has many producers and the reactor is the only consumer.
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		wakeup();
+	}
+
+	/** Wake up the selector if the reactor is blocked, the flag is cleared
+	 * before each select so a burst of calls costs one wakeup.
+	 */
+	void wakeup() {
+		if (!isReactorThread() && !wakeupPending.get() && wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/** Look for connections that can be closed after the next flush, 
+	 * called when a connection of this reactor has sent its last message.
+	 */
+	void closeLater() {
+		closesPending = true;
+		wakeup();
+	}
+
+	/** Called by the connection handler while it holds its lock. */
+	void setClosesPending(boolean pending) {
+		closesPending = pending;
+	}
+
+	/** Flush the output of a connection in the next iteration of the loop. The
+	 * flush delay is counted from the first dirty connection.
+	 */
+	public void flushLater(ClientConnection connection) {
+		if (!connection.scheduleFlush()) {
+			return;
+		}
+
+		dirty.add(connection);
+
+		if (flushPending.compareAndSet(false, true)) {
+			dirtySince = System.nanoTime();
+		}
+
+		wakeup();
+	}
+
+	/** Deadlines of the connections pinned to this reactor. */
+	public TimerWheel getTimers() {
+		return timers;
+	}
+
+	/** Count a write system call, called by the reactor thread. */
+	void addWrite() {
+		writes++;
+	}
+
+	/** Number of writes to sockets, read it when the reactor has stopped. */
+	public long getWrites() {
+		return writes;
+	}
+
+	/** Time left of the flush delay.
+	 * @return nanoseconds until the dirty connections should be flushed, 
+	 * zero if they are due and -1 if there is nothing to flush
+	 */
+	private long getFlushWait() {
+		if (dirty.isEmpty()) {
+			return -1;
+		}
+
+		long delay = server.getFlushDelay() * 1000;
+
+		if (delay == 0) {
+			return 0;
+		}
+
+		return Math.max(0, dirtySince + delay - System.nanoTime());
+	}
+
+	private void flushDirtyConnections() {
+		long wait = getFlushWait();
+
+		if (wait == -1) {
+			// the connection that set the flag was flushed in the last pass
+			flushPending.set(false);
+			return;
+		}
+
+		if (wait > 0) {
+			// let more messages pile up, the select wakes up when the delay is over
+			return;
+		}
+
+		flushPending.set(false);
+
+		// each connection is in the queue once, connections that are marked
+		// again while flushing wait for the next iteration
+		int limit = selector.keys().size();
+		ClientConnection connection;
+
+		while (limit-- >= 0 && (connection = dirty.poll()) != null) {
+			connection.clearFlushScheduled();
+			server.flush(connection);
+		}
+	}
+
+	private void registerConnection(ClientConnection connection) {
+		SocketChannel channel = connection.getSocketChannel();
+
+		try {
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(connection);
+			server.getConnectionHandler().addConnection(connection);
+			server.scheduleTimeouts(connection, timers);
+		} catch (ClosedChannelException exception) {
+			ServerLog.error("Channel was closed before registration {}", connection);
+		}
+	}
+
+	/** Run the queued tasks, a task that arrives while the queue is drained
+	 * runs in the same pass.
+	 */
+	private void runTasks() {
+		Runnable task;
+
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException exception) {
+				ServerLog.error("{} in task on {}", exception, this);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			processConnections();
+		}
+	}
+
+	void processConnections() {
+		int selectedKeys = 0;
+
+		runTasks();
+
+		try {
+			// work queued after the flag is cleared wakes up the select,
+			// work queued before it is seen here
+			wakeupPending.set(false);
+
+			long flushWait = getFlushWait();
+
+			if (flushWait != 0 && tasks.isEmpty()) {
+				long delay = timers.getDelay(System.currentTimeMillis());
+
+				if (flushWait > 0) {
+					// the select has millisecond resolution, round the flush delay up
+					long flushMillis = (flushWait + 999999) / 1000000;
+					delay = delay < 0 ? flushMillis : Math.min(delay, flushMillis);
+				}
+
+				selectedKeys = delay < 0 ? selector.select() : selector.select(Math.max(1, delay));
+				server.getStatistics().addSelectorWakeup();
+			} else {
+				selectedKeys = selector.selectNow();
+			}
+
+			// the loop is running, producers don't need to wake it up
+			wakeupPending.set(true);
+		} catch (IOException exception) {
+			ServerLog.error(exception.getMessage());
+			return;
+		} catch (ClosedSelectorException selectorException) {
+			ServerLog.error("Selector is closed.");
+			return;
+		}
+
+		timers.advance(System.currentTimeMillis());
+
+		if (selectedKeys > 0) {
+			processSelectedKeys();
+		}
+
+		flushDirtyConnections();
+
+		if (closesPending) {
+			server.getConnectionHandler().closeDisconnectedSockets(this);
+		}
+	}
+
+	private void processSelectedKeys() {
+		Set<SelectionKey> keys = selector.selectedKeys();
+		Iterator<SelectionKey> iterator = keys.iterator();
+
+		while (iterator.hasNext()) {
+			try {
+				SelectionKey key = iterator.next();
+
+				if (key.isValid()) {
+					int readyOperations = key.readyOps();
+
+					if ((readyOperations & SelectionKey.OP_READ) != 0) {
+						server.processInput(key);
+					} else if ((readyOperations & SelectionKey.OP_WRITE) != 0) {
+						server.processOutput(key);
+					}
+				}
+			} catch (CancelledKeyException exception) {
+				ServerLog.info("Socket operation cancelled.");
+			}
+
+			iterator.remove();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Reactor " + id;
+	}
+}
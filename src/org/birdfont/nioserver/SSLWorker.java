@@ -1,51 +1,54 @@
 package org.birdfont.nioserver;
 
 import java.io.IOException;
+import java.net.Socket;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
 import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
-import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
 
-/** A worker thread for handling SSL encryption.
+/** A pool of worker threads for handling SSL encryption. Each connection is
+* hashed to one worker, records of a connection are wrapped and unwrapped in
+* order by the same thread.
 * @author Johan Mattsson
 */
-public class SSLWorker implements Runnable {
+public class SSLWorker {
 	Server server;
-	Thread workerThread;
-	Lock taskLock = new ReentrantLock();
-	Condition hasTask = taskLock.newCondition();
 	SSLContext sslContext;
-	boolean running;
-	Thread handshaker;
+	volatile boolean running;
 	
-	static LinkedBlockingQueue<Runnable> handshakeTask = new LinkedBlockingQueue<>();
-	static Queue<ClientConnection> in = new LinkedBlockingQueue<>();
-	static Queue<ClientConnection> out = new LinkedBlockingQueue<>();
-	static boolean useSSL;
+	final static String SESSION_TICKETS = "jdk.tls.server.enableSessionTicketExtension";
+	private final static String FULL_HANDSHAKE = "org.birdfont.nioserver.fullHandshake";
+	private final static int RECORD_HEADER = 5;
+	private Worker[] workers = new Worker[] { new Worker(0) };
 	
 	public SSLWorker(Server server) throws SSLException {
 		this.server = server;
 
-		useSSL = server.isUsingSSL();
-		
-		if (useSSL) {
+		if (server.isUsingSSL()) {
 			try {
 				sslContext = SSLContext.getInstance("SSL");
 
@@ -67,7 +70,18 @@ public class SSLWorker implements Runnable {
 				TrustManagerFactory trustManager = TrustManagerFactory.getInstance("SunX509");
 				trustManager.init(trustStore);
 
-				sslContext.init(keyManager.getKeyManagers(), trustManager.getTrustManagers(), null);
+				KeyManager[] keyManagers = keyManager.getKeyManagers();
+				for (int i = 0; i < keyManagers.length; i++) {
+					if (keyManagers[i] instanceof X509ExtendedKeyManager) {
+						keyManagers[i] = new HandshakeKeyManager((X509ExtendedKeyManager) keyManagers[i]);
+					}
+				}
+
+				sslContext.init(keyManagers, trustManager.getTrustManagers(), null);
+				
+				SSLSessionContext sessions = sslContext.getServerSessionContext();
+				sessions.setSessionCacheSize(server.getSessionCacheSize());
+				sessions.setSessionTimeout(server.getSessionTimeout());
 			} catch (IOException | UnrecoverableKeyException | KeyStoreException 
 					| CertificateException | NoSuchAlgorithmException
 					| KeyManagementException exception) {
@@ -78,9 +92,13 @@ public class SSLWorker implements Runnable {
 
 	public void createSSLEngine(ClientConnection connection) {
 		try {
-			connection.setSSLEngine(startSSLEngine());
+			SSLEngine engine = startSSLEngine();
+			SSLSession session = engine.getSession();
+			connection.setSSLEngine(engine);
+			connection.setHandshakeStart(System.nanoTime());
+			connection.createSSLBuffers(session.getPacketBufferSize(), session.getApplicationBufferSize());
 		} catch (CertificateException | NoSuchAlgorithmException exception) {
-			ServerLog.error("Can't start SSL engine. " + exception.getMessage());
+			ServerLog.error("Can't start SSL engine. {}", exception.getMessage());
 		}
 	}
 
@@ -91,48 +109,87 @@ public class SSLWorker implements Runnable {
 		return sslEngine;
 	}
 
-	public void handleOutput(ClientConnection connection) {	
-		taskLock.lock();
-		out.add(connection);
-		hasTask.signal();
-		taskLock.unlock();
+	/** Schedule a wrap, a connection is queued at most once. */
+	public void handleOutput(ClientConnection connection) {
+		if (connection.scheduleSSLOutput()) {
+			getWorker(connection).addOutput(connection);
+		}
 	}
 
+	/** Schedule an unwrap, a connection is queued at most once. */
 	public void handleInput(ClientConnection connection) {
-		taskLock.lock();
-		in.add(connection);
-		hasTask.signal();
-		taskLock.unlock();
+		if (connection.scheduleSSLInput()) {
+			getWorker(connection).addInput(connection);
+		}
+	}
+
+	/** Connections waiting for an unwrap in all workers. The queues are 
+	 * counted, call it for monitoring only.
+	 */
+	public int getInputQueueDepth() {
+		int depth = 0;
+
+		for (Worker worker : workers) {
+			depth += worker.in.size();
+		}
+
+		return depth;
+	}
+
+	/** Connections waiting for a wrap in all workers. */
+	public int getOutputQueueDepth() {
+		int depth = 0;
+
+		for (Worker worker : workers) {
+			depth += worker.out.size();
+		}
+
+		return depth;
+	}
+
+	private Worker getWorker(ClientConnection connection) {
+		Worker[] pool = workers;
+		return pool[Math.floorMod(System.identityHashCode(connection), pool.length)];
 	}
 
 	private void processOutput(ClientConnection connection) throws SSLException {
 		SSLEngineResult result;
 
-		MessageBuffer plainTextOut = connection.getOut();
-		ByteBuffer plaintText = plainTextOut.asByteBuffer();
+		OutboundQueue plainTextOut = connection.getOut();
 		SSLEngine sslEngine = connection.getSSLEngine();
-		ByteBuffer sslData = connection.getWorkspace();
-
 		MessageBuffer sslOutput = connection.getSSLOutput();
-
-		result = sslEngine.wrap(plaintText, sslData);
-		runHandshakeTasks(connection, result);
-
-		sslData.flip();
-		sslOutput.add(sslData);
-		plainTextOut.removeFirst(result.bytesConsumed());
+		int packetSize = sslEngine.getSession().getPacketBufferSize();
+
+		Compressor compressor = connection.getCompressor();
+		ByteBuffer sslData = sslOutput.writableRegion(packetSize);
+
+		if (compressor != null) {
+			// the frames are compressed before they are encrypted
+			long oldest = compressor.compress(plainTextOut, 
+					server.getLatencyStatistics(), LatencyStatistics.Stage.WRAP);
+			connection.addWrapped(oldest);
+			int views = compressor.readableViews();
+			result = sslEngine.wrap(compressor.getViews(), 0, views, sslData);
+			compressor.getOutput().removeFirst(result.bytesConsumed());
+			sslOutput.commitWrite(result.bytesProduced());
+		} else {
+			// wrap straight from the shared frames into the free space of the ring 
+			int views = plainTextOut.gather();
+			result = sslEngine.wrap(plainTextOut.getViews(), 0, views, sslData);
+			sslOutput.commitWrite(result.bytesProduced());
+			long oldest = plainTextOut.removeFirst(result.bytesConsumed(), 
+					server.getLatencyStatistics(), LatencyStatistics.Stage.WRAP);
+			connection.addWrapped(oldest);
+		}
 		
-		synchronized (this) {
+		if (result.bytesProduced() > 0) {
 			server.requestWrite(connection);
 		}
 		
 		switch (result.getStatus()) {
 		case BUFFER_OVERFLOW:
-			int packetSize = sslEngine.getSession().getPacketBufferSize();
-			ServerLog.info("Resize buffer in SSL wrap, packet size: " + packetSize);
-			connection.resizeBuffers(packetSize);
-			out.add(connection);
-			break;
+			// wrap is resumed when the reactor has written the SSL output
+			return;
 		case BUFFER_UNDERFLOW:
 			ServerLog.info("SSL wrap needs more data");
 			break;
@@ -142,37 +199,56 @@ public class SSLWorker implements Runnable {
 			break;
 		}
 
-		if (plainTextOut.size() > 0) {
-			out.add(connection);
+		if (handleHandshakeStatus(connection, result)) {
+			return;
+		}
+
+		boolean progress = result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+
+		boolean pending = plainTextOut.size() > 0 
+				|| (compressor != null && compressor.getOutput().size() > 0);
+
+		if (pending) {
+			if (progress) {
+				handleOutput(connection);
+			}
 		} else if (connection.isClosing()) {
 			sslEngine.closeOutbound();
 			processOutput(connection);
 		}
 	}
 
+	/** Wrap output for all connections in the queues of all workers. This is
+	 * used in the shutdown procedure when the worker threads have stopped.
+	 */
 	public void processOutput() {
-		ClientConnection connection;
-		do {
-			connection = null;
+		for (Worker worker : workers) {
+			processOutput(worker);
+		}
+	}
 
-			if (!out.isEmpty()) {
-				connection = out.poll();
-			}
+	private void processOutput(Worker worker) {
+		ClientConnection connection;
 
-			if (connection != null) {
-				try {
-					synchronized (connection) {
-						processOutput(connection);
-					}
-				} catch (SSLException sslException) {
-					ServerLog.error(sslException.getMessage());
-					connection.close();
-				} catch (BufferOverflowException exception) {
-					ServerLog.error("SSL output buffer is full for " + connection);
-					connection.close();
+		while ((connection = worker.out.poll()) != null) {
+			// new output that arrives while the connection is processed
+			// puts it back in the queue
+			connection.clearSSLOutputScheduled();
+			
+			try {
+				synchronized (connection) {
+					processOutput(connection);
+					connection.releaseDrainedBuffers();
 				}
+			} catch (SSLException sslException) {
+				ServerLog.error(sslException.getMessage());
+				connection.close();
+			} catch (BufferOverflowException exception) {
+				ServerLog.error("SSL output buffer is full for {}", connection);
+				server.getStatistics().addBufferOverflow();
+				connection.close();
 			}
-		} while (connection != null);
+		}
 	}
 	
 	private void processInput(ClientConnection connection) throws SSLException {
@@ -185,29 +261,28 @@ public class SSLWorker implements Runnable {
 			return;
 		}
 
-		ByteBuffer plaintText = connection.getWorkspace();
-		sslInput = connection.getSSLInput();
-		ByteBuffer sslData = sslInput.asByteBuffer();
+		// unwrap straight from the ring into the free space of the input ring
+		// a record never decrypts to more bytes than it has
+		ChunkedBuffer plainTextIn = connection.getIn();
+		ByteBuffer sslData = sslInput.readableRegion();
+		int views = plainTextIn.writableViews(getRecordLength(sslData));
 		SSLEngine sslEngine = connection.getSSLEngine();
 
-		result = sslEngine.unwrap(sslData, plaintText);
-		plaintText.flip();
+		result = sslEngine.unwrap(sslData, plainTextIn.getViews(), 0, views);
 
-		connection.getIn().add(plaintText);
+		plainTextIn.commitWrite(result.bytesProduced());
 		sslInput.removeFirst(result.bytesConsumed());
 
-		runHandshakeTasks(connection, result);
-
 		switch (result.getStatus()) {
 		case BUFFER_OVERFLOW:
-			ServerLog.info("Resize buffer in SSL unwrap.");
-			int packetSize = sslEngine.getSession().getPacketBufferSize();
-			connection.resizeBuffers(packetSize);
-			out.add(connection);
+			connection.prepareUnwrap(server.getCodec());
+
+			// more data is unwrapped when the frames have been read
+			handleInput(connection);
 			break;
 		case BUFFER_UNDERFLOW:
-			ServerLog.info("SSL unwrap needs more data.");
-			break;
+			// wait for the rest of the record
+			return;
 		case CLOSED:
 			ServerLog.error("SSL connection is already closed.");
 			return;
@@ -215,40 +290,61 @@ public class SSLWorker implements Runnable {
 			break;
 		}
 		
-		synchronized (this) {
-			server.requestRead(connection);
+		if (handleHandshakeStatus(connection, result)) {
+			return;
 		}
 		
 		if (sslInput.size() > 0) {
-			in.add(connection);
+			handleInput(connection);
 		} else if (connection.isClosing() && sslEngine.isInboundDone()) {
 			sslEngine.closeInbound();
 		}
 	}
 
+	/** Length of the first record in the encrypted input. The engine checks
+	 * that the whole record fits in the output before it checks that the
+	 * whole record has arrived, the output must have room for the record
+	 * or the engine reports an overflow for an incomplete record.
+	 */
+	static int getRecordLength(ByteBuffer sslData) {
+		if (sslData.remaining() < RECORD_HEADER) {
+			return sslData.remaining();
+		}
+
+		int length = sslData.getShort(sslData.position() + 3) & 0xFFFF;
+		return Math.max(sslData.remaining(), RECORD_HEADER + length);
+	}
+
+	/** Unwrap input for all connections in the queues of all workers. */
 	public void processInput() {
-		ClientConnection connection;
-		do {
-			connection = null;
+		for (Worker worker : workers) {
+			processInput(worker);
+		}
+	}
 
-			if (!in.isEmpty()) {
-				connection = in.poll();
-			}
+	private void processInput(Worker worker) {
+		ClientConnection connection;
 
-			if (connection != null) {
-				try {
-					synchronized (connection) {
-						processInput(connection);
-					}
-				} catch (SSLException sslException) {
-					ServerLog.error(sslException.getMessage());
-					connection.close();
-				} catch (BufferOverflowException exception) {
-					ServerLog.error("SSL input buffer is full for connection " + connection);
-					connection.close();
+		while ((connection = worker.in.poll()) != null) {
+			connection.clearSSLInputScheduled();
+			
+			try {
+				synchronized (connection) {
+					processInput(connection);
+					connection.releaseDrainedBuffers();
 				}
+				
+				server.requestRead(connection);
+				server.resumeRead(connection);
+			} catch (SSLException sslException) {
+				ServerLog.error(sslException.getMessage());
+				connection.close();
+			} catch (BufferOverflowException exception) {
+				ServerLog.error("SSL input buffer is full for connection {}", connection);
+				server.getStatistics().addBufferOverflow();
+				connection.close();
 			}
-		} while (connection != null);
+		}
 	}
 
 	public void start() {
@@ -257,119 +353,228 @@ public class SSLWorker implements Runnable {
 			return;
 		}
 
+		int threads = server.getSSLWorkerThreads();
+		Worker[] pool = new Worker[threads];
+		
+		for (int i = 0; i < threads; i++) {
+			pool[i] = new Worker(i);
+		}
+		
+		workers = pool;
 		running = true;
+		
+		for (Worker worker : workers) {
+			worker.start();
+		}
+	}
 
-		handshaker = new Thread(() -> {
-			boolean done = false;
-			while (!done) {
-				Runnable task = null;
-				
-				try {
-					task = handshakeTask.take();
-				} catch (InterruptedException e) {
-					ServerLog.info("Handshaker was interrupted.");
-				}
+	public void stop() {
+		if (!running) {
+			return;
+		}
 
-				taskLock.lock();
-				if (!running)  {
-					done = true;
-				}
-				taskLock.unlock();
+		running = false;
+		
+		for (Worker worker : workers) {
+			worker.stop();
+		}
+		
+		ServerLog.info("SSL worker is done.");
+	}
 
-				if (task != null) {
-					task.run();
-				}
+	/** Continue the handshake after a wrap or an unwrap.
+	 * @return true if the engine is waiting for a delegated task
+	 */
+	private boolean handleHandshakeStatus(ClientConnection connection, SSLEngineResult result) {
+		switch (result.getHandshakeStatus()) {
+		case NEED_TASK:
+			runHandshakeTasks(connection);
+			return true;
+		case NEED_WRAP:
+			handleOutput(connection);
+			break;
+		case NEED_UNWRAP:
+			if (result.bytesConsumed() > 0 && connection.getSSLInput().size() > 0) {
+				handleInput(connection);
 			}
+			break;
+		case FINISHED:
+			addHandshake(connection);
 			
-			ServerLog.info("SSL handshaker has exited.");
-		});
-		handshaker.start();
+			// messages that arrived during the handshake
+			if (connection.getOut().size() > 0) {
+				handleOutput(connection);
+			}
+			break;
+		default:
+			break;
+		}
 
-		workerThread = new Thread(this);
-		workerThread.start();
+		return false;
 	}
 
-	public void stop() {
-		if (!running) {
+	/** Count a finished handshake. Only a full handshake asks the key manager
+	 * for a server certificate, a resumed one has no mark on its session.
+	 * Post-handshake messages like session tickets finish again and are 
+	 * not counted.
+	 */
+	void addHandshake(ClientConnection connection) {
+		if (!connection.isHandshaking()) {
 			return;
 		}
 
-		boolean done;
+		SSLSession session = connection.getSSLEngine().getSession();
+		boolean resumed = session.getValue(FULL_HANDSHAKE) == null;
+		// a cached session is shared by the handshakes that resume it
+		session.removeValue(FULL_HANDSHAKE);
+		long latency = System.nanoTime() - connection.getHandshakeStart();
+		connection.setHandshakeFinished();
+		server.getHandshakeStatistics().addHandshake(resumed, latency);
+		ServerLog.connection("{} handshake for {}", resumed ? "Resumed" : "Full", connection);
+	}
 
-		done = false;
-		while(!done) {
-			try {
-				taskLock.lock();
-				running = false;
-				hasTask.signal();
-				taskLock.unlock();
-				workerThread.join();
-				done = true;
-			} catch (InterruptedException e) {
-				ServerLog.info("SSL worker was interrupted.");
-			}
-		}
-		done = false;
-		handshakeTask.add(() -> {}); // force handshaker to wake up 
-		while (!done) {
-			try {
-				handshaker.join();
-				done = true;
-			} catch (InterruptedException e) {
-				ServerLog.info("SSL worker was interrupted.");
-			}
+	/** Run the delegated tasks on the worker that owns the connection, the 
+	 * handshakes of different connections run in parallel on all workers.
+	 */
+	private void runHandshakeTasks(ClientConnection connection) {
+		SSLEngine engine = connection.getSSLEngine();
+		Runnable task;
+		
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
 		}
 		
-		ServerLog.info("SSL worker is done.");
+		handleOutput(connection);
+		handleInput(connection);
 	}
+	
+	/** A worker thread with its own queues. */
+	private class Worker implements Runnable {
+		final Queue<ClientConnection> in = new ConcurrentLinkedQueue<>();
+		final Queue<ClientConnection> out = new ConcurrentLinkedQueue<>();
+		final Lock taskLock = new ReentrantLock();
+		final Condition hasTask = taskLock.newCondition();
+		final int id;
+		Thread thread;
+		
+		Worker(int id) {
+			this.id = id;
+		}
+		
+		void addInput(ClientConnection connection) {
+			in.add(connection);
+			signal();
+		}
 
-	@Override
-	public void run() {		
-		while (true) {
+		void addOutput(ClientConnection connection) {
+			out.add(connection);
+			signal();
+		}
+		
+		private void signal() {
 			taskLock.lock();
-			try {
-				if (in.isEmpty() && out.isEmpty()) {
-					hasTask.await();
+			hasTask.signal();
+			taskLock.unlock();
+		}
+		
+		void start() {
+			thread = new Thread(this, "SSL worker " + id);
+			thread.start();
+		}
+		
+		void stop() {
+			boolean done = false;
+			
+			while (!done) {
+				try {
+					signal();
+					thread.join();
+					done = true;
+				} catch (InterruptedException e) {
+					ServerLog.info("SSL worker was interrupted.");
+				}
+			}
+		}
+		
+		@Override
+		public void run() {
+			while (true) {
+				taskLock.lock();
+				try {
+					if (running && in.isEmpty() && out.isEmpty()) {
+						hasTask.await();
+					}
+				} catch (InterruptedException e) {
+					ServerLog.info("Wakeup SSL worker.");
+				} finally {
+					taskLock.unlock();
 				}
 
 				if (!running) {
-					taskLock.unlock();
 					break;
 				}
-			} catch (InterruptedException e) {
-				ServerLog.info("Wakeup SSL worker.");
+				
+				processOutput(this);
+				processInput(this);
 			}
-			taskLock.unlock();
-			
-			processOutput();
-			processInput();
 		}
 	}
 
-	private void runHandshakeTasks(ClientConnection connection, SSLEngineResult result) {
-		SSLEngine engine = connection.getSSLEngine();
+	/** Marks the handshake session when a server certificate is chosen, the
+	 * certificate is only sent in full handshakes.
+	 */
+	static class HandshakeKeyManager extends X509ExtendedKeyManager {
+		private final X509ExtendedKeyManager keyManager;
 
-		if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
-			handshakeTask.offer(() -> {
-				while (true) {
-					synchronized (connection) {
-						Runnable task = engine.getDelegatedTask();
+		HandshakeKeyManager(X509ExtendedKeyManager keyManager) {
+			this.keyManager = keyManager;
+		}
 
-						if (task == null) {
-							out.offer(connection);
-							in.offer(connection);
+		@Override
+		public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+			String alias = keyManager.chooseEngineServerAlias(keyType, issuers, engine);
+			SSLSession session = engine == null ? null : engine.getHandshakeSession();
 
-							taskLock.lock();
-							hasTask.signal();
-							taskLock.unlock();
-							break;
-						}
+			if (alias != null && session != null) {
+				session.putValue(FULL_HANDSHAKE, Boolean.TRUE);
+			}
 
-						task.run();
-					}
-				}
-			});
+			return alias;
+		}
+
+		@Override
+		public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+			return keyManager.chooseEngineClientAlias(keyType, issuers, engine);
+		}
+
+		@Override
+		public String[] getClientAliases(String keyType, Principal[] issuers) {
+			return keyManager.getClientAliases(keyType, issuers);
+		}
+
+		@Override
+		public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+			return keyManager.chooseClientAlias(keyType, issuers, socket);
+		}
+
+		@Override
+		public String[] getServerAliases(String keyType, Principal[] issuers) {
+			return keyManager.getServerAliases(keyType, issuers);
+		}
+
+		@Override
+		public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+			return keyManager.chooseServerAlias(keyType, issuers, socket);
+		}
+
+		@Override
+		public X509Certificate[] getCertificateChain(String alias) {
+			return keyManager.getCertificateChain(alias);
+		}
+
+		@Override
+		public PrivateKey getPrivateKey(String alias) {
+			return keyManager.getPrivateKey(alias);
 		}
 	}
-	
 }
@@ -4,41 +4,182 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.*;
-import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.text.ParseException;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /** A non-blocking MyChat server.
 * @author Johan Mattsson
 */
 public class Server implements Runnable {
+	/** The way connections are served. */
+	public enum Engine {
+		/** Non-blocking sockets on a pool of selector threads, SSL records 
+		 * are processed by the SSL worker pool. 
+		 */
+		REACTOR,
+		
+		/** Blocking sockets with a reader and a writer thread per connection,
+		 * virtual threads are used when the JDK has them.
+		 */
+		THREADS
+	}
+	
 	private int port = 45489;
 	private ServerSocketChannel serverSocketChannel;
 	private Selector socketSelector;
-	private boolean running = false; 
+	private volatile boolean running = false; 
 	private boolean local = true;
 	private Thread mainServerThread;
 	private SSLWorker sslWorker;
-	private boolean usingSSL = true;
+	private volatile boolean usingSSL = true;
 	private byte[] keyStore = null;
 	private String keyPassphrase = "";
-	private ConnectionHandler connectionHandler;
+	private volatile ConnectionHandler connectionHandler;
+	private int reactorThreads = Runtime.getRuntime().availableProcessors();
+	private int sslWorkerThreads = Runtime.getRuntime().availableProcessors();
+	private int sessionCacheSize = 20000;
+	private int sessionTimeout = 24 * 60 * 60;
+	private HandshakeStatistics handshakeStatistics = new HandshakeStatistics();
+	private Reactor[] reactors;
+	private int nextReactor = 0;
+	private BufferPool bufferPool = new BufferPool();
+	private Engine engine = Engine.REACTOR;
+	private ThreadEngine threadEngine;
+	private volatile long flushDelay = 0;
+	private volatile int lowWatermark = 8 * 1024;
+	private volatile int highWatermark = 32 * 1024;
+	private volatile int maxTopicsPerConnection = 64;
+	private volatile int maxTopics = 10000;
+	private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+	private volatile long slowConsumerGracePeriod = 5000;
+	private volatile long idleTimeout = 0;
+	private volatile long handshakeTimeout = 10 * 1000;
+	private volatile long partialLineTimeout = 30 * 1000;
+	private volatile long closeTimeout = 10 * 1000;
+	private volatile Codec codec = new LineCodec();
+	private volatile boolean compression = true;
+	private volatile DeflaterPool deflaterPool = new DeflaterPool(Deflater.BEST_SPEED);
+	private CompressionStatistics compressionStatistics = new CompressionStatistics();
+	private volatile History history;
+	private volatile int joinHistory = 0;
+	private volatile Journal journal;
+	private volatile Mesh mesh;
+	private SlowConsumerStatistics slowConsumerStatistics = new SlowConsumerStatistics();
+	private ServerStatistics statistics = new ServerStatistics();
+	private LatencyStatistics latencyStatistics = new LatencyStatistics();
+	private ObjectName metricsName;
+	
+	/** Message parsers for the reactor and SSL threads. */
+	private final ThreadLocal<MessageView> messageViews = ThreadLocal.withInitial(MessageView::new);
 	
 	public void setup() throws IOException {
 		sslWorker = new SSLWorker(this);		
 		createServerSocket();
+		createReactors();
+		threadEngine = new ThreadEngine(this, sslWorker);
+		restoreHistory();
+	}
+
+	/** Fill the history with the newest messages in the journal. */
+	private void restoreHistory() {
+		History history = this.history;
+		Journal journal = this.journal;
+
+		if (history == null || journal == null) {
+			return;
+		}
+
+		journal.read(journal.getLastSequence() - history.getCapacity(), frame -> {
+			history.restore(frame);
+			frame.release();
+		});
+
+		if (history.getLastSequence() > 0) {
+			ServerLog.info("Restored history up to message {}", history.getLastSequence());
+		}
 	}
 
 	public void start() {
 		running = true;
-		ServerLog.info("Starting server.");
+		connectionHandler = new ConnectionHandler(sslWorker, this);
 		mainServerThread = new Thread(this);
-		sslWorker.start();
+		
+		if (engine == Engine.THREADS) {
+			String threads = ThreadEngine.isVirtual() ? "virtual" : "platform";
+			ServerLog.info("Starting server with {} threads per connection.", threads);
+			threadEngine.start();
+		} else {
+			ServerLog.info("Starting server with {} reactor threads.", reactors.length);
+			sslWorker.start();
+			
+			for (Reactor reactor : reactors) {
+				reactor.start();
+			}
+		}
+		
+		startMesh();
+		registerMetrics();
 		mainServerThread.start();
-		connectionHandler = new ConnectionHandler(sslWorker, this);
+	}
+
+	/** Open the links to the other nodes, the server runs alone if the
+	 * peer port can't be opened.
+	 */
+	private void startMesh() {
+		Mesh mesh = this.mesh;
+
+		if (mesh == null) {
+			return;
+		}
+
+		try {
+			mesh.start(this);
+			ServerLog.info("Mesh node {} listens on {}", Long.toHexString(mesh.getNodeId()), mesh.getAddress());
+		} catch (IOException exception) {
+			ServerLog.error("Can't start the mesh. {}", exception.getMessage());
+		}
+	}
+
+	/** Publish the metrics bean, the server runs without it if JMX fails. */
+	private void registerMetrics() {
+		try {
+			MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+			metricsName = new ObjectName("org.birdfont.nioserver:type=Server,port=" + getPort());
+
+			if (beans.isRegistered(metricsName)) {
+				beans.unregisterMBean(metricsName);
+			}
+
+			beans.registerMBean(new ServerMetrics(this), metricsName);
+		} catch (JMException exception) {
+			ServerLog.error("Can't register metrics. {}", exception.getMessage());
+			metricsName = null;
+		}
+	}
+
+	private void unregisterMetrics() {
+		if (metricsName == null) {
+			return;
+		}
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+		} catch (JMException exception) {
+			ServerLog.error("Can't unregister metrics. {}", exception.getMessage());
+		}
+
+		metricsName = null;
 	}
 	
 	public void stop() {
@@ -55,6 +196,9 @@ public class Server implements Runnable {
 			thread = mainServerThread;
 		}
 
+		// the accept loop blocks until a connection arrives
+		getSocketSelector().wakeup();
+
 		boolean done = false;
 		while(!done) {
 			try {
@@ -72,15 +216,89 @@ public class Server implements Runnable {
 		usingSSL = ssl;
 	}
 
-	public synchronized boolean isUsingSSL() {
+	public boolean isUsingSSL() {
 		return usingSSL;
 	}
 
+	/** Set the number of reactor threads that serve client connections,
+	 * must be called before setup.
+	 * @param threads number of selector threads, at least one
+	 */
+	public void setReactorThreads(int threads) {
+		reactorThreads = Math.max(1, threads);
+	}
+
+	public int getReactorThreads() {
+		return reactorThreads;
+	}
+
+	/** Select the engine that serves the connections. Must be called before setup. */
+	public void setEngine(Engine engine) {
+		this.engine = engine;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	/** Set the number of threads that encrypt and decrypt SSL records. */
+	public void setSSLWorkerThreads(int threads) {
+		sslWorkerThreads = Math.max(1, threads);
+	}
+
+	public int getSSLWorkerThreads() {
+		return sslWorkerThreads;
+	}
+
+	/** Set the number of SSL sessions that are cached for resumption, 
+	 * zero means no limit. Must be called before setup.
+	 */
+	public void setSessionCacheSize(int sessions) {
+		sessionCacheSize = Math.max(0, sessions);
+	}
+
+	public int getSessionCacheSize() {
+		return sessionCacheSize;
+	}
+
+	/** Set the lifetime of cached sessions and session tickets in seconds.
+	 * Must be called before setup.
+	 */
+	public void setSessionTimeout(int seconds) {
+		sessionTimeout = Math.max(0, seconds);
+	}
+
+	public int getSessionTimeout() {
+		return sessionTimeout;
+	}
+
+	/** True if clients can resume a session with a stateless session ticket,
+	 * without an entry in the session cache. Tickets are a JVM wide setting,
+	 * turn them off with -Djdk.tls.server.enableSessionTicketExtension=false.
+	 */
+	public boolean isUsingSessionTickets() {
+		return Boolean.parseBoolean(System.getProperty(SSLWorker.SESSION_TICKETS, "true"));
+	}
+
+	public HandshakeStatistics getHandshakeStatistics() {
+		return handshakeStatistics;
+	}
+
+	/** The pool that lends direct memory to the connection buffers. */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	public int getConnectionCount() {
+		ConnectionHandler handler = connectionHandler;
+		return handler == null ? 0 : handler.getConnectionCount();
+	}
+
 	public void setLogLevels(int levels) {
 		ServerLog.setLogLevels(levels);
 	}
 	
-	public synchronized boolean isRunning() {
+	public boolean isRunning() {
 		return running;
 	}
 
@@ -159,7 +377,7 @@ public class Server implements Runnable {
 				}
 			}
 
-			processConnections();
+			acceptConnections();
 		}
 
 		terminate();
@@ -171,24 +389,44 @@ public class Server implements Runnable {
 				serverSocketChannel.close();
 			}
 		} catch (IOException exception) {
-			ServerLog.error(exception.getMessage() + " (server socket)");
+			ServerLog.error("{} (server socket)", exception.getMessage());
+		}
+
+		if (mesh != null) {
+			mesh.stop();
 		}
 
 		sslWorker.stop();
 		ServerLog.info("Disconnecting all clients.");
 		connectionHandler.disconnectAllClients(this);
 
+		for (Reactor reactor : reactors) {
+			reactor.stop();
+		}
+		
+		threadEngine.stop();
+
 		try {
 			if (socketSelector.isOpen()) {
 				socketSelector.close();
 			}
 		} catch (IOException exception) {
-			ServerLog.error(exception.getMessage() + " (selector)");
+			ServerLog.error("{} (selector)", exception.getMessage());
 		}
 		
+		unregisterMetrics();
+		ServerLog.flush(1, TimeUnit.SECONDS);
 		running = false;
 	}
 
+	private void createReactors() throws IOException {
+		reactors = new Reactor[engine == Engine.REACTOR ? reactorThreads : 0];
+
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i] = new Reactor(this, i);
+		}
+	}
+
 	private void createServerSocket() throws IOException {
 		serverSocketChannel = ServerSocketChannel.open();
 		serverSocketChannel.configureBlocking(false);
@@ -208,33 +446,48 @@ public class Server implements Runnable {
 		serverSocketChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
 	}
 
-	private synchronized void acceptConnection() {
+	/** Accept one pending connection.
+	 * @return false if there are no more connections waiting in the backlog
+	 */
+	private boolean acceptConnection() {
 		try {
 			SocketChannel incoming = serverSocketChannel.accept();
-			Selector selector = getSocketSelector();
+			
+			if (incoming == null) {
+				return false;
+			}
+			
 			incoming.configureBlocking(false);
-			SelectionKey key = incoming.register(selector, SelectionKey.OP_READ);
-			ClientConnection connection = new ClientConnection(incoming);
+			ClientConnection connection = new ClientConnection(incoming, bufferPool);
+			statistics.addAcceptedConnection();
 
 			if (usingSSL) {
 				sslWorker.createSSLEngine(connection);
 			}
 
-			key.attach(connection);
-			
-			connectionHandler.addConnection(connection);
+			if (engine == Engine.THREADS) {
+				threadEngine.add(connection);
+			} else {
+				// connections are pinned to one reactor for their whole life
+				Reactor reactor = reactors[nextReactor];
+				nextReactor = (nextReactor + 1) % reactors.length;
+				reactor.register(connection);
+			}
 			
 			Socket socket = incoming.socket();
-			ServerLog.connection("New connection " + socket);
+			ServerLog.connection("New connection {}", socket);
+			return true;
 		} catch (IOException exception) {
-			ServerLog.error(exception.getMessage() + " when accepting connection");
+			ServerLog.error("{} when accepting connection", exception.getMessage());
+			return false;
 		}
 	}
 
-	private void processInput(SelectionKey socketKey) {
+	void processInput(SelectionKey socketKey) {
 		SocketChannel socketChannel = (SocketChannel) socketKey.channel();
 		ClientConnection connection;
 		connection = (ClientConnection) socketKey.attachment();
+		boolean hasInput = false;
 
 		synchronized (connection) {
 			try {
@@ -248,16 +501,7 @@ public class Server implements Runnable {
 					return;
 				}
 
-				ByteBuffer data = connection.getWorkspace();
-				int size = socketChannel.read(data);
-
-				if (size < 0) {
-					ServerLog.info("End of stream on " + socketChannel);
-					connection.close();
-					return;
-				}
-
-				MessageBuffer buffer;
+				LineBuffer buffer;
 				
 				if (isUsingSSL()) {
 					buffer = connection.getSSLInput();
@@ -265,60 +509,105 @@ public class Server implements Runnable {
 					buffer = connection.getIn();
 				}
 				
-				if (buffer.size () + size > buffer.capacity()) {
-					ServerLog.error("SSL input buffer is full. Closing connection.");
+				// scatter the data straight into the free space of the ring
+				int views = buffer.writableViews();
+				
+				if (views == 0 && isUsingSSL()) {
+					// the SSL worker is behind, it resumes the reads when
+					// it has unwrapped the records
+					socketKey.interestOps(0);
+					connection.suspendRead();
+					sslWorker.handleInput(connection);
+					return;
+				}
+
+				if (views == 0) {
+					ServerLog.error("Input buffer is full. Closing connection.");
+					statistics.addBufferOverflow();
+					connection.close();
+					return;
+				}
+
+				long size = socketChannel.read(buffer.getViews(), 0, views);
+
+				if (size < 0) {
+					ServerLog.info("End of stream on {}", socketChannel);
 					connection.close();
 					return;
 				}
 
-				data.flip();
-				buffer.add(data);
+				statistics.addBytesIn(size);
+				connection.setReadTime(System.nanoTime());
+
+				buffer.commitWrite((int) size);
 
 				if (!isUsingSSL()) {	
-					requestRead(connection);
+					hasInput = true;
 				} else {
 					synchronized (this) {
 						sslWorker.handleInput(connection);
 					}
 				}
 			} catch (IOException exception) {
-				ServerLog.error(exception.getMessage() + " for connection " + socketChannel);
+				ServerLog.error("{} for connection {}", exception.getMessage(), socketChannel);
 				connection.close();
 			}
-		}	
+		}
+		
+		// messages are relayed without holding the connection lock, the 
+		// broadcast locks each recipient
+		if (hasInput) {
+			requestRead(connection);
+		}
 	}
 
-	public void requestWrite(ClientConnection connection) {
-		try {
-			
-			if (!isRunning()) {
-				return;
-			}
-			
-			boolean hasData;
-			
-			if (isUsingSSL()) {
-				hasData = connection.getSSLOutput().size() > 0;
-			} else {
-				hasData = connection.getOut().size() > 0;
-			}
-			
-			if (hasData) {
-				SocketChannel channel = connection.getSocketChannel();
-				SelectionKey key = channel.keyFor(getSocketSelector());
-	
-				if (key == null) {
-					ServerLog.error("No key for " + channel);
-					connection.clearBuffers();
-					getConnectionHandler().removeConnection(connection);
-					return;
-				}
-	
-				key.interestOps(SelectionKey.OP_WRITE);
+	/** Send queued output, the writer thread, the SSL worker or the reactor 
+	 * of the connection takes it from here.
+	 */
+	void requestOutput(ClientConnection connection) {
+		Thread writer = connection.getWriter();
+		
+		if (writer != null) {
+			LockSupport.unpark(writer);
+		} else if (isUsingSSL()) {
+			sslWorker.handleOutput(connection);
+		} else {
+			requestWrite(connection);
+		}
+	}
+
+	/** Read again from a connection that was suspended because its SSL 
+	 * input was full, called by the SSL worker when it has unwrapped records.
+	 */
+	void resumeRead(ClientConnection connection) {
+		Reactor reactor = connection.getReactor();
+
+		if (reactor == null || !connection.resumeRead()) {
+			return;
+		}
+
+		reactor.execute(() -> {
+			SelectionKey key = connection.getSocketChannel().keyFor(reactor.getSelector());
+
+			// a connection that is writing or paused gets OP_READ back when
+			// its output has drained
+			if (key != null && key.isValid() && key.interestOps() == 0 && !connection.isPaused()) {
+				key.interestOps(SelectionKey.OP_READ);
 			}
-		} catch (CancelledKeyException exception) {
-			ServerLog.info("Cancelled key for " + connection);
+		});
+	}
+
+	/** Mark the connection as dirty, its reactor writes the output in the
+	 * next iteration of the event loop.
+	 */
+	public void requestWrite(ClientConnection connection) {
+		Reactor reactor = connection.getReactor();
+		
+		if (reactor == null || !reactor.isRunning()) {
+			return;
 		}
+		
+		reactor.flushLater(connection);
 	}
 
 	private synchronized Selector getSocketSelector() {
@@ -326,93 +615,635 @@ public class Server implements Runnable {
 	}
 
 	void requestRead(ClientConnection connection) {
-		MessageBuffer buffer = connection.getIn();
+		ChunkedBuffer buffer = connection.getIn();
 		SocketChannel channel = connection.getSocketChannel();
+		MessageView message = messageViews.get();
+		long readTime = connection.getReadTime();
 
 		try {
-			String nextLine = "";
+			while (true) {
+				Frame frame = null;
+				String topic = null;
+				String join = null;
+				String leave = null;
+				String compress = null;
+				String resume = null;
+				String replay = null;
+				boolean close = false;
+
+				// the frame is validated in the ring and copied without 
+				// being decoded
+				synchronized (connection) {
+					int length = codec.decode(buffer, message);
+
+					if (length == -1) {
+						// a client that never finishes its frame is closed by the timer
+						if (buffer.size() == 0) {
+							connection.setPartialSince(0);
+						} else if (connection.getPartialSince() == 0) {
+							connection.setPartialSince(readTime);
+						}
+
+						connection.releaseDrainedBuffers();
+						return;
+					}
+
+					connection.setPartialSince(0);
+
+					try {
+						if (message.equals("CLOSE")) {
+							close = true;
+						} else if (message.isCommand("JOIN")) {
+							join = message.getArgument("JOIN");
+						} else if (message.isCommand("LEAVE")) {
+							leave = message.getArgument("LEAVE");
+						} else if (message.isCommand("COMPRESS")) {
+							compress = message.getArgument("COMPRESS");
+						} else if (message.isCommand("RESUME")) {
+							resume = message.getArgument("RESUME");
+						} else if (message.isCommand("REPLAY")) {
+							replay = message.getArgument("REPLAY");
+						} else if (!message.isEmpty()) {
+							message.parse();
+
+							if (message.hasBody()) { // ignore empty messages
+								statistics.addMessageIn();
+								topic = message.getTopic();
+								frame = message.toFrame();
+							}
+						}
+					} finally {
+						buffer.removeFirst(length);
+					}
+				}
 
-			while(nextLine != null) {
-				nextLine = buffer.nextLine();
+				if (close) {
+					ServerLog.info("Client has quit {}", channel);
+					getConnectionHandler().sendClosedMessage(connection);
+					return; 
+				}
 
-				if (nextLine != null && !nextLine.equals("")) {
-					if (nextLine.equals("CLOSE")) {
-						ServerLog.info("Client has quit " + channel);
-						getConnectionHandler().sendClosedMessage(connection);
-						return; 
+				if (join != null) {
+					if (getConnectionHandler().join(connection, join)) {
+						getConnectionHandler().sendReply(connection, "JOINED " + join);
+					} else {
+						// an invalid name is not echoed
+						String name = Topic.isValidName(join) ? " " + join : "";
+						getConnectionHandler().sendReply(connection, "REJECTED" + name);
 					}
+				}
+
+				if (leave != null) {
+					getConnectionHandler().leave(connection, leave);
+					getConnectionHandler().sendReply(connection, "LEFT " + leave);
+				}
 
-					Message message = Message.parseMessage(nextLine);
+				if (compress != null) {
+					getConnectionHandler().compress(connection, compress);
+				}
+
+				if (resume != null) {
+					getConnectionHandler().resume(connection, parseSequence(resume));
+				}
+
+				if (replay != null) {
+					getConnectionHandler().replayJournal(connection, parseSequence(replay));
+				}
 
-					if (!message.getMessagBody().equals("")) { // ignore empty messages
-						getConnectionHandler().sendMessage(nextLine);
+				if (frame != null) {
+					long queued = System.nanoTime();
+					frame.setTimes(readTime, queued);
+					latencyStatistics.record(LatencyStatistics.Stage.PARSE, queued - readTime);
+					Mesh mesh = this.mesh;
+
+					if (mesh != null) {
+						// the other nodes get the message as it was received
+						mesh.forward(frame, topic);
 					}
+
+					distribute(frame, topic);
 				}
 			}
 		} catch (ParseException parserException) {
-			ServerLog.error("Invalid message from " + channel);
+			ServerLog.error("Invalid message from {}", channel);
 			connection.close();
 		}
 	}
 
-	private void processOutput(SelectionKey key) {
-		SocketChannel channel = (SocketChannel) key.channel();
-		ClientConnection connection;
-		connection = (ClientConnection) key.attachment();
+	/** Keep a broadcast in the history and the journal and send it to the
+	 * clients of this server, messages from clients and from other nodes of
+	 * the mesh take the same way.
+	 * @param frame a message with its time stamps, the reference of the 
+	 * caller is released
+	 * @param topic the topic of the message or null for a broadcast
+	 */
+	void distribute(Frame frame, String topic) {
+		long queued = frame.getQueueTime();
+		History history = this.history;
+		Journal journal = this.journal;
 
-		synchronized (connection) {
-			MessageBuffer buffer;
-			
-			if (isUsingSSL()) {
-				buffer = connection.getSSLOutput();
-			} else {
-				buffer = connection.getOut();
+		if (topic == null && history != null) {
+			Frame stamped;
+
+			// the reactors and the mesh stamp messages at the same time, the
+			// journal gets them in the order of their sequence numbers
+			synchronized (history) {
+				stamped = history.add(frame, codec);
+
+				if (journal != null) {
+					journal.append(stamped);
+				}
 			}
-			
-			ByteBuffer data = buffer.asByteBuffer();
 
-			if (!channel.isOpen()) {
-				ServerLog.info("Channel is closed in write to " + connection);
-				return;
+			frame.release();
+			frame = stamped;
+		} else if (topic == null && journal != null) {
+			// a copy to the mapped segment, the commit thread forces it, the
+			// number lets a replay that saw the message drop the live copy
+			frame.setSequence(journal.append(frame));
+		}
+
+		try {
+			if (topic == null) {
+				getConnectionHandler().sendMessage(frame);
+			} else {
+				getConnectionHandler().publish(topic, frame);
 			}
+		} finally {
+			latencyStatistics.record(LatencyStatistics.Stage.FAN_OUT, System.nanoTime() - queued);
+			frame.release();
+		}
+	}
+
+	private static long parseSequence(String sequence) throws ParseException {
+		try {
+			return Long.parseLong(sequence);
+		} catch (NumberFormatException exception) {
+			throw new ParseException("Invalid sequence number.", 0);
+		}
+	}
+
+	void processOutput(SelectionKey key) {
+		flush((ClientConnection) key.attachment());
+	}
+
+	/** Write the output of a connection with one gathering write. The reactor
+	 * waits for the socket to become writable if everything could not be 
+	 * written, called by the reactor thread.
+	 */
+	void flush(ClientConnection connection) {
+		SocketChannel channel = connection.getSocketChannel();
+		Reactor reactor = connection.getReactor();
+
+		boolean closed = false;
+
+		synchronized (connection) {
+			SelectionKey key = channel.keyFor(reactor.getSelector());
 			
-			if (buffer.size() == 0) {
-				ServerLog.error("No data in message buffer.");
-				return;
+			if (!channel.isOpen() || key == null || !key.isValid()) {
+				ServerLog.info("Channel is closed in write to {}", connection);
+				connection.clearBuffers();
+				closed = true;
 			}
+		}
+		
+		if (closed) {
+			getConnectionHandler().removeConnection(connection);
+			return;
+		}
 
+		synchronized (connection) {
+			SelectionKey key = channel.keyFor(reactor.getSelector());
+			
 			try {
-				int written = channel.write(data);
+				long written;
+				boolean hasRemaining;
 
-				if (written <= 0) {
-					ServerLog.error("Nothing written.");
-					stop();
-				}
+				if (isUsingSSL()) {
+					MessageBuffer buffer = connection.getSSLOutput();
+					
+					if (buffer.size() == 0) {
+						return;
+					}
+					
+					int views = buffer.readableViews();
+					written = channel.write(buffer.getViews(), 0, views);
+					buffer.removeFirst((int) written);
+					latencyStatistics.recordEncryptedWrite(connection);
+					hasRemaining = buffer.size() > 0;
+					
+					if (connection.getOut().size() > 0) {
+						// resume wrapping when there is space in the ring
+						sslWorker.handleOutput(connection);
+					}
+				} else if (connection.getCompressor() != null) {
+					// each connection has its own stream, the frames are
+					// compressed before the write
+					OutboundQueue queue = connection.getOut();
+					Compressor compressor = connection.getCompressor();
+					compressor.compress(queue, latencyStatistics, LatencyStatistics.Stage.WRITE);
+					MessageBuffer buffer = compressor.getOutput();
+
+					if (buffer.size() == 0) {
+						return;
+					}
+
+					int views = buffer.readableViews();
+					written = channel.write(buffer.getViews(), 0, views);
+					buffer.removeFirst((int) written);
+					hasRemaining = buffer.size() > 0 || queue.size() > 0;
+				} else if (connection.getTransfer() != null) {
+					// messages from the journal go from the page cache to
+					// the socket before the queued frames
+					Journal.Transfer transfer = connection.getTransfer();
+					written = transfer.transferTo(channel);
 
-				if (data.hasRemaining()) {
-					requestWrite(connection);
+					if (transfer.isDone()) {
+						connection.setTransfer(null);
+					}
+
+					hasRemaining = !transfer.isDone() || connection.getOut().size() > 0;
 				} else {
-					key.interestOps(SelectionKey.OP_READ);
+					// gathering write straight from the shared frames
+					OutboundQueue queue = connection.getOut();
+					
+					if (queue.size() == 0) {
+						return;
+					}
+
+					int views = queue.gather();
+					written = channel.write(queue.getViews(), 0, views);
+					queue.removeFirst(written, latencyStatistics, LatencyStatistics.Stage.WRITE);
+					hasRemaining = queue.size() > 0;
 				}
 
-				buffer.removeFirst(written);
+				reactor.addWrite();
+				statistics.addBytesOut(written);
+
+				boolean paused = connection.isPaused() 
+						&& !getConnectionHandler().resumeIfDrained(connection);
+
+				if (hasRemaining) {
+					key.interestOps(SelectionKey.OP_WRITE);
+				} else {
+					// a paused slow consumer is not read until it has drained
+					key.interestOps(paused ? 0 : SelectionKey.OP_READ);
+					connection.releaseDrainedBuffers();
+				}
+			} catch (CancelledKeyException exception) {
+				ServerLog.info("Cancelled key for {}", connection);
 			} catch (IOException e) {
-				ServerLog.error(e.getMessage() + " in wite to " + channel.socket());
+				ServerLog.error("{} in wite to {}", e.getMessage(), channel.socket());
 				connection.close();
 			}
 		}
 	}
+
+	/** Number of socket writes done by the reactors. */
+	public long getWriteCount() {
+		long writes = 0;
+		
+		for (Reactor reactor : reactors) {
+			writes += reactor.getWrites();
+		}
+		
+		return writes;
+	}
+
+	/** Wait before flushing dirty connections. Messages that arrive during the
+	 * delay are written with the same system call, this trades latency for 
+	 * fewer writes at high message rates.
+	 * @param microseconds the delay, zero flushes as soon as possible
+	 */
+	public void setFlushDelay(long microseconds) {
+		flushDelay = Math.max(0, microseconds);
+	}
+
+	/** Flush delay in microseconds. */
+	public long getFlushDelay() {
+		return flushDelay;
+	}
+
+	/** Limits for the queued output of each connection. The slow consumer 
+	 * policy is applied when the output grows above the high watermark and 
+	 * lifted when it has drained below the low watermark.
+	 * @param low watermark in bytes
+	 * @param high watermark in bytes, at most the capacity of the output queue
+	 */
+	public void setOutboundWatermarks(int low, int high) {
+		if (low < 0 || low > high) {
+			throw new IllegalArgumentException("Invalid watermarks " + low + ", " + high);
+		}
+		
+		highWatermark = Math.min(high, ClientConnection.DEFAULT_OUTBOUND_CAPACITY);
+		lowWatermark = Math.min(low, highWatermark);
+	}
+
+	public int getLowWatermark() {
+		return lowWatermark;
+	}
+
+	public int getHighWatermark() {
+		return highWatermark;
+	}
+
+	/** Limits for topics, a JOIN above a limit is answered with REJECTED.
+	 * @param perConnection topics that one connection may join
+	 * @param total topics with subscribers on the server
+	 */
+	public void setTopicLimits(int perConnection, int total) {
+		if (perConnection < 1 || total < 1) {
+			throw new IllegalArgumentException("Invalid topic limits " + perConnection + ", " + total);
+		}
+
+		maxTopicsPerConnection = perConnection;
+		maxTopics = total;
+	}
+
+	public int getMaxTopicsPerConnection() {
+		return maxTopicsPerConnection;
+	}
+
+	public int getMaxTopics() {
+		return maxTopics;
+	}
+
+	public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+		slowConsumerPolicy = policy;
+	}
+
+	public SlowConsumerPolicy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
+
+	/** Time a connection may stay above the low watermark before it is closed
+	 * by the DISCONNECT policy.
+	 * @param milliseconds the grace period
+	 */
+	public void setSlowConsumerGracePeriod(long milliseconds) {
+		slowConsumerGracePeriod = Math.max(0, milliseconds);
+	}
+
+	public long getSlowConsumerGracePeriod() {
+		return slowConsumerGracePeriod;
+	}
+
+	/** Close connections that haven't sent anything for a while. Only input
+	 * counts, a client that only listens must send a keepalive, like an 
+	 * empty line, within the timeout. The timeout is off by default.
+	 * @param milliseconds the timeout, zero disables it
+	 */
+	public void setIdleTimeout(long milliseconds) {
+		idleTimeout = Math.max(0, milliseconds);
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/** Close connections that haven't finished the SSL handshake in time.
+	 * @param milliseconds the timeout, zero disables it
+	 */
+	public void setHandshakeTimeout(long milliseconds) {
+		handshakeTimeout = Math.max(0, milliseconds);
+	}
+
+	public long getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+
+	/** Close connections that send the beginning of a line but not the end.
+	 * @param milliseconds the timeout, zero disables it
+	 */
+	public void setPartialLineTimeout(long milliseconds) {
+		partialLineTimeout = Math.max(0, milliseconds);
+	}
+
+	public long getPartialLineTimeout() {
+		return partialLineTimeout;
+	}
+
+	/** Close connections that haven't received their last message this
+	 * long after the server or the client decided to close them.
+	 * @param milliseconds the timeout, zero disables it
+	 */
+	public void setCloseTimeout(long milliseconds) {
+		closeTimeout = Math.max(0, milliseconds);
+	}
+
+	public long getCloseTimeout() {
+		return closeTimeout;
+	}
+
+	/** Change the framing of messages, call it before the server starts.
+	 * All clients must use the same codec.
+	 */
+	public void setCodec(Codec codec) {
+		this.codec = codec;
+	}
+
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/** Let clients turn on compression of their output with the command
+	 * COMPRESS deflate.
+	 */
+	public void setCompressionEnabled(boolean compression) {
+		this.compression = compression;
+	}
+
+	public boolean isCompressionEnabled() {
+		return compression;
+	}
+
+	/** Compression level for new compressed connections, see Deflater. The
+	 * default is the fastest level.
+	 */
+	public void setCompressionLevel(int level) {
+		deflaterPool = new DeflaterPool(level);
+	}
+
+	public int getCompressionLevel() {
+		return deflaterPool.getLevel();
+	}
+
+	DeflaterPool getDeflaterPool() {
+		return deflaterPool;
+	}
+
+	public CompressionStatistics getCompressionStatistics() {
+		return compressionStatistics;
+	}
+
+	/** Keep recent broadcasts for clients that reconnect, call it before the
+	 * server starts. Broadcasts get sequence numbers when the history is
+	 * turned on, messages to topics are not kept.
+	 * @param messages maximum number of messages, zero turns the history off
+	 * @param bytes size of the ring of direct memory for the messages
+	 */
+	public void setHistory(int messages, int bytes) {
+		history = messages > 0 ? new History(messages, bytes) : null;
+	}
+
+	/** The recent broadcasts, null if the history is turned off. */
+	public History getHistory() {
+		return history;
+	}
+
+	/** Append the broadcasts to a journal, call it before setup. The history
+	 * is filled from the journal when the server starts.
+	 * @param journal the journal or null to turn it off, the caller closes it
+	 */
+	public void setJournal(Journal journal) {
+		this.journal = journal;
+	}
+
+	public Journal getJournal() {
+		return journal;
+	}
+
+	/** Share the messages of this server with other servers, call it
+	 * before start. The server starts and stops the mesh.
+	 * @param mesh the links to the other nodes or null to run alone
+	 */
+	public void setMesh(Mesh mesh) {
+		this.mesh = mesh;
+	}
+
+	public Mesh getMesh() {
+		return mesh;
+	}
+
+	/** Send the last broadcasts to new connections.
+	 * @param messages number of messages, zero for none
+	 */
+	public void setJoinHistory(int messages) {
+		joinHistory = Math.max(0, messages);
+	}
+
+	public int getJoinHistory() {
+		return joinHistory;
+	}
+
+	/** Start watching the deadlines of a new connection, called by the
+	 * reactor thread when the connection has been registered.
+	 */
+	void scheduleTimeouts(ClientConnection connection, TimerWheel wheel) {
+		TimerWheel.Timeout timeout = new TimerWheel.Timeout(() -> checkTimeouts(connection, wheel));
+		connection.setTimeout(timeout);
+		long delay = getCheckInterval();
+
+		if (delay > 0) {
+			wheel.schedule(timeout, delay);
+		}
+	}
+
+	/** The longest time a connection goes without a check, a deadline is
+	 * noticed at most this late.
+	 */
+	private long getCheckInterval() {
+		long interval = Long.MAX_VALUE;
+
+		for (long timeout : new long[] { idleTimeout, handshakeTimeout, partialLineTimeout, closeTimeout }) {
+			if (timeout > 0) {
+				interval = Math.min(interval, timeout);
+			}
+		}
+
+		return interval == Long.MAX_VALUE ? 0 : interval;
+	}
+
+	/** Close the connection if one of its deadlines has passed, otherwise
+	 * check it again at the next deadline. Called by the reactor of the 
+	 * connection when its timeout expires.
+	 */
+	void checkTimeouts(ClientConnection connection, TimerWheel wheel) {
+		if (!connection.getSocketChannel().isOpen()) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		String expired = null;
+		long next = getCheckInterval();
+
+		if (next == 0) {
+			return;
+		}
+
+		next = TimeUnit.MILLISECONDS.toNanos(next);
+
+		long[] remaining = {
+			remaining(connection.getClosingSince(), closeTimeout, now),
+			connection.isHandshaking() ? remaining(connection.getHandshakeStart(), handshakeTimeout, now) : Long.MAX_VALUE,
+			remaining(connection.getPartialSince(), partialLineTimeout, now),
+			remaining(connection.getReadTime(), idleTimeout, now)
+		};
+
+		String[] names = { "Close", "Handshake", "Partial line", "Idle" };
+
+		for (int i = 0; i < remaining.length; i++) {
+			if (remaining[i] <= 0) {
+				expired = names[i];
+				break;
+			}
+
+			next = Math.min(next, remaining[i]);
+		}
+
+		if (expired == null) {
+			wheel.schedule(connection.getTimeout(), TimeUnit.NANOSECONDS.toMillis(next) + 1);
+			return;
+		}
+
+		ServerLog.info("{} timeout for {}", expired, connection);
+		statistics.addTimeout();
+		getConnectionHandler().closeConnection(connection);
+	}
+
+	/** Nanoseconds left before a deadline, Long.MAX_VALUE if there is none. */
+	private static long remaining(long since, long timeout, long now) {
+		if (since == 0 || timeout == 0) {
+			return Long.MAX_VALUE;
+		}
+
+		return since + TimeUnit.MILLISECONDS.toNanos(timeout) - now;
+	}
+
+	public SlowConsumerStatistics getSlowConsumerStatistics() {
+		return slowConsumerStatistics;
+	}
+
+	/** Traffic counters, also published as a JMX bean while the server runs. */
+	public ServerStatistics getStatistics() {
+		return statistics;
+	}
+
+	/** Latency histograms for the stages from socket read to socket write. */
+	public LatencyStatistics getLatencyStatistics() {
+		return latencyStatistics;
+	}
+
+	/** Number of topics with subscribers. */
+	public int getTopicCount() {
+		ConnectionHandler handler = connectionHandler;
+		return handler == null ? 0 : handler.getTopicCount();
+	}
+
+	SSLWorker getSSLWorker() {
+		return sslWorker;
+	}
 	
-	void processConnections() {
+	/** Accept new connections, reading and writing is done by the reactors. */
+	private void acceptConnections() {
 		int selectedKeys = 0;
 
 		try {
-			selectedKeys = getSocketSelector().select(100);
+			selectedKeys = getSocketSelector().select();
 		} catch (IOException exception) {
 			ServerLog.error(exception.getMessage());
 			return;
 		}
-		getConnectionHandler().closeDisconnectedSockets();
 		
 		if (selectedKeys <= 0) {
 			return;
@@ -434,16 +1265,11 @@ public class Server implements Runnable {
 			try {
 				SelectionKey key = iterator.next();
 				
-				if (key.isValid()) {
-					int readyOperations = key.readyOps();
-
-					if ((readyOperations & SelectionKey.OP_ACCEPT) != 0) {
-						acceptConnection();
-					} else if ((readyOperations & SelectionKey.OP_READ) != 0) {
-						processInput(key);
-					} else if ((readyOperations & SelectionKey.OP_WRITE) != 0) {
-						processOutput(key);
-					}	
+				if (key.isValid() && key.isAcceptable()) {
+					// drain the backlog, a full backlog makes clients wait
+					// for a SYN retransmission
+					while (acceptConnection()) {
+					}
 				}
 			} catch (CancelledKeyException exception) {
 				ServerLog.info("Socket operation cancelled.");
@@ -453,7 +1279,7 @@ public class Server implements Runnable {
 		}
 	}
 
-	synchronized ConnectionHandler getConnectionHandler() {
+	ConnectionHandler getConnectionHandler() {
 		return connectionHandler;
 	}
 }
@@ -1,5 +1,15 @@
 package org.birdfont.nioserver;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** Logging for the server. Messages at a disabled level cost one check of
+ * the level flags, the parameterized methods postpone building the message
+ * until it is written. Enabled records are put in a bounded ring and
+ * written to the logger by a background thread, the caller never waits for
+ * the logger. Records are dropped and counted if the ring is full.
+ */
 public abstract class ServerLog {
 	/** Log level for monitoring connections. */
 	public final static int CONNECTIONS = 1;
@@ -13,45 +23,170 @@ public abstract class ServerLog {
 	/** All logging flags */
 	public final static int ALL = CONNECTIONS | INFO | ERRORS;
 
-	private static int logLevels = CONNECTIONS | ERRORS;
+	/** Number of records that can wait for the logger. */
+	public final static int RING_CAPACITY = 8192;
+
+	private final static String PLACEHOLDER = "{}";
+
+	private static volatile int logLevels = CONNECTIONS | ERRORS;
+
+	public static volatile ServerLogger logger = new ServerLogger() {
 
-	public static ServerLogger logger = new ServerLogger() {
-		
 		@Override
 		public void log(String message) {
 			System.out.println(message);
 		}
 	};
 
+	private final static LogRing ring = new LogRing(RING_CAPACITY);
+	private final static AtomicLong dropped = new AtomicLong();
+	private final static StringBuilder line = new StringBuilder();
+	private static volatile boolean waiting = false;
+	private final static Thread writer = startWriter();
+
 	public static void setLogger(ServerLogger loggingCallback) {
 		logger = loggingCallback;
 	}
-	
+
 	public static void setLogLevels(int levels) {
 		logLevels = levels;
 	}
 
+	/** Check a level before doing expensive work for a log message. */
+	public static boolean isEnabled(int level) {
+		return (logLevels & level) != 0;
+	}
+
+	/** Number of records that were lost because the ring was full. */
+	public static long getDroppedRecords() {
+		return dropped.get();
+	}
+
 	public static void error(String message) {
-		synchronized (logger) {
-			if ((logLevels & ERRORS) != 0) {
-				logger.log(message);
-			}			
-		}
+		log(ERRORS, message, 0, null, null);
+	}
+
+	/** Log an error, {} in the format is replaced with the argument. */
+	public static void error(String format, Object argument) {
+		log(ERRORS, format, 1, argument, null);
+	}
+
+	public static void error(String format, Object first, Object second) {
+		log(ERRORS, format, 2, first, second);
 	}
 
 	public static void info(String message) {
-		synchronized (logger) {
-			if ((logLevels & INFO) != 0) {
-				logger.log(message);
+		log(INFO, message, 0, null, null);
+	}
+
+	public static void info(String format, Object argument) {
+		log(INFO, format, 1, argument, null);
+	}
+
+	public static void info(String format, Object first, Object second) {
+		log(INFO, format, 2, first, second);
+	}
+
+	public static void connection(String message) {
+		log(CONNECTIONS, message, 0, null, null);
+	}
+
+	public static void connection(String format, Object argument) {
+		log(CONNECTIONS, format, 1, argument, null);
+	}
+
+	public static void connection(String format, Object first, Object second) {
+		log(CONNECTIONS, format, 2, first, second);
+	}
+
+	private static void log(int level, String format, int arguments, Object first, Object second) {
+		if ((logLevels & level) == 0) {
+			return;
+		}
+
+		if (!ring.offer(format, arguments, first, second)) {
+			dropped.incrementAndGet();
+			return;
+		}
+
+		if (waiting) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/** Wait until all records in the ring have been passed to the logger.
+	 * @return false if the timeout expired first
+	 */
+	public static boolean flush(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while (!ring.isEmpty()) {
+			if (System.nanoTime() > deadline) {
+				return false;
 			}
+
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
 		}
+
+		return true;
 	}
 
-	public static void connection(String message) {
-		synchronized (logger) {
-			if ((logLevels & CONNECTIONS) != 0) {
-				logger.log(message);
+	private static Thread startWriter() {
+		Thread thread = new Thread(ServerLog::writeRecords, "Server log");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private static void writeRecords() {
+		while (true) {
+			LogRing.Record record = ring.poll();
+
+			if (record == null) {
+				waiting = true;
+
+				if (ring.isEmpty()) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+				}
+
+				waiting = false;
+				continue;
+			}
+
+			try {
+				logger.log(format(record));
+			} catch (RuntimeException exception) {
+				dropped.incrementAndGet();
+			} finally {
+				ring.release(record);
+			}
+		}
+	}
+
+	/** Build the message, called by the writer thread only. */
+	private static String format(LogRing.Record record) {
+		if (record.arguments == 0) {
+			return record.format;
+		}
+
+		String format = record.format;
+		line.setLength(0);
+
+		int start = 0;
+		for (int i = 0; i < record.arguments; i++) {
+			int index = format.indexOf(PLACEHOLDER, start);
+
+			if (index == -1) {
+				break;
 			}
+
+			line.append(format, start, index);
+			line.append(i == 0 ? record.first : record.second);
+			start = index + PLACEHOLDER.length();
 		}
+
+		line.append(format, start, format.length());
+		return line.toString();
 	}
 }
@@ -0,0 +1,66 @@
+package org.birdfont.nioserver;
+
+/** Server internals for JMX clients like JConsole. The server registers
+ * its bean as org.birdfont.nioserver:type=Server,port=N when it starts.
+ */
+public interface ServerMXBean {
+	int getActiveConnections();
+
+	long getAcceptedConnections();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getMessagesIn();
+
+	long getMessagesOut();
+
+	double getBytesInPerSecond();
+
+	double getBytesOutPerSecond();
+
+	double getMessagesInPerSecond();
+
+	double getMessagesOutPerSecond();
+
+	/** Connections waiting for an unwrap in the SSL worker queues. */
+	int getSSLInputQueueDepth();
+
+	/** Connections waiting for a wrap in the SSL worker queues. */
+	int getSSLOutputQueueDepth();
+
+	long getFullHandshakes();
+
+	long getResumedHandshakes();
+
+	long getBufferOverflows();
+
+	long getSelectorWakeups();
+
+	long getTimeouts();
+
+	long getCompressedConnections();
+
+	/** Uncompressed bytes divided by compressed bytes. */
+	double getCompressionRatio();
+
+	/** Milliseconds spent compressing output. */
+	long getCompressionTime();
+
+	long getSlowConsumerDisconnects();
+
+	/** Broadcasts that were lost for connections paused as slow consumers. */
+	long getSlowConsumerDroppedPaused();
+
+	int getTopicCount();
+
+	/** Links to other nodes of the mesh that are up. */
+	int getMeshPeers();
+
+	/** Messages from other nodes that were sent to the clients of this node. */
+	long getMeshMessagesReceived();
+
+	/** Messages that were not sent to a node because its link was down or full. */
+	long getMeshDroppedMessages();
+}
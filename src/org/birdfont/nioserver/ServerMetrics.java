@@ -0,0 +1,183 @@
+package org.birdfont.nioserver;
+
+/** The JMX view of a server. Counters are read when a client asks for 
+ * them, the rates are averages over the last second or more.
+ */
+class ServerMetrics implements ServerMXBean {
+	private final static long SAMPLE_INTERVAL = 1000L * 1000 * 1000;
+	
+	private final Server server;
+	private final ServerStatistics statistics;
+	
+	private long sampleTime;
+	private long[] samples;
+	private double[] rates = new double[4];
+	
+	public ServerMetrics(Server server) {
+		this.server = server;
+		this.statistics = server.getStatistics();
+		sampleTime = System.nanoTime();
+		samples = readCounters();
+	}
+	
+	private long[] readCounters() {
+		return new long[] { 
+			statistics.getBytesIn(), 
+			statistics.getBytesOut(), 
+			statistics.getMessagesIn(), 
+			statistics.getMessagesOut() 
+		};
+	}
+	
+	/** Rate of one counter, the rates are updated at most once per interval. */
+	private synchronized double getRate(int counter) {
+		long now = System.nanoTime();
+		long elapsed = now - sampleTime;
+		
+		if (elapsed >= SAMPLE_INTERVAL) {
+			long[] counters = readCounters();
+			
+			for (int i = 0; i < counters.length; i++) {
+				rates[i] = (counters[i] - samples[i]) * 1e9 / elapsed;
+			}
+			
+			samples = counters;
+			sampleTime = now;
+		}
+		
+		return rates[counter];
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return server.getConnectionCount();
+	}
+
+	@Override
+	public long getAcceptedConnections() {
+		return statistics.getAcceptedConnections();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return statistics.getBytesIn();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return statistics.getBytesOut();
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return statistics.getMessagesIn();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return statistics.getMessagesOut();
+	}
+
+	@Override
+	public double getBytesInPerSecond() {
+		return getRate(0);
+	}
+
+	@Override
+	public double getBytesOutPerSecond() {
+		return getRate(1);
+	}
+
+	@Override
+	public double getMessagesInPerSecond() {
+		return getRate(2);
+	}
+
+	@Override
+	public double getMessagesOutPerSecond() {
+		return getRate(3);
+	}
+
+	@Override
+	public int getSSLInputQueueDepth() {
+		return server.getSSLWorker().getInputQueueDepth();
+	}
+
+	@Override
+	public int getSSLOutputQueueDepth() {
+		return server.getSSLWorker().getOutputQueueDepth();
+	}
+
+	@Override
+	public long getFullHandshakes() {
+		return server.getHandshakeStatistics().getFullHandshakes();
+	}
+
+	@Override
+	public long getResumedHandshakes() {
+		return server.getHandshakeStatistics().getResumedHandshakes();
+	}
+
+	@Override
+	public long getBufferOverflows() {
+		return statistics.getBufferOverflows();
+	}
+
+	@Override
+	public long getSelectorWakeups() {
+		return statistics.getSelectorWakeups();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return statistics.getTimeouts();
+	}
+
+	@Override
+	public long getCompressedConnections() {
+		return server.getCompressionStatistics().getConnections();
+	}
+
+	@Override
+	public double getCompressionRatio() {
+		return server.getCompressionStatistics().getRatio();
+	}
+
+	@Override
+	public long getCompressionTime() {
+		return server.getCompressionStatistics().getCompressionTime() / 1000000;
+	}
+
+	@Override
+	public long getSlowConsumerDisconnects() {
+		return server.getSlowConsumerStatistics().getDisconnects();
+	}
+
+	@Override
+	public long getSlowConsumerDroppedPaused() {
+		return server.getSlowConsumerStatistics().getDroppedPaused();
+	}
+
+	@Override
+	public int getTopicCount() {
+		return server.getTopicCount();
+	}
+
+	@Override
+	public int getMeshPeers() {
+		Mesh mesh = server.getMesh();
+		return mesh == null ? 0 : mesh.getConnectedPeers();
+	}
+
+	@Override
+	public long getMeshMessagesReceived() {
+		Mesh mesh = server.getMesh();
+		return mesh == null ? 0 : mesh.getReceivedMessages();
+	}
+
+	@Override
+	public long getMeshDroppedMessages() {
+		Mesh mesh = server.getMesh();
+		return mesh == null ? 0 : mesh.getDroppedMessages();
+	}
+}
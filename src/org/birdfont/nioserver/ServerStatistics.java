@@ -0,0 +1,91 @@
+package org.birdfont.nioserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Traffic counters. The counters are striped, reactors and SSL workers 
+ * record without contending on a shared field.
+ */
+public class ServerStatistics {
+	private final LongAdder acceptedConnections = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder messagesIn = new LongAdder();
+	private final LongAdder messagesOut = new LongAdder();
+	private final LongAdder bufferOverflows = new LongAdder();
+	private final LongAdder selectorWakeups = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+
+	void addAcceptedConnection() {
+		acceptedConnections.increment();
+	}
+
+	void addBytesIn(long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	void addBytesOut(long bytes) {
+		bytesOut.add(bytes);
+	}
+
+	void addMessageIn() {
+		messagesIn.increment();
+	}
+
+	/** Count a message queued for one recipient. */
+	void addMessageOut() {
+		messagesOut.increment();
+	}
+
+	void addBufferOverflow() {
+		bufferOverflows.increment();
+	}
+
+	void addSelectorWakeup() {
+		selectorWakeups.increment();
+	}
+
+	void addTimeout() {
+		timeouts.increment();
+	}
+
+	public long getAcceptedConnections() {
+		return acceptedConnections.sum();
+	}
+
+	/** Bytes read from sockets, encrypted bytes for SSL connections. */
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	/** Bytes written to sockets, encrypted bytes for SSL connections. */
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	/** Valid messages received from clients. */
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	/** Messages queued for clients, a broadcast counts once per recipient. */
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	/** Connections closed because an input or output buffer was full. */
+	public long getBufferOverflows() {
+		return bufferOverflows.sum();
+	}
+
+	/** Number of times the reactor selectors returned. */
+	public long getSelectorWakeups() {
+		return selectorWakeups.sum();
+	}
+
+	/** Connections closed because they were idle, handshaking, sending an
+	 * incomplete line or closing for too long.
+	 */
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+}
@@ -0,0 +1,155 @@
+package org.birdfont.nioserver;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Connections or subscriptions in an array of slots. Each element 
+ * remembers its slot, adding and removing is constant time. Broadcasts 
+ * iterate over the slots without locking, an element that is added or 
+ * removed during a broadcast may or may not receive the message. Freed 
+ * slots are reused by new elements, the array is never rebuilt when
+ * connections close.
+ */
+class SlotRegistry<E extends SlotRegistry.Slotted> implements Iterable<E> {
+	private final static int INITIAL_CAPACITY = 16;
+	
+	/** An element that stores its index in one registry. */
+	interface Slotted {
+		/** @return the slot, -1 if the element isn't registered */
+		int getSlot();
+		
+		void setSlot(int slot);
+	}
+	
+	private volatile AtomicReferenceArray<E> slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+	
+	/** Slots above the limit have never been used. */
+	private volatile int limit = 0;
+	private volatile int size = 0;
+	
+	private int[] free = new int[INITIAL_CAPACITY];
+	private int freeCount = 0;
+	
+	/** Add an element to a free slot.
+	 * @return false if the element is already in a registry
+	 */
+	public synchronized boolean add(E element) {
+		if (element.getSlot() != -1) {
+			return false;
+		}
+		
+		int slot;
+		
+		if (freeCount > 0) {
+			slot = free[--freeCount];
+		} else {
+			if (limit == slots.length()) {
+				grow();
+			}
+			
+			slot = limit;
+		}
+		
+		slots.set(slot, element);
+		element.setSlot(slot);
+		
+		if (slot == limit) {
+			// published after the slot so that iterators see the element
+			limit = slot + 1;
+		}
+		
+		size++;
+		return true;
+	}
+	
+	/** Remove an element and free its slot.
+	 * @return false if the element wasn't in the registry
+	 */
+	public synchronized boolean remove(E element) {
+		int slot = element.getSlot();
+		
+		if (slot == -1 || slot >= limit || slots.get(slot) != element) {
+			return false;
+		}
+		
+		slots.set(slot, null);
+		element.setSlot(-1);
+		size--;
+		
+		if (size == 0) {
+			// all slots are free, start over from the first slot
+			limit = 0;
+			freeCount = 0;
+			return true;
+		}
+		
+		if (freeCount == free.length) {
+			int[] larger = new int[free.length * 2];
+			System.arraycopy(free, 0, larger, 0, freeCount);
+			free = larger;
+		}
+		
+		free[freeCount++] = slot;
+		return true;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/** Double the number of slots, iterators keep reading the old array. */
+	private void grow() {
+		AtomicReferenceArray<E> old = slots;
+		AtomicReferenceArray<E> larger = new AtomicReferenceArray<>(old.length() * 2);
+		
+		for (int i = 0; i < limit; i++) {
+			larger.set(i, old.get(i));
+		}
+		
+		slots = larger;
+	}
+	
+	/** Iterate over a snapshot of the slot array without locking. */
+	@Override
+	public Iterator<E> iterator() {
+		return new SlotIterator<>(slots, limit);
+	}
+	
+	private static class SlotIterator<E> implements Iterator<E> {
+		private final AtomicReferenceArray<E> slots;
+		private final int limit;
+		private int index = 0;
+		private E next;
+		
+		SlotIterator(AtomicReferenceArray<E> slots, int limit) {
+			this.slots = slots;
+			this.limit = Math.min(limit, slots.length());
+			advance();
+		}
+		
+		private void advance() {
+			next = null;
+			
+			while (next == null && index < limit) {
+				next = slots.get(index++);
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+		
+		@Override
+		public E next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			
+			E element = next;
+			advance();
+			return element;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package org.birdfont.nioserver;
+
+/** What the server does when the queued output of a connection grows above
+ * the high watermark.
+ */
+public enum SlowConsumerPolicy {
+	/** Stop reading from the connection until the output has drained below
+	 * the low watermark, a paused client can't send messages. Other clients 
+	 * keep sending, broadcasts to a paused connection are not queued and are 
+	 * lost for it, they are counted as dropped while paused.
+	 */
+	PAUSE,
+	
+	/** Drop the oldest queued messages that have not been written. */
+	DROP_OLDEST,
+	
+	/** Drop new messages until the output has drained below the low watermark. */
+	DROP_NEWEST,
+	
+	/** Close the connection if the output is still above the low watermark 
+	 * when the grace period has passed.
+	 */
+	DISCONNECT
+}
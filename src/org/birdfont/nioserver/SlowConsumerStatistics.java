@@ -0,0 +1,75 @@
+package org.birdfont.nioserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters for the actions taken against slow consumers. */
+public class SlowConsumerStatistics {
+	private final AtomicLong pauses = new AtomicLong();
+	private final AtomicLong resumes = new AtomicLong();
+	private final AtomicLong droppedOldest = new AtomicLong();
+	private final AtomicLong droppedNewest = new AtomicLong();
+	private final AtomicLong droppedPaused = new AtomicLong();
+	private final AtomicLong disconnects = new AtomicLong();
+
+	void addPause() {
+		pauses.incrementAndGet();
+	}
+
+	void addResume() {
+		resumes.incrementAndGet();
+	}
+
+	void addDroppedOldest(int messages) {
+		droppedOldest.addAndGet(messages);
+	}
+
+	void addDroppedNewest(int messages) {
+		droppedNewest.addAndGet(messages);
+	}
+
+	void addDroppedPaused(int messages) {
+		droppedPaused.addAndGet(messages);
+	}
+
+	void addDisconnect() {
+		disconnects.incrementAndGet();
+	}
+
+	/** Number of times reading was paused for a connection. */
+	public long getPauses() {
+		return pauses.get();
+	}
+
+	public long getResumes() {
+		return resumes.get();
+	}
+
+	/** Queued messages that were dropped to make room for new messages. */
+	public long getDroppedOldest() {
+		return droppedOldest.get();
+	}
+
+	/** New messages that were dropped while a connection was congested. */
+	public long getDroppedNewest() {
+		return droppedNewest.get();
+	}
+
+	/** Broadcasts that were lost for connections paused as slow consumers. */
+	public long getDroppedPaused() {
+		return droppedPaused.get();
+	}
+
+	/** Slow connections that were closed, after the grace period or when the
+	 * queue was full.
+	 */
+	public long getDisconnects() {
+		return disconnects.get();
+	}
+
+	@Override
+	public String toString() {
+		return "Slow consumers: " + getPauses() + " paused, " + getResumes() + " resumed, " 
+				+ getDroppedOldest() + " oldest dropped, " + getDroppedNewest() + " newest dropped, " 
+				+ getDroppedPaused() + " dropped while paused, " + getDisconnects() + " disconnected";
+	}
+}
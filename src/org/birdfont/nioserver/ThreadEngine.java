@@ -0,0 +1,428 @@
+package org.birdfont.nioserver;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/** An engine that gives each connection a reader thread and a writer thread
+ * with blocking socket operations, as an alternative to the reactors and the
+ * SSL worker queues. Virtual threads are used when the JDK has them, platform
+ * threads otherwise. The reader parks on the socket, the writer parks until 
+ * the connection handler queues output for it.
+ */
+class ThreadEngine {
+	private final static Method OF_VIRTUAL;
+	private final static Method NAME;
+	private final static Method UNSTARTED;
+	
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		
+		try {
+			// Thread.ofVirtual().name(name).unstarted(task) on Java 21 and later
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+			unstarted.invoke(ofVirtual.invoke(null), (Runnable) () -> {});
+		} catch (ReflectiveOperationException | RuntimeException exception) {
+			ofVirtual = null;
+		}
+		
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+	}
+	
+	private final Server server;
+	private final SSLWorker sslWorker;
+	private final Map<ClientConnection, Thread> readers = new ConcurrentHashMap<>();
+	private volatile boolean running = false;
+	
+	public ThreadEngine(Server server, SSLWorker sslWorker) {
+		this.server = server;
+		this.sslWorker = sslWorker;
+	}
+	
+	/** True if connections run on virtual threads. */
+	public static boolean isVirtual() {
+		return OF_VIRTUAL != null;
+	}
+	
+	private static Thread newThread(Runnable task, String name) {
+		if (OF_VIRTUAL != null) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) UNSTARTED.invoke(builder, task);
+			} catch (ReflectiveOperationException exception) {
+				ServerLog.error("Can't create virtual thread. {}", exception.getMessage());
+			}
+		}
+		
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+	public void start() {
+		running = true;
+	}
+	
+	/** Close all sockets and wait for the threads to exit. */
+	public void stop() {
+		running = false;
+		
+		for (Map.Entry<ClientConnection, Thread> entry : readers.entrySet()) {
+			entry.getKey().close();
+			LockSupport.unpark(entry.getValue());
+			LockSupport.unpark(entry.getKey().getWriter());
+		}
+		
+		for (Map.Entry<ClientConnection, Thread> entry : readers.entrySet()) {
+			join(entry.getValue());
+			join(entry.getKey().getWriter());
+		}
+		
+		readers.clear();
+	}
+	
+	private static void join(Thread thread) {
+		boolean done = false;
+		
+		while (!done) {
+			try {
+				thread.join();
+				done = true;
+			} catch (InterruptedException e) {
+				ServerLog.info("Interrupted while waiting for {}", thread.getName());
+			}
+		}
+	}
+	
+	/** Start the threads of a new connection, the channel is switched to
+	 * blocking mode.
+	 */
+	public void add(ClientConnection connection) throws IOException {
+		connection.getSocketChannel().configureBlocking(true);
+		
+		Thread reader = newThread(() -> read(connection), "Reader " + connection);
+		Thread writer = newThread(() -> write(connection), "Writer " + connection);
+		connection.setWriter(writer);
+		readers.put(connection, reader);
+		server.getConnectionHandler().addConnection(connection);
+		
+		writer.start();
+		reader.start();
+	}
+	
+	private void read(ClientConnection connection) {
+		SocketChannel channel = connection.getSocketChannel();
+		
+		try {
+			while (running && waitForOutput(connection) && fill(connection)) {
+				if (server.isUsingSSL()) {
+					// unwrap until the input ring has room for all records
+					while (unwrap(connection)) {
+						server.requestRead(connection);
+					}
+				}
+				
+				server.requestRead(connection);
+			}
+		} catch (SSLException exception) {
+			ServerLog.error("{} for connection {}", exception.getMessage(), channel);
+		} catch (BufferOverflowException exception) {
+			ServerLog.error("Input buffer is full. Closing connection.");
+			server.getStatistics().addBufferOverflow();
+		} catch (IOException exception) {
+			if (running && channel.isOpen()) {
+				ServerLog.error("{} for connection {}", exception.getMessage(), channel);
+			}
+		}
+		
+		readers.remove(connection);
+		server.getConnectionHandler().closeConnection(connection);
+		LockSupport.unpark(connection.getWriter());
+	}
+	
+	/** Park while the connection is paused as a slow consumer, the writer
+	 * unparks the reader when the output has drained.
+	 * @return false if the connection was closed while waiting
+	 */
+	private boolean waitForOutput(ClientConnection connection) {
+		while (connection.isPaused()) {
+			if (!running || !connection.getSocketChannel().isOpen()) {
+				return false;
+			}
+			
+			LockSupport.park(this);
+		}
+		
+		return true;
+	}
+	
+	/** Read from the socket into the free space of the ring. The blocking 
+	 * read is done without the connection lock, only this thread adds bytes
+	 * to the ring.
+	 * @return false at the end of the stream
+	 */
+	private boolean fill(ClientConnection connection) throws IOException {
+		LineBuffer buffer = server.isUsingSSL() ? connection.getSSLInput() : connection.getIn();
+		int views;
+		
+		synchronized (connection) {
+			views = buffer.writableViews();
+		}
+		
+		if (views == 0) {
+			throw new BufferOverflowException();
+		}
+		
+		long size = connection.getSocketChannel().read(buffer.getViews(), 0, views);
+		
+		if (size < 0) {
+			ServerLog.info("End of stream on {}", connection);
+			return false;
+		}
+		
+		synchronized (connection) {
+			// the buffers of a closed connection are back in the pool
+			if (!connection.getSocketChannel().isOpen()) {
+				return false;
+			}
+
+			buffer.commitWrite((int) size);
+		}
+		
+		connection.setReadTime(System.nanoTime());
+		
+		server.getStatistics().addBytesIn(size);
+		
+		return true;
+	}
+	
+	/** Unwrap all complete records.
+	 * @return true if the input ring is full and its lines must be read 
+	 * before the rest is unwrapped
+	 */
+	private boolean unwrap(ClientConnection connection) throws SSLException {
+		SSLEngine engine = connection.getSSLEngine();
+		MessageBuffer sslInput = connection.getSSLInput();
+		ChunkedBuffer in = connection.getIn();
+		
+		try {
+			synchronized (connection) {
+				while (sslInput.size() > 0) {
+					// a record never decrypts to more bytes than it has
+					ByteBuffer sslData = sslInput.readableRegion();
+					int views = in.writableViews(SSLWorker.getRecordLength(sslData));
+					SSLEngineResult result = engine.unwrap(sslData, in.getViews(), 0, views);
+					in.commitWrite(result.bytesProduced());
+					sslInput.removeFirst(result.bytesConsumed());
+					handleHandshakeStatus(connection, result);
+					
+					switch (result.getStatus()) {
+					case BUFFER_OVERFLOW:
+						connection.prepareUnwrap(server.getCodec());
+						return true;
+					case BUFFER_UNDERFLOW:
+						// wait for the rest of the record
+						return false;
+					case CLOSED:
+						throw new SSLException("SSL connection is closed.");
+					default:
+						break;
+					}
+				}
+			}
+			
+			return false;
+		} finally {
+			// the handshake or output that waited for it may continue
+			LockSupport.unpark(connection.getWriter());
+		}
+	}
+	
+	private void write(ClientConnection connection) {
+		SocketChannel channel = connection.getSocketChannel();
+		boolean ssl = server.isUsingSSL();
+		
+		try {
+			while (channel.isOpen()) {
+				ByteBuffer[] buffers;
+				int views;
+				boolean done = false;
+				Journal.Transfer transfer;
+
+				synchronized (connection) {
+					Compressor compressor = connection.getCompressor();
+					transfer = ssl || compressor != null ? null : connection.getTransfer();
+
+					if (transfer != null) {
+						views = 0;
+						buffers = null;
+					} else if (ssl) {
+						wrap(connection);
+						views = connection.getSSLOutput().readableViews();
+						buffers = connection.getSSLOutput().getViews();
+					} else if (compressor != null) {
+						compressor.compress(connection.getOut(), 
+								server.getLatencyStatistics(), LatencyStatistics.Stage.WRITE);
+						views = compressor.readableViews();
+						buffers = compressor.getViews();
+					} else {
+						views = connection.getOut().gather();
+						buffers = connection.getOut().getViews();
+					}
+					
+					done = views == 0 && connection.isClosing() && connection.hasEmptyOutput();
+				}
+				
+				if (done) {
+					// the last message has been sent
+					server.getConnectionHandler().closeConnection(connection);
+					break;
+				}
+
+				if (transfer != null) {
+					// the journal is sent before the queued frames
+					server.getStatistics().addBytesOut(transfer.transferTo(channel));
+
+					synchronized (connection) {
+						if (transfer.isDone()) {
+							connection.setTransfer(null);
+						}
+					}
+
+					continue;
+				}
+				
+				if (views == 0) {
+					LockSupport.park(this);
+					continue;
+				}
+				
+				long written = channel.write(buffers, 0, views);
+				server.getStatistics().addBytesOut(written);
+				boolean resumed;
+				
+				synchronized (connection) {
+					if (!channel.isOpen()) {
+						break;
+					}
+
+					if (ssl) {
+						connection.getSSLOutput().removeFirst((int) written);
+						server.getLatencyStatistics().recordEncryptedWrite(connection);
+					} else if (connection.getCompressor() != null) {
+						connection.getCompressor().getOutput().removeFirst((int) written);
+					} else {
+						connection.getOut().removeFirst(written, 
+								server.getLatencyStatistics(), LatencyStatistics.Stage.WRITE);
+					}
+					
+					resumed = server.getConnectionHandler().resumeIfDrained(connection);
+				}
+				
+				if (resumed) {
+					LockSupport.unpark(readers.get(connection));
+				}
+			}
+		} catch (SSLException exception) {
+			ServerLog.error("{} for connection {}", exception.getMessage(), channel);
+			server.getConnectionHandler().closeConnection(connection);
+		} catch (IOException exception) {
+			if (running && channel.isOpen()) {
+				ServerLog.error("{} for connection {}", exception.getMessage(), channel);
+			}
+			
+			server.getConnectionHandler().closeConnection(connection);
+		}
+	}
+	
+	/** Wrap queued messages and handshake records until the SSL output ring
+	 * is full. A closing connection sends close notify when the queue is empty.
+	 */
+	private void wrap(ClientConnection connection) throws SSLException {
+		SSLEngine engine = connection.getSSLEngine();
+		OutboundQueue out = connection.getOut();
+		MessageBuffer sslOutput = connection.getSSLOutput();
+		int packetSize = engine.getSession().getPacketBufferSize();
+		
+		Compressor compressor = connection.getCompressor();
+
+		while (sslOutput.available() >= packetSize) {
+			long oldest;
+			MessageBuffer compressed = null;
+
+			if (compressor != null) {
+				oldest = compressor.compress(out, server.getLatencyStatistics(), LatencyStatistics.Stage.WRAP);
+				connection.addWrapped(oldest);
+				compressed = compressor.getOutput();
+			}
+
+			boolean empty = compressed != null ? compressed.size() == 0 : out.size() == 0;
+
+			if (empty && engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+				if (!connection.isClosing() || engine.isOutboundDone()) {
+					return;
+				}
+				
+				engine.closeOutbound();
+			}
+			
+			SSLEngineResult result;
+
+			if (compressed != null) {
+				int views = compressor.readableViews();
+				result = engine.wrap(compressor.getViews(), 0, views, sslOutput.writableRegion(packetSize));
+				compressed.removeFirst(result.bytesConsumed());
+			} else {
+				int views = out.gather();
+				result = engine.wrap(out.getViews(), 0, views, sslOutput.writableRegion(packetSize));
+				oldest = out.removeFirst(result.bytesConsumed(), 
+						server.getLatencyStatistics(), LatencyStatistics.Stage.WRAP);
+				connection.addWrapped(oldest);
+			}
+
+			sslOutput.commitWrite(result.bytesProduced());
+			handleHandshakeStatus(connection, result);
+			
+			if (result.bytesConsumed() == 0 && result.bytesProduced() == 0 
+					&& result.getHandshakeStatus() != HandshakeStatus.NEED_TASK) {
+				// waiting for the client
+				return;
+			}
+		}
+	}
+	
+	private void handleHandshakeStatus(ClientConnection connection, SSLEngineResult result) {
+		switch (result.getHandshakeStatus()) {
+		case NEED_TASK:
+			SSLEngine engine = connection.getSSLEngine();
+			Runnable task;
+			
+			while ((task = engine.getDelegatedTask()) != null) {
+				task.run();
+			}
+			break;
+		case FINISHED:
+			sslWorker.addHandshake(connection);
+			break;
+		default:
+			break;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package org.birdfont.nioserver;
+
+import java.util.ArrayList;
+
+/** A hashed timer wheel. Timeouts are kept in doubly linked lists, one list
+ * for each slot on the wheel, scheduling and cancelling is O(1) regardless
+ * of the number of timeouts. The owner advances the wheel one tick at a
+ * time, only the timeouts in the current slot are visited. Timeouts further
+ * away than one turn of the wheel wait for a number of rounds.
+ */
+public class TimerWheel {
+	/** Default resolution of the wheel in milliseconds. */
+	public final static long DEFAULT_TICK = 100;
+
+	/** Default number of slots, one turn of the wheel is 51.2 seconds. */
+	public final static int DEFAULT_SLOTS = 512;
+
+	private final Timeout[] slots;
+	private final int mask;
+	private final long tick;
+	private long tickTime;
+	private int current = 0;
+	private int size = 0;
+	private final ArrayList<Timeout> expired = new ArrayList<>();
+
+	public TimerWheel() {
+		this(DEFAULT_TICK, DEFAULT_SLOTS);
+	}
+
+	/** @param tick milliseconds between two slots
+	 * @param slots number of slots, rounded up to a power of two
+	 */
+	public TimerWheel(long tick, int slots) {
+		int size = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+		this.slots = new Timeout[size];
+		this.tick = tick;
+		mask = size - 1;
+		tickTime = System.currentTimeMillis();
+	}
+
+	/** Schedule a timeout, a timeout that is already scheduled is moved.
+	 * @param delay milliseconds until the timeout expires, rounded up to
+	 * whole ticks
+	 */
+	public synchronized void schedule(Timeout timeout, long delay) {
+		if (timeout.wheel != null) {
+			unlink(timeout);
+		}
+
+		long ticks = Math.max(1, (delay + tick - 1) / tick);
+		int index = (int) ((current + ticks) & mask);
+		timeout.rounds = (ticks - 1) / slots.length;
+		timeout.index = index;
+		timeout.wheel = this;
+
+		Timeout head = slots[index];
+		timeout.next = head;
+		timeout.previous = null;
+
+		if (head != null) {
+			head.previous = timeout;
+		}
+
+		slots[index] = timeout;
+		size++;
+	}
+
+	/** Remove a timeout before it expires, nothing happens if the timeout
+	 * isn't scheduled.
+	 */
+	public synchronized void cancel(Timeout timeout) {
+		if (timeout.wheel == this) {
+			unlink(timeout);
+		}
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			slots[timeout.index] = timeout.next;
+		}
+
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+
+		timeout.next = null;
+		timeout.previous = null;
+		timeout.wheel = null;
+		size--;
+	}
+
+	/** Move the wheel forward to the current time and run the expired
+	 * timeouts, called by the thread that owns the wheel. The tasks run
+	 * without the lock of the wheel and may schedule new timeouts.
+	 */
+	public void advance(long now) {
+		synchronized (this) {
+			if (size == 0 && tickTime + tick <= now) {
+				// nothing to expire, skip the time the owner was idle
+				long ticks = (now - tickTime) / tick;
+				tickTime += ticks * tick;
+				current = (int) ((current + ticks) & mask);
+			}
+
+			while (tickTime + tick <= now) {
+				tickTime += tick;
+				current = (current + 1) & mask;
+				expireSlot(slots[current]);
+			}
+		}
+
+		for (int i = 0; i < expired.size(); i++) {
+			expired.get(i).task.run();
+		}
+
+		expired.clear();
+	}
+
+	private void expireSlot(Timeout timeout) {
+		while (timeout != null) {
+			Timeout next = timeout.next;
+
+			if (timeout.rounds > 0) {
+				timeout.rounds--;
+			} else {
+				unlink(timeout);
+				expired.add(timeout);
+			}
+
+			timeout = next;
+		}
+	}
+
+	/** Milliseconds until the wheel should be advanced again, the slots
+	 * before it are empty.
+	 * @return the delay or -1 if no timeouts are scheduled
+	 */
+	public synchronized long getDelay(long now) {
+		if (size == 0) {
+			return -1;
+		}
+
+		int ticks = 1;
+
+		while (ticks < slots.length && slots[(current + ticks) & mask] == null) {
+			ticks++;
+		}
+
+		return Math.max(0, tickTime + ticks * tick - now);
+	}
+
+	/** Number of scheduled timeouts. */
+	public synchronized int size() {
+		return size;
+	}
+
+	/** An entry on the wheel, it can be scheduled again after it has expired
+	 * or been cancelled.
+	 */
+	public static class Timeout {
+		private final Runnable task;
+		private TimerWheel wheel;
+		private Timeout next;
+		private Timeout previous;
+		private long rounds;
+		private int index;
+
+		public Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		/** Remove the timeout from its wheel. */
+		public void cancel() {
+			TimerWheel wheel = this.wheel;
+
+			if (wheel != null) {
+				wheel.cancel(this);
+			}
+		}
+
+		public boolean isScheduled() {
+			return wheel != null;
+		}
+	}
+}
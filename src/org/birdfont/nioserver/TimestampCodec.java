@@ -0,0 +1,149 @@
+package org.birdfont.nioserver;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/** Parse and format time stamps on the form YYYY-MM-dd HH:mm:ss. Messages 
+ * that arrive within the same second share the time stamp, the last parsed 
+ * and the last formatted second are cached. The codec is thread safe, each
+ * cache entry is immutable and replaced as a whole.
+ */
+public final class TimestampCodec {
+	/** Number of bytes in a time stamp. */
+	public final static int LENGTH = 19;
+
+	private final static TimestampCodec DEFAULT = new TimestampCodec(ZoneId.systemDefault());
+	private final static String PATTERN = "dddd-dd-dd dd:dd:dd";
+
+	private final ZoneId zone;
+	private final DateTimeFormatter formatter;
+	private volatile Entry parsed = new Entry(0, null, null);
+	private volatile Entry formatted = new Entry(Long.MIN_VALUE, null, null);
+
+	public TimestampCodec(ZoneId zone) {
+		this.zone = zone;
+		formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(zone);
+	}
+
+	/** The codec for the time zone of the server. */
+	public static TimestampCodec getDefault() {
+		return DEFAULT;
+	}
+
+	/** Parse a time stamp.
+	 * @param text an array with at least LENGTH bytes after the offset
+	 * @param offset start of the time stamp
+	 * @return milliseconds since the epoch
+	 * @throws ParseException if the bytes are not a valid time stamp
+	 */
+	public long parse(byte[] text, int offset) throws ParseException {
+		Entry entry = parsed;
+
+		if (entry.matches(text, offset)) {
+			return entry.value;
+		}
+
+		validate(text, offset);
+
+		try {
+			LocalDateTime time = LocalDateTime.of(
+					number(text, offset, 4), 
+					number(text, offset + 5, 2), 
+					number(text, offset + 8, 2),
+					number(text, offset + 11, 2), 
+					number(text, offset + 14, 2), 
+					number(text, offset + 17, 2));
+
+			long millis = time.atZone(zone).toInstant().toEpochMilli();
+			byte[] key = new byte[LENGTH];
+			System.arraycopy(text, offset, key, 0, LENGTH);
+			parsed = new Entry(millis, key, null);
+			return millis;
+		} catch (DateTimeException exception) {
+			throw new ParseException("Invalid time stamp. " + exception.getMessage(), offset);
+		}
+	}
+
+	public long parse(String text) throws ParseException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+		if (bytes.length != LENGTH) {
+			throw new ParseException("Invalid time stamp.", 0);
+		}
+
+		return parse(bytes, 0);
+	}
+
+	/** Format a time stamp, the text is reused for all calls in the same second. */
+	public String format(long millis) {
+		long second = Math.floorDiv(millis, 1000);
+		Entry entry = formatted;
+
+		if (entry.value == second) {
+			return entry.text;
+		}
+
+		String text = formatter.format(Instant.ofEpochSecond(second));
+		formatted = new Entry(second, null, text);
+		return text;
+	}
+
+	private static void validate(byte[] text, int offset) throws ParseException {
+		if (offset + LENGTH > text.length) {
+			throw new ParseException("Time stamp is too short.", offset);
+		}
+
+		for (int i = 0; i < LENGTH; i++) {
+			char expected = PATTERN.charAt(i);
+			byte b = text[offset + i];
+
+			if (expected == 'd' ? b < '0' || b > '9' : b != expected) {
+				throw new ParseException("Invalid time stamp.", offset + i);
+			}
+		}
+	}
+
+	private static int number(byte[] text, int offset, int digits) {
+		int value = 0;
+
+		for (int i = 0; i < digits; i++) {
+			value = value * 10 + (text[offset + i] - '0');
+		}
+
+		return value;
+	}
+
+	/** A cached time stamp, milliseconds for parsed entries and seconds for
+	 * formatted entries.
+	 */
+	private static class Entry {
+		final long value;
+		final byte[] key;
+		final String text;
+
+		Entry(long value, byte[] key, String text) {
+			this.value = value;
+			this.key = key;
+			this.text = text;
+		}
+
+		boolean matches(byte[] text, int offset) {
+			if (key == null || offset + LENGTH > text.length) {
+				return false;
+			}
+
+			for (int i = LENGTH - 1; i >= 0; i--) {
+				if (key[i] != text[offset + i]) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package org.birdfont.nioserver;
+
+/** A named channel. Messages published to a topic are only sent to the 
+ * connections that have joined it, the subscribers are kept in a slot 
+ * registry so joins and leaves are constant time and publishing doesn't 
+ * lock the topic.
+ */
+class Topic {
+	/** Longest topic name that can be joined. */
+	final static int MAX_NAME_LENGTH = 64;
+
+	private final String name;
+	private final SlotRegistry<Subscription> subscribers = new SlotRegistry<>();
+	private boolean closed = false;
+	
+	public Topic(String name) {
+		this.name = name;
+	}
+	
+	public String getName() {
+		return name;
+	}
+
+	/** Topic names are ASCII letters, digits and the characters - _ . :
+	 * with at most MAX_NAME_LENGTH characters.
+	 */
+	static boolean isValidName(String name) {
+		if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+			return false;
+		}
+
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+			boolean digit = c >= '0' && c <= '9';
+
+			if (!letter && !digit && c != '-' && c != '_' && c != '.' && c != ':') {
+				return false;
+			}
+		}
+
+		return true;
+	}
+	
+	/** Subscribers for publishing, iterated without locking. */
+	public SlotRegistry<Subscription> getSubscribers() {
+		return subscribers;
+	}
+	
+	/** Add a subscriber, guarded by the topic lock.
+	 * @return null if the topic has been closed
+	 */
+	synchronized Subscription subscribe(ClientConnection connection) {
+		if (closed) {
+			return null;
+		}
+		
+		Subscription subscription = new Subscription(this, connection);
+		subscribers.add(subscription);
+		return subscription;
+	}
+	
+	/** Remove a subscriber, the last subscriber closes the topic.
+	 * @return true if the topic was closed and must be removed from the index
+	 */
+	synchronized boolean unsubscribe(Subscription subscription) {
+		subscribers.remove(subscription);
+		
+		if (subscribers.size() == 0) {
+			closed = true;
+		}
+		
+		return closed;
+	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
+	
+	/** A connection in one topic, it remembers its slot in the topic. */
+	static class Subscription implements SlotRegistry.Slotted {
+		private final Topic topic;
+		private final ClientConnection connection;
+		private int slot = -1;
+		
+		Subscription(Topic topic, ClientConnection connection) {
+			this.topic = topic;
+			this.connection = connection;
+		}
+		
+		public Topic getTopic() {
+			return topic;
+		}
+		
+		public ClientConnection getConnection() {
+			return connection;
+		}
+		
+		@Override
+		public int getSlot() {
+			return slot;
+		}
+		
+		@Override
+		public void setSlot(int slot) {
+			this.slot = slot;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Tests for the chunked input buffer. */
+public class ChunkedBufferTest {
+
+	@Test
+	public void testLines() {
+		ChunkedBuffer buffer = new ChunkedBuffer(16, 256, null);
+
+		for (int i = 0; i < 1000; i++) {
+			String test = "A line that spans chunks " + i + "\n";
+			buffer.add(test);
+
+			assertEquals(test.trim(), buffer.nextLine());
+			assertEquals(0, buffer.size());
+		}
+
+		buffer.add("first\nsecond");
+		assertEquals("first", buffer.nextLine());
+		assertNull(buffer.nextLine());
+		assertEquals('s', buffer.get(0));
+		assertEquals('d', buffer.get(5));
+		buffer.add("\n");
+		assertEquals("second", buffer.nextLine());
+	}
+
+	@Test
+	public void testPool() {
+		BufferPool pool = new BufferPool();
+		ChunkedBuffer buffer = new ChunkedBuffer(256, 4096, pool);
+
+		assertFalse(buffer.isAllocated());
+		buffer.add("small message\n");
+		assertEquals(1, buffer.getChunkCount());
+		assertEquals(256, pool.getBorrowedBytes());
+
+		assertEquals("small message", buffer.nextLine());
+		assertTrue(buffer.release());
+		assertEquals(0, pool.getBorrowedBytes());
+	}
+
+	@Test
+	public void testWindow() throws InterruptedException {
+		ChunkedBuffer buffer = new ChunkedBuffer(16, 1024, null);
+		assertEquals(1, buffer.getWindow());
+
+		// reads that fill the window make it grow
+		for (int i = 0; i < 3; i++) {
+			int views = buffer.writableViews();
+			int written = fill(buffer.getViews(), views);
+			buffer.commitWrite(written);
+			buffer.removeFirst(written);
+		}
+
+		assertEquals(8, buffer.getWindow());
+		int views = buffer.writableViews();
+		assertEquals(8 * 16, fill(buffer.getViews(), views));
+		buffer.commitWrite(0);
+
+		// the window shrinks when the connection has been idle
+		Thread.sleep(ChunkedBuffer.IDLE_TIME / 1000 / 1000 + 100);
+		views = buffer.writableViews();
+		assertEquals(1, views);
+		assertEquals(16, buffer.getViews()[0].remaining());
+	}
+
+	private static int fill(ByteBuffer[] views, int count) {
+		int written = 0;
+
+		for (int i = 0; i < count; i++) {
+			while (views[i].hasRemaining()) {
+				views[i].put((byte) 'x');
+				written++;
+			}
+		}
+
+		return written;
+	}
+
+}
@@ -0,0 +1,146 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.text.ParseException;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Tests for the length prefixed codec. */
+public class CodecTest {
+
+	@Test
+	public void testDecode() throws ParseException {
+		LengthPrefixedCodec codec = new LengthPrefixedCodec();
+		MessageBuffer buffer = new MessageBuffer(1024);
+		MessageView message = new MessageView();
+
+		byte[] frame = LengthPrefixedCodec.encodeMessage("ALICE", 1234567890123L, "two\nlines");
+		buffer.add(frame, 0, 10);
+		assertEquals(-1, codec.decode(buffer, message));
+
+		buffer.add(frame, 10, frame.length - 10);
+		assertEquals(frame.length, codec.decode(buffer, message));
+		message.parse();
+		assertEquals("ALICE", message.getSender());
+		assertEquals(1234567890123L, message.getTimeStamp());
+		assertEquals("two\nlines", message.getBody());
+		assertFalse(message.equals("CLOSE"));
+		buffer.removeFirst(frame.length);
+
+		byte[] command = LengthPrefixedCodec.encodeCommand("JOIN room");
+		buffer.add(command, 0, command.length);
+		assertEquals(command.length, codec.decode(buffer, message));
+		assertTrue(message.isCommand("JOIN"));
+		assertEquals("room", message.getArgument("JOIN"));
+		buffer.removeFirst(command.length);
+
+		buffer.add(new byte[] { 0x7F, 0, 0, 0, 1 }, 0, 5);
+
+		try {
+			codec.decode(buffer, message);
+			fail("Oversized frame was accepted.");
+		} catch (ParseException exception) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testServer() throws Exception {
+		Server server = new Server();
+		server.setOnlyLocalHost(true);
+		server.setUsingSSL(false);
+		server.setCodec(new LengthPrefixedCodec());
+		server.setLogLevels(ServerLog.ERRORS);
+		server.setup();
+		server.start();
+
+		try (Socket alice = new Socket("localhost", server.getPort());
+				Socket bob = new Socket("localhost", server.getPort())) {
+			alice.setSoTimeout(5000);
+			bob.setSoTimeout(5000);
+
+			write(bob, LengthPrefixedCodec.encodeCommand("JOIN room"));
+			assertArrayEquals(LengthPrefixedCodec.encodeCommand("JOINED room"), read(bob));
+
+			// wait until both connections have been registered
+			while (server.getConnectionCount() < 2) {
+				Thread.sleep(10);
+			}
+
+			byte[] message = LengthPrefixedCodec.encodeMessage("ALICE", System.currentTimeMillis(), "first\nsecond");
+			write(alice, message);
+			assertArrayEquals(message, read(alice));
+			assertArrayEquals(message, read(bob));
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testSSL() throws Exception {
+		for (Server.Engine engine : Server.Engine.values()) {
+			Server server = new Server();
+			server.setOnlyLocalHost(true);
+			server.setUsingSSL(true);
+			server.setEngine(engine);
+			server.setCodec(new LengthPrefixedCodec());
+			server.setLogLevels(ServerLog.ERRORS);
+
+			InputStream keyStore = Thread.currentThread().getContextClassLoader().getResourceAsStream("testkeys");
+			assertNotNull("No keystore has been added to the project.", keyStore);
+			server.setKeyStore(keyStore, "testkeys");
+			server.setup();
+			server.start();
+
+			try (Socket socket = new ServerStressTest().getSocketFactory().createSocket("localhost", server.getPort())) {
+				socket.setSoTimeout(10 * 1000);
+
+				// binary bodies without line breaks in one write, a frame that
+				// is split over two records doesn't fit in the free space
+				int[] lengths = { 100, 16000, 16000, 16000 };
+				byte[][] messages = new byte[lengths.length][];
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+				for (int i = 0; i < lengths.length; i++) {
+					char[] body = new char[lengths[i]];
+					Arrays.fill(body, 'x');
+					messages[i] = LengthPrefixedCodec.encodeMessage("ALICE", System.currentTimeMillis(), new String(body));
+					output.write(messages[i]);
+				}
+
+				write(socket, output.toByteArray());
+
+				for (byte[] message : messages) {
+					assertArrayEquals(engine.toString(), message, read(socket));
+				}
+			} finally {
+				server.stop();
+			}
+		}
+	}
+
+	private static void write(Socket socket, byte[] frame) throws IOException {
+		OutputStream output = socket.getOutputStream();
+		output.write(frame);
+		output.flush();
+	}
+
+	private static byte[] read(Socket socket) throws IOException {
+		DataInputStream input = new DataInputStream(socket.getInputStream());
+		int length = input.readInt();
+		byte[] frame = new byte[4 + length];
+		ByteBuffer.wrap(frame).putInt(length);
+		input.readFully(frame, 4, length);
+		return frame;
+	}
+}
@@ -0,0 +1,112 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** A client turns on compression and inflates the broadcasts. */
+public class CompressionTest {
+	private static final int MESSAGES = 200;
+
+	@Test
+	public void testPlainText() throws Exception {
+		Server server = new Server();
+		server.setUsingSSL(false);
+		run(server, null);
+	}
+
+	@Test
+	public void testSSL() throws Exception {
+		Server server = new Server();
+		server.setUsingSSL(true);
+
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		InputStream keyStore = classLoader.getResourceAsStream("testkeys");
+		assertNotNull("No keystore has been added to the project.", keyStore);
+		server.setKeyStore(keyStore, "testkeys");
+
+		run(server, new ServerStressTest());
+	}
+
+	private void run(Server server, ServerStressTest ssl) throws Exception {
+		server.setOnlyLocalHost(true);
+		server.setLogLevels(ServerLog.ERRORS);
+		server.setup();
+		server.start();
+
+		try (Socket compressed = connect(server, ssl); Socket plain = connect(server, ssl)) {
+			OutputStream output = compressed.getOutputStream();
+			output.write("COMPRESS deflate\n".getBytes(StandardCharsets.UTF_8));
+			output.flush();
+
+			// the reply is the last line that isn't compressed
+			InputStream input = compressed.getInputStream();
+			assertEquals("COMPRESSED deflate", readLine(input));
+
+			// a reader would block, the inflater stream always claims that
+			// more bytes are available
+			InputStream inflated = new InflaterInputStream(input, new Inflater(true));
+
+			while (server.getConnectionCount() < 2) {
+				Thread.sleep(10);
+			}
+
+			OutputStream sender = plain.getOutputStream();
+
+			for (int i = 0; i < MESSAGES; i++) {
+				String line = new Message("SENDER", new Date(), "Message number " + i).toString();
+				sender.write(line.getBytes(StandardCharsets.UTF_8));
+			}
+
+			sender.flush();
+
+			for (int i = 0; i < MESSAGES; i++) {
+				Message message = Message.parseMessage(readLine(inflated));
+				assertEquals("Message number " + i, message.getMessagBody());
+			}
+
+			CompressionStatistics statistics = server.getCompressionStatistics();
+			System.out.println(statistics);
+			assertEquals(1, statistics.getConnections());
+			assertTrue(statistics.getRatio() > 2);
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static Socket connect(Server server, ServerStressTest ssl) throws IOException {
+		Socket socket;
+
+		if (ssl != null) {
+			socket = ssl.getSocketFactory().createSocket("localhost", server.getPort());
+		} else {
+			socket = new Socket("localhost", server.getPort());
+		}
+
+		socket.setSoTimeout(10 * 1000);
+		return socket;
+	}
+
+	/** Read a line without reading ahead into the compressed stream. */
+	private static String readLine(InputStream input) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+
+		while ((b = input.read()) != '\n' && b != -1) {
+			line.write(b);
+		}
+
+		return new String(line.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,153 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.junit.Test;
+
+import org.birdfont.nioserver.*;
+
+/** Reports the memory used by each idle connection. The clients run in the 
+ * same process, the heap numbers include both ends of the connection.
+ */
+public class ConnectionFootprintTest {
+	private final static int CONNECTIONS = 1000;
+
+	@Test
+	public void test() throws IOException {
+		Server server = new Server();
+		server.setOnlyLocalHost(true);
+		server.setUsingSSL(false);
+		server.setLogLevels(ServerLog.ERRORS);
+		server.setup();
+		server.start();
+
+		ArrayList<SocketChannel> clients = new ArrayList<SocketChannel>();
+		BufferPool pool = server.getBufferPool();
+		long heapBefore = usedHeap();
+
+		try {
+			InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+
+			for (int i = 0; i < CONNECTIONS; i++) {
+				clients.add(SocketChannel.open(address));
+			}
+
+			waitFor(() -> server.getConnectionCount() == CONNECTIONS);
+
+			// send one message to all connections, the buffers are borrowed 
+			// while the message is in flight
+			Message message = new Message("TEST", new Date(), "footprint");
+			byte[] line = message.toString().getBytes(StandardCharsets.UTF_8);
+			clients.get(0).write(ByteBuffer.wrap(line));
+
+			assertTrue("Buffers were not returned to the pool.", 
+					waitFor(() -> pool.getBorrowedBytes() == 0));
+
+			long heapAfter = usedHeap();
+			long heapPerConnection = (heapAfter - heapBefore) / CONNECTIONS;
+			
+			System.out.println("Idle connections: " + server.getConnectionCount());
+			System.out.println("Heap per idle connection: " + heapPerConnection + " bytes");
+			System.out.println("Direct memory borrowed per idle connection: " 
+					+ pool.getBorrowedBytes() / CONNECTIONS + " bytes");
+			System.out.println("Direct memory held by the pool: " + pool.getAllocatedBytes() + " bytes");
+		} finally {
+			server.stop();
+
+			for (SocketChannel client : clients) {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void testClosedConnections() throws IOException {
+		for (Server.Engine engine : Server.Engine.values()) {
+			Server server = new Server();
+			server.setOnlyLocalHost(true);
+			server.setUsingSSL(false);
+			server.setLogLevels(ServerLog.ERRORS);
+			server.setEngine(engine);
+			server.setup();
+			server.start();
+
+			ArrayList<SocketChannel> clients = new ArrayList<SocketChannel>();
+			BufferPool pool = server.getBufferPool();
+
+			try {
+				InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+				byte[] partial = "A message without its end".getBytes(StandardCharsets.UTF_8);
+
+				for (int i = 0; i < 100; i++) {
+					SocketChannel client = SocketChannel.open(address);
+					client.write(ByteBuffer.wrap(partial));
+					clients.add(client);
+				}
+
+				// the input is buffered until the rest of the line arrives
+				assertTrue("Input was not buffered with the " + engine + " engine.", 
+						waitFor(() -> pool.getBorrowedBytes() > 0 && server.getConnectionCount() == 100));
+
+				for (SocketChannel client : clients) {
+					client.close();
+				}
+
+				assertTrue("Buffers were not returned to the pool with the " + engine + " engine.", 
+						waitFor(() -> pool.getBorrowedBytes() == 0));
+			} finally {
+				server.stop();
+
+				for (SocketChannel client : clients) {
+					client.close();
+				}
+			}
+		}
+	}
+
+	private static boolean waitFor(Condition condition) {
+		long start = System.currentTimeMillis();
+
+		while (!condition.isTrue()) {
+			if (System.currentTimeMillis() - start > 10 * 1000) {
+				return false;
+			}
+
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+
+		// give garbage from earlier tests time to be collected
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	interface Condition {
+		boolean isTrue();
+	}
+}
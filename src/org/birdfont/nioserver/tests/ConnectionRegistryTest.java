@@ -0,0 +1,99 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Connect and close many clients while messages are broadcast. */
+public class ConnectionRegistryTest {
+
+	@Test
+	public void test() throws IOException, InterruptedException {
+		Server server = new Server();
+		server.setOnlyLocalHost(true);
+		server.setUsingSSL(false);
+		server.setLogLevels(ServerLog.ERRORS);
+		server.setup();
+		server.start();
+
+		Socket sender = new Socket("localhost", server.getPort());
+		String line = new Message("SENDER", new Date(), "broadcast").toString().trim() + "\n";
+		byte[] message = line.getBytes(StandardCharsets.UTF_8);
+
+		Thread broadcaster = new Thread(() -> {
+			try {
+				OutputStream out = sender.getOutputStream();
+
+				while (!sender.isClosed()) {
+					out.write(message);
+					Thread.sleep(1);
+				}
+			} catch (IOException | InterruptedException exception) {
+				// closed at the end of the test
+			}
+		});
+
+		Thread drain = new Thread(() -> {
+			byte[] buffer = new byte[8192];
+
+			try {
+				InputStream in = sender.getInputStream();
+				while (in.read(buffer) != -1) {
+					// discard the broadcast
+				}
+			} catch (IOException exception) {
+				// closed at the end of the test
+			}
+		});
+
+		try {
+			broadcaster.start();
+			drain.start();
+			waitForConnections(server, 1);
+
+			for (int round = 0; round < 3; round++) {
+				ArrayList<SocketChannel> clients = new ArrayList<>();
+
+				for (int i = 0; i < 200; i++) {
+					clients.add(SocketChannel.open(new InetSocketAddress("localhost", server.getPort())));
+				}
+
+				waitForConnections(server, 201);
+
+				// close all clients at once
+				for (SocketChannel client : clients) {
+					client.close();
+				}
+
+				waitForConnections(server, 1);
+			}
+		} finally {
+			sender.close();
+			broadcaster.join();
+			drain.join();
+			server.stop();
+		}
+	}
+
+	private static void waitForConnections(Server server, int connections) throws InterruptedException {
+		long start = System.currentTimeMillis();
+
+		while (server.getConnectionCount() != connections) {
+			assertTrue("Expected " + connections + " connections, found " + server.getConnectionCount(), 
+					System.currentTimeMillis() - start < 10 * 1000);
+			Thread.sleep(10);
+		}
+	}
+
+}
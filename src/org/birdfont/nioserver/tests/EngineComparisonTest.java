@@ -0,0 +1,29 @@
+package org.birdfont.nioserver.tests;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Run the stress test load on both engines, with and without SSL. The 
+ * rates are printed, which engine is faster depends on the machine. The test
+ * checks that every combination delivers every message.
+ */
+public class EngineComparisonTest {
+
+	@Test
+	public void test() {
+		boolean[] ssl = { false, true };
+		
+		for (boolean useSSL : ssl) {
+			for (Server.Engine engine : Server.Engine.values()) {
+				ServerStressTest test = new ServerStressTest();
+				test.setEngine(engine);
+				double rate = test.runTest(useSSL, Runtime.getRuntime().availableProcessors());
+				test.assertDelivered();
+				
+				String encryption = useSSL ? "SSL" : "plain text";
+				System.out.println(String.format("%s engine, %s: %.0f messages/s", engine, encryption, rate));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.function.Consumer;
+
+import org.birdfont.nioserver.*;
+
+/** Servers and plain text clients for the tests that resume and replay the
+ * history.
+ */
+final class HistoryFixture {
+	private static final long TIMEOUT = 5000;
+
+	private HistoryFixture() {
+	}
+
+	/** Start a plain text server on localhost.
+	 * @param options history or journal settings, applied before setup
+	 */
+	static Server createServer(Consumer<Server> options) throws Exception {
+		Server server = new Server();
+		server.setOnlyLocalHost(true);
+		server.setUsingSSL(false);
+		server.setLogLevels(ServerLog.ERRORS);
+		options.accept(server);
+		server.setup();
+		server.start();
+		return server;
+	}
+
+	static Socket connect(Server server) throws IOException {
+		Socket socket = new Socket("localhost", server.getPort());
+		socket.setSoTimeout((int) TIMEOUT);
+		return socket;
+	}
+
+	static BufferedReader reader(Socket socket) throws IOException {
+		return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+	}
+
+	static void waitForConnections(Server server, int connections) throws InterruptedException {
+		long start = System.currentTimeMillis();
+
+		while (server.getConnectionCount() < connections) {
+			assertTrue("Clients are not connected.", System.currentTimeMillis() - start < TIMEOUT);
+			Thread.sleep(10);
+		}
+	}
+
+	/** Send the messages with the numbers from and up to but not including to. */
+	static void send(Socket socket, int from, int to) throws IOException {
+		StringBuilder lines = new StringBuilder();
+
+		for (int i = from; i < to; i++) {
+			lines.append(new Message("SENDER", new Date(), "Message number " + i).toString());
+		}
+
+		write(socket, lines.toString());
+	}
+
+	static void write(Socket socket, String text) throws IOException {
+		OutputStream output = socket.getOutputStream();
+		output.write(text.getBytes(StandardCharsets.UTF_8));
+		output.flush();
+	}
+}
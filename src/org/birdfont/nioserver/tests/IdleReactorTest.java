@@ -0,0 +1,80 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** A reactor without deadlines blocks until there is work, and work from
+ * other threads wakes it up.
+ */
+public class IdleReactorTest {
+
+	@Test
+	public void testIdle() throws Exception {
+		TimerWheel wheel = new TimerWheel(10, 8);
+		long now = System.currentTimeMillis();
+		assertEquals(-1, wheel.getDelay(now));
+
+		// the delay skips the empty slots
+		wheel.schedule(new TimerWheel.Timeout(() -> {}), 50);
+		assertTrue(wheel.getDelay(now) > 30);
+
+		Server server = createServer();
+
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			socket.setSoTimeout(5000);
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+			out.println("JOIN idle");
+			assertEquals("JOINED idle", in.readLine());
+
+			long wakeups = server.getStatistics().getSelectorWakeups();
+			Thread.sleep(1000);
+			assertEquals(wakeups, server.getStatistics().getSelectorWakeups());
+
+			// the reactor closes the connection as soon as the reply is sent
+			long start = System.currentTimeMillis();
+			out.println("CLOSE");
+			assertEquals("CLOSED", in.readLine());
+			assertNull(in.readLine());
+			assertTrue(System.currentTimeMillis() - start < 1000);
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testStop() throws Exception {
+		// the accept loop is woken up instead of polling
+		Server server = createServer();
+		Thread.sleep(100);
+
+		long start = System.currentTimeMillis();
+		server.stop();
+		assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+
+	private static Server createServer() throws Exception {
+		Server server = new Server();
+		server.setOnlyLocalHost(true);
+		server.setUsingSSL(false);
+		server.setReactorThreads(1);
+		server.setIdleTimeout(0);
+		server.setHandshakeTimeout(0);
+		server.setPartialLineTimeout(0);
+		server.setCloseTimeout(0);
+		server.setLogLevels(ServerLog.ERRORS);
+		server.setup();
+		server.start();
+		return server;
+	}
+}
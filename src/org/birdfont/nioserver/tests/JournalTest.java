@@ -0,0 +1,303 @@
+package org.birdfont.nioserver.tests;
+
+import static org.birdfont.nioserver.tests.HistoryFixture.*;
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.birdfont.nioserver.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Messages are journaled, read back after a restart and replayed. */
+public class JournalTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSegments() throws Exception {
+		Path directory = folder.getRoot().toPath();
+
+		try (Journal journal = new Journal(directory, 4096, 1)) {
+			for (int i = 0; i < 200; i++) {
+				Frame frame = Frame.encode("Message number " + i);
+				assertEquals(i + 1, journal.append(frame));
+				frame.release();
+			}
+
+			long start = System.currentTimeMillis();
+
+			while (journal.getCommits() == 0) {
+				assertTrue("The journal was not committed.", System.currentTimeMillis() - start < 5000);
+				Thread.sleep(1);
+			}
+		}
+
+		assertTrue(folder.getRoot().list().length > 2);
+
+		try (Journal journal = new Journal(directory, 4096, 1)) {
+			assertEquals(200, journal.getLastSequence());
+			ArrayList<Frame> frames = new ArrayList<>();
+			journal.read(100, frames::add);
+			assertEquals(100, frames.size());
+
+			for (int i = 0; i < frames.size(); i++) {
+				Frame frame = frames.get(i);
+				assertEquals(101 + i, frame.getSequence());
+				byte[] bytes = new byte[frame.length()];
+				frame.copyTo(0, bytes.length, ByteBuffer.wrap(bytes));
+				assertEquals("Message number " + (100 + i) + "\n", new String(bytes, StandardCharsets.UTF_8));
+				frame.release();
+			}
+
+			Frame frame = Frame.encode("Appended after restart");
+			assertEquals(201, journal.append(frame));
+			frame.release();
+		}
+	}
+
+	@Test
+	public void testRetention() throws Exception {
+		Path directory = folder.getRoot().toPath();
+
+		try (Journal journal = new Journal(directory, 1024, 1, 2)) {
+			for (int i = 0; i < 500; i++) {
+				Frame frame = Frame.encode("Message number " + i);
+				assertEquals(i + 1, journal.append(frame));
+				frame.release();
+			}
+
+			// the commit thread deletes the old segments
+			long start = System.currentTimeMillis();
+
+			while (countSegments() > 3) {
+				assertTrue("Segments were not deleted.", System.currentTimeMillis() - start < 5000);
+				Thread.sleep(1);
+			}
+
+			ArrayList<Frame> frames = new ArrayList<>();
+			journal.read(0, frames::add);
+			assertTrue(frames.size() < 500);
+			assertEquals(500, frames.get(frames.size() - 1).getSequence());
+			assertEquals(500 - frames.size() + 1, frames.get(0).getSequence());
+
+			for (Frame frame : frames) {
+				frame.release();
+			}
+		}
+
+		// a journal with a lower limit deletes the extra segments when it opens
+		try (Journal journal = new Journal(directory, 1024, 1, 1)) {
+			assertEquals(1, countSegments());
+			assertEquals(500, journal.getLastSequence());
+		}
+	}
+
+	private int countSegments() {
+		return folder.getRoot().list((directory, name) -> name.endsWith(".journal")).length;
+	}
+
+	@Test
+	public void testReplayAndRestart() throws Exception {
+		Path directory = folder.getRoot().toPath();
+		Journal journal = new Journal(directory, 1024 * 1024, 5);
+		Server server = createServer(journal);
+
+		try (Socket sender = connect(server)) {
+			BufferedReader senderInput = reader(sender);
+			waitForConnections(server, 1);
+			send(sender, 0, 5);
+
+			for (int i = 0; i < 5; i++) {
+				senderInput.readLine();
+			}
+
+			try (Socket client = connect(server)) {
+				BufferedReader input = reader(client);
+				write(client, "REPLAY 2\n");
+
+				for (int i = 3; i <= 5; i++) {
+					assertTrue(input.readLine().startsWith("@" + i + " "));
+				}
+
+				assertEquals("REPLAYED 5", input.readLine());
+			}
+		} finally {
+			server.stop();
+			journal.close();
+		}
+
+		// the history continues from the journal
+		journal = new Journal(directory, 1024 * 1024, 5);
+		server = createServer(journal);
+
+		try (Socket client = connect(server)) {
+			BufferedReader input = reader(client);
+			write(client, "RESUME 0\n");
+			assertEquals("RESUMED 1", input.readLine());
+
+			for (int i = 1; i <= 5; i++) {
+				assertTrue(input.readLine().startsWith("@" + i + " "));
+			}
+
+			send(client, 0, 1);
+			assertTrue(input.readLine().startsWith("@6 "));
+		} finally {
+			server.stop();
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentSenders() throws Exception {
+		Path directory = folder.getRoot().toPath();
+		Journal journal = new Journal(directory, 1024 * 1024, 5);
+		Server server = createServer(journal, 4);
+		int senders = 8;
+		int messages = 100;
+		ArrayList<Socket> sockets = new ArrayList<>();
+
+		try {
+			for (int i = 0; i < senders; i++) {
+				sockets.add(connect(server));
+			}
+
+			waitForConnections(server, senders);
+			ArrayList<Thread> threads = new ArrayList<>();
+
+			for (Socket socket : sockets) {
+				Thread thread = new Thread(() -> {
+					try {
+						for (int i = 0; i < messages; i++) {
+							send(socket, 0, 1);
+						}
+					} catch (IOException exception) {
+						fail(exception.getMessage());
+					}
+				});
+
+				threads.add(thread);
+				thread.start();
+			}
+
+			for (Thread thread : threads) {
+				thread.join();
+			}
+
+			BufferedReader input = reader(sockets.get(0));
+
+			for (int i = 0; i < senders * messages; i++) {
+				input.readLine();
+			}
+		} finally {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+
+			server.stop();
+			journal.close();
+		}
+
+		// the journal has the messages in the order of their stamps
+		try (Journal reopened = new Journal(directory, 1024 * 1024, 5)) {
+			ArrayList<Frame> frames = new ArrayList<>();
+			reopened.read(0, frames::add);
+			assertEquals(senders * messages, frames.size());
+
+			for (int i = 0; i < frames.size(); i++) {
+				Frame frame = frames.get(i);
+				byte[] bytes = new byte[frame.length()];
+				frame.copyTo(0, bytes.length, ByteBuffer.wrap(bytes));
+				assertEquals(i + 1, frame.getSequence());
+				assertTrue(new String(bytes, StandardCharsets.UTF_8).startsWith("@" + (i + 1) + " "));
+				frame.release();
+			}
+		}
+	}
+
+	@Test
+	public void testReplayDuringBroadcasts() throws Exception {
+		Journal journal = new Journal(folder.getRoot().toPath(), 1024 * 1024, 5);
+		Server server = createServer(journal, 4);
+		int messages = 500;
+
+		try (Socket sender = connect(server); Socket client = connect(server)) {
+			BufferedReader input = reader(client);
+			waitForConnections(server, 2);
+
+			Thread thread = new Thread(() -> {
+				try {
+					for (int i = 0; i < messages; i++) {
+						send(sender, i, i + 1);
+					}
+				} catch (IOException exception) {
+					fail(exception.getMessage());
+				}
+			});
+
+			thread.start();
+			ArrayList<String> lines = new ArrayList<>();
+
+			while (lines.size() < messages / 5) {
+				lines.add(input.readLine());
+			}
+
+			write(client, "REPLAY 0\n");
+			String line;
+
+			while (!(line = input.readLine()).startsWith("REPLAYED ")) {
+				lines.add(line);
+			}
+
+			// broadcasts queued before the command are repeated, the
+			// replay is the block of messages right before the reply
+			long last = Long.parseLong(line.substring("REPLAYED ".length()));
+			HashSet<Long> received = new HashSet<>();
+
+			for (int i = 0; i < last; i++) {
+				long sequence = getSequence(lines.get(lines.size() - (int) last + i));
+				assertEquals(i + 1, sequence);
+				received.add(sequence);
+			}
+
+			for (String before : lines) {
+				received.add(getSequence(before));
+			}
+
+			while (received.size() < messages) {
+				long sequence = getSequence(input.readLine());
+				assertTrue("Message " + sequence + " was sent twice.", sequence > last);
+				assertTrue("Message " + sequence + " was sent twice.", received.add(sequence));
+			}
+
+			thread.join();
+		} finally {
+			server.stop();
+			journal.close();
+		}
+	}
+
+	private static long getSequence(String line) {
+		return Long.parseLong(line.substring(1, line.indexOf(' ')));
+	}
+
+	private static Server createServer(Journal journal) throws Exception {
+		return createServer(journal, 1);
+	}
+
+	private static Server createServer(Journal journal, int reactors) throws Exception {
+		return HistoryFixture.createServer(server -> {
+			server.setReactorThreads(reactors);
+			server.setHistory(100, 64 * 1024);
+			server.setJournal(journal);
+		});
+	}
+}
@@ -0,0 +1,56 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import org.birdfont.nioserver.*;
+import org.birdfont.nioserver.LatencyStatistics.Stage;
+import org.junit.Test;
+
+/** Tests for the latency histograms. */
+public class LatencyTest {
+
+	@Test
+	public void testHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(50));
+
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000);
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000 * 1000, histogram.getMaximum());
+
+		// buckets are an eighth of their magnitude wide
+		assertEquals(500 * 1000, histogram.getPercentile(50), 500 * 1000 / 8);
+		assertEquals(990 * 1000, histogram.getPercentile(99), 990 * 1000 / 8);
+		assertEquals(1000 * 1000, histogram.getPercentile(99.9), 1000 * 1000 / 8);
+		assertTrue(histogram.getPercentile(99.9) <= histogram.getMaximum());
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+	}
+
+	@Test
+	public void testStages() {
+		ServerStressTest test = new ServerStressTest();
+		test.setConnections(10);
+		test.setMessagesPerConnection(50);
+		test.runTest(true, 2);
+
+		LatencyStatistics latency = test.getServer().getLatencyStatistics();
+		System.out.print(latency);
+
+		for (Stage stage : Stage.values()) {
+			LatencyHistogram histogram = latency.getHistogram(stage);
+			assertTrue(stage + " has no samples", histogram.getCount() > 0);
+			assertTrue(histogram.getPercentile(50) <= histogram.getPercentile(99));
+			assertTrue(histogram.getPercentile(99) <= histogram.getPercentile(99.9));
+		}
+
+		// a message is wrapped once for each client that was connected
+		LatencyHistogram parse = latency.getHistogram(Stage.PARSE);
+		assertTrue(latency.getHistogram(Stage.WRAP).getCount() <= parse.getCount() * 10);
+	}
+
+}
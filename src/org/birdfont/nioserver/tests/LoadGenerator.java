@@ -0,0 +1,804 @@
+package org.birdfont.nioserver.tests;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.birdfont.nioserver.*;
+
+/** A load generator that drives many client connections from a few
+ * selector threads. Each thread opens its share of the connections, with a
+ * bounded number of connects in flight so the accept backlog of the server
+ * doesn't overflow. A connection is ready when the server has answered
+ * JOIN load, after the SSL handshake for encrypted connections.
+ *
+ * When all connections are ready the senders write lines with the time
+ * they were sent at a fixed total rate. Every connection receives every
+ * line and records the delivery latency, the clients run in the same JVM
+ * so System.nanoTime is comparable. The threads share their read and
+ * write buffers, an idle connection only holds its channel and its SSL
+ * engine.
+ */
+public class LoadGenerator {
+	private final static String TOPIC = "load";
+	private final static byte[] JOIN = ("JOIN " + TOPIC + "\n").getBytes(StandardCharsets.UTF_8);
+	private final static byte[] JOINED = ("JOINED " + TOPIC).getBytes(StandardCharsets.UTF_8);
+	private final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private enum Phase {
+		CONNECT,
+		SEND,
+		DRAIN,
+		DONE
+	}
+
+	private int connections = 1000;
+	private int senders = 100;
+	private double rate = 100;
+	private long duration = 5000;
+	private long rampTimeout = 60 * 1000;
+	private long drainTimeout = 10 * 1000;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int pendingConnects = 512;
+	private boolean usingSSL = false;
+
+	private volatile Phase phase;
+	private volatile long sendStart;
+	private InetSocketAddress address;
+	private SSLContext sslContext;
+
+	private final AtomicInteger connected = new AtomicInteger();
+	private final AtomicInteger handshakes = new AtomicInteger();
+	private final AtomicInteger ready = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicLong lastConnect = new AtomicLong();
+	private final AtomicLong lastHandshake = new AtomicLong();
+	private final AtomicLong firstHandshake = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong lastDelivery = new AtomicLong();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	/** Open the connections, send for the configured duration and wait for
+	 * the lines to be delivered.
+	 * @return the measurements of the run
+	 */
+	public Report run(String host, int port) throws IOException, InterruptedException {
+		address = new InetSocketAddress(host, port);
+
+		if (usingSSL) {
+			sslContext = createSSLContext();
+		}
+
+		phase = Phase.CONNECT;
+		long start = System.nanoTime();
+		Worker[] workers = new Worker[Math.max(1, Math.min(threads, connections))];
+		Thread[] workerThreads = new Thread[workers.length];
+
+		for (int i = 0; i < workers.length; i++) {
+			int share = connections / workers.length + (i < connections % workers.length ? 1 : 0);
+			workers[i] = new Worker(i, workers.length, share);
+			workerThreads[i] = new Thread(workers[i], "Load generator " + i);
+			workerThreads[i].start();
+		}
+
+		// ramp up
+		while (ready.get() + failures.get() < connections
+				&& System.nanoTime() - start < rampTimeout * 1000000) {
+			Thread.sleep(10);
+		}
+
+		long rampEnd = System.nanoTime();
+		sendStart = rampEnd;
+		phase = Phase.SEND;
+		Thread.sleep(duration);
+
+		// every line is sent to all connections that have joined
+		phase = Phase.DRAIN;
+		long drainStart = System.nanoTime();
+		long expected;
+
+		while (delivered.sum() < (expected = sent.sum() * ready.get())
+				&& System.nanoTime() - drainStart < drainTimeout * 1000000) {
+			Thread.sleep(10);
+		}
+
+		phase = Phase.DONE;
+
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].selector.wakeup();
+			workerThreads[i].join();
+		}
+
+		Report report = new Report();
+		report.connections = connections;
+		report.connected = connected.get();
+		report.ready = ready.get();
+		report.handshakes = handshakes.get();
+		report.failures = failures.get();
+		report.connectTime = Math.max(0, lastConnect.get() - start);
+		report.handshakeTime = Math.max(0, lastHandshake.get() - firstHandshake.get());
+		report.rampTime = rampEnd - start;
+		report.sent = sent.sum();
+		report.expected = expected;
+		report.delivered = delivered.sum();
+		report.bytesIn = bytesIn.sum();
+		report.sendTime = Math.max(0, lastDelivery.get() - sendStart);
+		report.latency = latency;
+		return report;
+	}
+
+	private static SSLContext createSSLContext() throws SSLException {
+		X509TrustManager acceptingTrustManager = new X509TrustManager() {
+			public void checkClientTrusted(X509Certificate[] certificate, String authType) {
+			}
+
+			public void checkServerTrusted(X509Certificate[] certificate, String authType) {
+			}
+
+			public X509Certificate[] getAcceptedIssuers() {
+				return null;
+			}
+		};
+
+		try {
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, new TrustManager[] { acceptingTrustManager }, null);
+			return context;
+		} catch (GeneralSecurityException exception) {
+			throw new SSLException("Can't create SSL context.", exception);
+		}
+	}
+
+	/** Number of connections to open. */
+	public void setConnections(int connections) {
+		this.connections = Math.max(1, connections);
+	}
+
+	/** Number of connections that send, the first ones of each thread. */
+	public void setSenders(int senders) {
+		this.senders = Math.max(1, senders);
+	}
+
+	/** Lines per second from all senders together. */
+	public void setRate(double rate) {
+		this.rate = Math.max(0, rate);
+	}
+
+	/** Time to send in milliseconds, after all connections are ready. */
+	public void setDuration(long milliseconds) {
+		duration = Math.max(0, milliseconds);
+	}
+
+	/** Time to wait for the connections in milliseconds, the senders start
+	 * with the connections that are ready when it has passed.
+	 */
+	public void setRampTimeout(long milliseconds) {
+		rampTimeout = Math.max(0, milliseconds);
+	}
+
+	/** Time to wait for the last lines in milliseconds. */
+	public void setDrainTimeout(long milliseconds) {
+		drainTimeout = Math.max(0, milliseconds);
+	}
+
+	/** Number of selector threads. */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/** Connects in flight from all threads together. */
+	public void setPendingConnects(int connects) {
+		pendingConnects = Math.max(1, connects);
+	}
+
+	public void setUsingSSL(boolean ssl) {
+		usingSSL = ssl;
+	}
+
+	/** The measurements of one run. Times are in nanoseconds. */
+	public static class Report {
+		private int connections;
+		private int connected;
+		private int ready;
+		private int handshakes;
+		private int failures;
+		private long connectTime;
+		private long handshakeTime;
+		private long rampTime;
+		private long sent;
+		private long expected;
+		private long delivered;
+		private long bytesIn;
+		private long sendTime;
+		private LatencyHistogram latency;
+
+		/** Connections that were asked for. */
+		public int getConnections() {
+			return connections;
+		}
+
+		/** Connections that were established. */
+		public int getConnected() {
+			return connected;
+		}
+
+		/** Connections that got the reply to JOIN before the senders started. */
+		public int getReady() {
+			return ready;
+		}
+
+		/** Finished SSL handshakes. */
+		public int getHandshakes() {
+			return handshakes;
+		}
+
+		/** Connections that could not connect or were closed by the server. */
+		public int getFailures() {
+			return failures;
+		}
+
+		/** Connections per second from the start to the last connect. */
+		public double getConnectRate() {
+			return rate(connected, connectTime);
+		}
+
+		/** Handshakes per second from the first to the last handshake. */
+		public double getHandshakeRate() {
+			return rate(handshakes, handshakeTime);
+		}
+
+		/** Time from the start until all connections were ready. */
+		public long getRampTime() {
+			return rampTime;
+		}
+
+		public long getSent() {
+			return sent;
+		}
+
+		/** Lines that should have been received, sent lines times ready connections. */
+		public long getExpected() {
+			return expected;
+		}
+
+		public long getDelivered() {
+			return delivered;
+		}
+
+		/** Received lines per second from the first send to the last delivery. */
+		public double getThroughput() {
+			return rate(delivered, sendTime);
+		}
+
+		public long getBytesIn() {
+			return bytesIn;
+		}
+
+		/** Time from sending a line until a client has read it. */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		private static double rate(long count, long nanos) {
+			return nanos == 0 ? 0 : count * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			text.append(String.format("Connections: %d of %d, %.0f connects/s, ready in %.2f s%n",
+					connected, connections, getConnectRate(), rampTime / 1e9));
+
+			if (handshakes > 0) {
+				text.append(String.format("Handshakes: %d, %.0f handshakes/s%n", handshakes, getHandshakeRate()));
+			}
+
+			text.append(String.format("Messages: %d sent, %d of %d delivered, %.0f deliveries/s, %.1f MB%n",
+					sent, delivered, expected, getThroughput(), bytesIn / 1e6));
+			text.append(String.format("Latency: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+					latency.getPercentile(50) / 1e6, latency.getPercentile(90) / 1e6,
+					latency.getPercentile(99) / 1e6, latency.getPercentile(99.9) / 1e6,
+					latency.getMaximum() / 1e6));
+			text.append("Failures: ").append(failures);
+			return text.toString();
+		}
+	}
+
+	/** One client connection, served by one worker. */
+	private static class Client {
+		final int id;
+		SocketChannel channel;
+		SelectionKey key;
+		SSLEngine engine;
+		boolean connecting = false;
+		boolean handshaking = false;
+		boolean ready = false;
+
+		// allocated only while a partial line, record or write is pending
+		byte[] partial;
+		int partialLength = 0;
+		ByteBuffer netLeftover;
+		ByteBuffer pendingOut;
+
+		Client(int id) {
+			this.id = id;
+		}
+	}
+
+	/** A selector thread with its share of the connections. */
+	private class Worker implements Runnable {
+		private final Selector selector;
+		private final ArrayList<Client> clients = new ArrayList<>();
+		private final ArrayList<Client> sending = new ArrayList<>();
+		private final int share;
+		private final int maxPending;
+		private final ByteBuffer in;
+		private final ByteBuffer app;
+		private final ByteBuffer net;
+		private final double workerRate;
+		private int pending = 0;
+		private long workerSent = 0;
+		private int nextSender = 0;
+
+		Worker(int index, int workers, int share) throws IOException {
+			this.share = share;
+			selector = Selector.open();
+			maxPending = Math.max(1, pendingConnects / workers);
+
+			int packetSize = 64 * 1024;
+			int applicationSize = 64 * 1024;
+
+			if (usingSSL) {
+				SSLEngine engine = sslContext.createSSLEngine();
+				packetSize = engine.getSession().getPacketBufferSize();
+				applicationSize = engine.getSession().getApplicationBufferSize();
+			}
+
+			in = ByteBuffer.allocate(2 * packetSize);
+			net = ByteBuffer.allocate(packetSize);
+			app = ByteBuffer.allocate(applicationSize);
+
+			int workerSenders = senders / workers + (index < senders % workers ? 1 : 0);
+			workerRate = senders == 0 ? 0 : rate * Math.min(workerSenders, share) / Math.min(senders, connections);
+
+			for (int i = 0; i < share; i++) {
+				clients.add(new Client(i * workers + index));
+			}
+
+			for (int i = 0; i < Math.min(workerSenders, share); i++) {
+				sending.add(clients.get(i));
+			}
+		}
+
+		@Override
+		public void run() {
+			int opened = 0;
+
+			try {
+				while (phase != Phase.DONE) {
+					while (phase == Phase.CONNECT && opened < share && pending < maxPending) {
+						open(clients.get(opened++));
+					}
+
+					selector.select(phase == Phase.SEND ? 1 : 10);
+					processSelectedKeys();
+
+					if (phase == Phase.SEND) {
+						sendDue();
+					}
+				}
+			} catch (IOException exception) {
+				System.err.println(exception.getMessage());
+			} finally {
+				for (Client client : clients) {
+					close(client);
+				}
+
+				try {
+					selector.close();
+				} catch (IOException exception) {
+					System.err.println(exception.getMessage());
+				}
+			}
+		}
+
+		private void open(Client client) {
+			try {
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				client.channel = channel;
+				client.key = channel.register(selector, SelectionKey.OP_CONNECT, client);
+				client.connecting = true;
+				pending++;
+
+				if (channel.connect(address)) {
+					connected(client);
+				}
+			} catch (IOException exception) {
+				fail(client);
+			}
+		}
+
+		private void connected(Client client) throws IOException {
+			client.connecting = false;
+			pending--;
+			connected.incrementAndGet();
+			lastConnect.accumulateAndGet(System.nanoTime(), Math::max);
+			client.key.interestOps(SelectionKey.OP_READ);
+
+			if (usingSSL) {
+				client.engine = sslContext.createSSLEngine(address.getHostString(), address.getPort());
+				client.engine.setUseClientMode(true);
+				client.engine.beginHandshake();
+				client.handshaking = true;
+				firstHandshake.accumulateAndGet(System.nanoTime(), Math::min);
+				handshake(client);
+			} else {
+				send(client, ByteBuffer.wrap(JOIN));
+			}
+		}
+
+		private void processSelectedKeys() {
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+			while (iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				iterator.remove();
+				Client client = (Client) key.attachment();
+
+				try {
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key.isConnectable()) {
+						if (client.channel.finishConnect()) {
+							connected(client);
+						}
+
+						continue;
+					}
+
+					if (key.isReadable()) {
+						read(client);
+					}
+
+					if (key.isValid() && key.isWritable()) {
+						flush(client);
+					}
+				} catch (CancelledKeyException exception) {
+					fail(client);
+				} catch (IOException exception) {
+					fail(client);
+				}
+			}
+		}
+
+		private void read(Client client) throws IOException {
+			in.clear();
+
+			if (client.netLeftover != null) {
+				in.put(client.netLeftover);
+				client.netLeftover = null;
+			}
+
+			int bytes = client.channel.read(in);
+
+			if (bytes < 0) {
+				throw new IOException("Closed by the server.");
+			}
+
+			bytesIn.add(bytes);
+			in.flip();
+
+			if (client.engine == null) {
+				receive(client, in);
+			} else {
+				unwrap(client);
+			}
+		}
+
+		/** Decrypt the records in the input buffer, an incomplete record is
+		 * kept for the next read.
+		 */
+		private void unwrap(Client client) throws IOException {
+			while (in.hasRemaining()) {
+				app.clear();
+				SSLEngineResult result = client.engine.unwrap(in, app);
+				app.flip();
+
+				if (app.hasRemaining()) {
+					receive(client, app);
+				}
+
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+					break;
+				}
+
+				if (result.getStatus() != SSLEngineResult.Status.OK) {
+					throw new IOException("Unwrap " + result.getStatus());
+				}
+
+				if (client.handshaking) {
+					handshake(client);
+				} else if (result.bytesConsumed() == 0) {
+					break;
+				}
+			}
+
+			if (in.hasRemaining()) {
+				client.netLeftover = ByteBuffer.allocate(in.remaining());
+				client.netLeftover.put(in);
+				client.netLeftover.flip();
+			}
+		}
+
+		/** Run the handshake until it needs input from the server. */
+		private void handshake(Client client) throws IOException {
+			SSLEngine engine = client.engine;
+
+			while (true) {
+				switch (engine.getHandshakeStatus()) {
+				case NEED_WRAP:
+					net.clear();
+					engine.wrap(EMPTY, net);
+					net.flip();
+					write(client, net);
+					break;
+				case NEED_TASK:
+					Runnable task;
+
+					while ((task = engine.getDelegatedTask()) != null) {
+						task.run();
+					}
+
+					break;
+				case FINISHED:
+				case NOT_HANDSHAKING:
+					client.handshaking = false;
+					handshakes.incrementAndGet();
+					lastHandshake.accumulateAndGet(System.nanoTime(), Math::max);
+					send(client, ByteBuffer.wrap(JOIN));
+					return;
+				default:
+					// wait for the next record
+					return;
+				}
+			}
+		}
+
+		/** Split decrypted input into lines. */
+		private void receive(Client client, ByteBuffer data) {
+			byte[] array = data.array();
+			int start = data.arrayOffset() + data.position();
+			int end = data.arrayOffset() + data.limit();
+
+			for (int i = start; i < end; i++) {
+				if (array[i] != '\n') {
+					continue;
+				}
+
+				if (client.partialLength > 0) {
+					append(client, array, start, i - start);
+					line(client, client.partial, 0, client.partialLength);
+					client.partialLength = 0;
+					client.partial = null;
+				} else {
+					line(client, array, start, i - start);
+				}
+
+				start = i + 1;
+			}
+
+			if (start < end) {
+				append(client, array, start, end - start);
+			}
+
+			data.position(data.limit());
+		}
+
+		private void append(Client client, byte[] array, int offset, int length) {
+			int size = client.partialLength + length;
+
+			if (client.partial == null || client.partial.length < size) {
+				byte[] partial = new byte[Math.max(256, 2 * size)];
+
+				if (client.partial != null) {
+					System.arraycopy(client.partial, 0, partial, 0, client.partialLength);
+				}
+
+				client.partial = partial;
+			}
+
+			System.arraycopy(array, offset, client.partial, client.partialLength, length);
+			client.partialLength = size;
+		}
+
+		/** A broadcast ends with the time it was sent, anything else is a reply. */
+		private void line(Client client, byte[] array, int offset, int length) {
+			long now = System.nanoTime();
+			int space = offset + length - 1;
+
+			while (space >= offset && array[space] != ' ') {
+				space--;
+			}
+
+			long time = 0;
+			boolean number = space >= offset && space < offset + length - 1;
+
+			for (int i = space + 1; number && i < offset + length; i++) {
+				int digit = array[i] - '0';
+				number = digit >= 0 && digit <= 9;
+				time = time * 10 + digit;
+			}
+
+			if (number) {
+				latency.record(now - time);
+				delivered.increment();
+				lastDelivery.accumulateAndGet(now, Math::max);
+			} else if (!client.ready && startsWith(array, offset, length, JOINED)) {
+				client.ready = true;
+				ready.incrementAndGet();
+			}
+		}
+
+		private boolean startsWith(byte[] array, int offset, int length, byte[] prefix) {
+			if (length < prefix.length) {
+				return false;
+			}
+
+			for (int i = 0; i < prefix.length; i++) {
+				if (array[offset + i] != prefix[i]) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		/** Send the lines that are due since the senders started. */
+		private void sendDue() {
+			if (sending.isEmpty()) {
+				return;
+			}
+
+			long now = System.nanoTime();
+			long due = (long) ((now - sendStart) * workerRate / 1e9) - workerSent;
+			String date = null;
+
+			for (long i = 0; i < due; i++) {
+				Client client = sending.get(nextSender);
+				nextSender = (nextSender + 1) % sending.size();
+				workerSent++;
+
+				if (!client.ready || client.channel == null) {
+					continue;
+				}
+
+				if (date == null) {
+					date = TimestampCodec.getDefault().format(System.currentTimeMillis());
+				}
+
+				String line = "L" + client.id + " " + date + " " + System.nanoTime() + "\n";
+
+				try {
+					send(client, ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII)));
+					sent.increment();
+				} catch (IOException exception) {
+					fail(client);
+				}
+			}
+		}
+
+		private void send(Client client, ByteBuffer data) throws IOException {
+			if (client.engine == null) {
+				write(client, data);
+				return;
+			}
+
+			while (data.hasRemaining()) {
+				net.clear();
+				SSLEngineResult result = client.engine.wrap(data, net);
+
+				if (result.getStatus() != SSLEngineResult.Status.OK) {
+					throw new IOException("Wrap " + result.getStatus());
+				}
+
+				net.flip();
+				write(client, net);
+			}
+		}
+
+		/** Write to the socket, what doesn't fit is kept until it is writable. */
+		private void write(Client client, ByteBuffer data) throws IOException {
+			if (client.pendingOut == null) {
+				client.channel.write(data);
+
+				if (!data.hasRemaining()) {
+					return;
+				}
+
+				client.pendingOut = ByteBuffer.allocate(data.remaining());
+				client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			} else if (client.pendingOut.remaining() < data.remaining()) {
+				ByteBuffer grown = ByteBuffer.allocate(client.pendingOut.remaining() + data.remaining());
+				grown.put(client.pendingOut);
+				client.pendingOut = grown;
+			} else {
+				client.pendingOut.compact();
+			}
+
+			client.pendingOut.put(data);
+			client.pendingOut.flip();
+		}
+
+		private void flush(Client client) throws IOException {
+			if (client.pendingOut == null) {
+				client.key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+
+			client.channel.write(client.pendingOut);
+
+			if (!client.pendingOut.hasRemaining()) {
+				client.pendingOut = null;
+				client.key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		private void fail(Client client) {
+			if (client.connecting) {
+				client.connecting = false;
+				pending--;
+			}
+
+			if (client.channel != null && phase != Phase.DONE) {
+				failures.incrementAndGet();
+			}
+
+			close(client);
+		}
+
+		private void close(Client client) {
+			if (client.channel == null) {
+				return;
+			}
+
+			try {
+				client.channel.close();
+			} catch (IOException exception) {
+				System.err.println(exception.getMessage());
+			}
+
+			client.channel = null;
+			client.key = null;
+			client.engine = null;
+			client.pendingOut = null;
+			client.netLeftover = null;
+			client.partial = null;
+		}
+	}
+}
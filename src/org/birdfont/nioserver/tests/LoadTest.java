@@ -0,0 +1,74 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Drive the server with the non-blocking load generator and fail if a
+ * message is lost or the delivery latency is too high. The defaults are
+ * small enough for a build, run a larger load as a regression gate with
+ * system properties, for example
+ * mvn test -Dtest=LoadTest -Dload.connections=20000 -Dload.rate=20.
+ * Tens of thousands of connections need a file descriptor limit above
+ * twice the number of connections.
+ */
+public class LoadTest {
+
+	@Test
+	public void testPlainText() throws Exception {
+		run(false, Integer.getInteger("load.connections", 1000));
+	}
+
+	@Test
+	public void testSSL() throws Exception {
+		run(true, Integer.getInteger("load.connections", 200));
+	}
+
+	private static void run(boolean useSSL, int connections) throws Exception {
+		Server server = new Server();
+		server.setPort(Integer.getInteger("load.port", 45490));
+		server.setOnlyLocalHost(true);
+		server.setUsingSSL(useSSL);
+		server.setLogLevels(ServerLog.ERRORS);
+
+		InputStream keyStore = Thread.currentThread().getContextClassLoader().getResourceAsStream("testkeys");
+		assertNotNull("No keystore has been added to the project.", keyStore);
+		server.setKeyStore(keyStore, "testkeys");
+		server.setup();
+		server.start();
+
+		LoadGenerator generator = new LoadGenerator();
+		generator.setUsingSSL(useSSL);
+		generator.setConnections(connections);
+		generator.setSenders(Integer.getInteger("load.senders", 100));
+		generator.setRate(Integer.getInteger("load.rate", 100));
+		generator.setDuration(Long.getLong("load.duration", 2000));
+		generator.setThreads(Integer.getInteger("load.threads", Runtime.getRuntime().availableProcessors()));
+
+		LoadGenerator.Report report;
+
+		try {
+			report = generator.run("localhost", server.getPort());
+		} finally {
+			server.stop();
+		}
+
+		System.out.println((useSSL ? "SSL" : "Plain text") + " load:");
+		System.out.println(report);
+
+		long p99 = Long.getLong("load.p99", 1000);
+		assertEquals(0, report.getFailures());
+		assertEquals(connections, report.getReady());
+		assertTrue(report.getSent() > 0);
+		assertEquals(report.getExpected(), report.getDelivered());
+		assertTrue("p99 latency is above " + p99 + " ms", report.getLatency().getPercentile(99) <= p99 * 1000000);
+
+		if (useSSL) {
+			assertEquals(connections, report.getHandshakes());
+		}
+	}
+
+}
@@ -0,0 +1,374 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Servers on localhost ports share their messages over mesh links. */
+public class MeshTest {
+	private final static int CLIENT_PORT = 45600;
+	private final static int MESH_PORT = 45700;
+
+	@Test
+	public void testFullMesh() throws Exception {
+		int[][] links = { { 1, 2 }, { 0, 2 }, { 0, 1 } };
+		Server[] servers = createServers(links);
+		Client[] clients = new Client[servers.length];
+
+		try {
+			for (int i = 0; i < servers.length; i++) {
+				clients[i] = new Client(servers[i], "NODE" + i);
+			}
+
+			waitForLinks(servers, links);
+
+			clients[0].send("first");
+
+			for (Client client : clients) {
+				assertEquals("first", client.readBody());
+			}
+
+			clients[2].command("JOIN room");
+			assertEquals("JOINED room", clients[2].readLine());
+			// only the subscriber on the last node gets the message to the room
+			clients[1].send("#room topic");
+			assertEquals("#room topic", clients[2].readBody());
+
+			// the relayed copies are dropped, the next line is the next message
+			clients[2].send("last");
+
+			for (Client client : clients) {
+				assertEquals("last", client.readBody());
+			}
+
+			// a node that gets a message from its origin relays it to the
+			// third node, at least one copy of each message is dropped
+			long start = System.currentTimeMillis();
+
+			while (getDuplicates(servers) < 3 && System.currentTimeMillis() - start < 5000) {
+				Thread.sleep(10);
+			}
+
+			assertTrue(getDuplicates(servers) >= 3);
+			assertEquals(2, servers[0].getMesh().getReceivedMessages());
+		} finally {
+			close(servers, clients);
+		}
+	}
+
+	@Test
+	public void testChain() throws Exception {
+		// the first and the last node only know the node in the middle
+		int[][] links = { { 1 }, { 0, 2 }, { 1 } };
+		Server[] servers = createServers(links);
+		Client[] clients = new Client[servers.length];
+
+		try {
+			for (int i = 0; i < servers.length; i++) {
+				clients[i] = new Client(servers[i], "NODE" + i);
+			}
+
+			waitForLinks(servers, links);
+
+			for (int i = 0; i < 10; i++) {
+				clients[0].send("from the first " + i);
+				clients[2].send("from the last " + i);
+			}
+
+			for (Client client : clients) {
+				int first = 0;
+				int last = 0;
+
+				for (int i = 0; i < 20; i++) {
+					String body = client.readBody();
+
+					if (body.startsWith("from the first ")) {
+						assertEquals("from the first " + first++, body);
+					} else {
+						assertEquals("from the last " + last++, body);
+					}
+				}
+			}
+
+			assertEquals(20, servers[1].getMesh().getReceivedMessages());
+			assertEquals(0, servers[1].getMesh().getDroppedMessages());
+		} finally {
+			close(servers, clients);
+		}
+	}
+
+	@Test
+	public void testOneWayChain() throws Exception {
+		// each node only knows the next one, messages go back over the links
+		// that the other nodes opened
+		int[][] links = { { 1 }, { 2 }, { } };
+		Server[] servers = createServers(links);
+		Client[] clients = new Client[servers.length];
+
+		try {
+			for (int i = 0; i < servers.length; i++) {
+				clients[i] = new Client(servers[i], "NODE" + i);
+			}
+
+			waitForLinks(servers, links);
+			waitForInboundLinks(servers, new int[] { 0, 1, 1 });
+
+			for (int i = 0; i < servers.length; i++) {
+				clients[i].send("from " + i);
+
+				for (Client client : clients) {
+					assertEquals("from " + i, client.readBody());
+				}
+			}
+
+			assertEquals(2, servers[1].getMesh().getReceivedMessages());
+			assertEquals(0, servers[1].getMesh().getDroppedMessages());
+		} finally {
+			close(servers, clients);
+		}
+	}
+
+	@Test
+	public void testOriginTimeout() throws Exception {
+		int[][] links = { { 1 }, { } };
+		Server[] servers = createServers(links);
+		Client[] clients = new Client[servers.length];
+
+		try {
+			for (int i = 0; i < servers.length; i++) {
+				clients[i] = new Client(servers[i], "NODE" + i);
+			}
+
+			waitForLinks(servers, links);
+			waitForInboundLinks(servers, new int[] { 0, 1 });
+			Mesh mesh = servers[1].getMesh();
+			mesh.setOriginTimeout(100);
+
+			clients[0].send("first");
+			assertEquals("first", clients[1].readBody());
+			assertEquals(1, mesh.getOrigins());
+
+			// the origin is forgotten without more traffic
+			long start = System.currentTimeMillis();
+
+			while (mesh.getOrigins() > 0) {
+				assertTrue("The origin was not forgotten.", System.currentTimeMillis() - start < 5000);
+				Thread.sleep(10);
+			}
+
+			clients[0].send("second");
+			assertEquals("second", clients[1].readBody());
+			assertEquals(1, mesh.getOrigins());
+		} finally {
+			close(servers, clients);
+		}
+	}
+
+	@Test
+	public void testCongestedPeer() throws Exception {
+		// the first node dials the second node and a peer that stops reading
+		try (ServerSocket listener = new ServerSocket()) {
+			listener.setReceiveBufferSize(4096);
+			listener.bind(new InetSocketAddress("localhost", MESH_PORT + 2));
+			Socket[] peer = new Socket[1];
+
+			Thread greeter = new Thread(() -> {
+				try {
+					peer[0] = listener.accept();
+					DataInputStream input = new DataInputStream(peer[0].getInputStream());
+					input.readFully(new byte[4 + 1 + 8]);
+					DataOutputStream output = new DataOutputStream(peer[0].getOutputStream());
+					output.writeInt(1 + 8);
+					output.writeByte(1);
+					output.writeLong(42);
+					output.flush();
+				} catch (IOException exception) {
+					fail(exception.getMessage());
+				}
+			});
+
+			greeter.start();
+			int[][] links = { { 1, 2 }, { } };
+			Server[] servers = createServers(links);
+			Client[] clients = new Client[servers.length + 1];
+
+			try {
+				for (int i = 0; i < servers.length; i++) {
+					clients[i] = new Client(servers[i], "NODE" + i);
+				}
+
+				clients[2] = new Client(servers[0], "FLOOD");
+				waitForLinks(servers, links);
+				greeter.join();
+				Mesh mesh = servers[0].getMesh();
+				mesh.setLinkWatermarks(16 * 1024, 64 * 1024);
+
+				// nobody has joined the topic, the records only fill the links
+				String body = "#flood " + new String(new char[1000]).replace('\0', 'x');
+				long start = System.currentTimeMillis();
+
+				while (mesh.getPauses() == 0) {
+					assertTrue("The link was not congested.", System.currentTimeMillis() - start < 10000);
+					clients[2].send(body);
+					Thread.sleep(1);
+				}
+
+				// the first node does not read from the second node now
+				clients[1].send("paused");
+				clients[0].setTimeout(500);
+
+				try {
+					clients[0].readLine();
+					fail("A paused link was read.");
+				} catch (SocketTimeoutException exception) {
+				}
+
+				Thread drain = new Thread(() -> {
+					try {
+						InputStream input = peer[0].getInputStream();
+
+						while (input.read(new byte[4096]) >= 0) {
+						}
+					} catch (IOException exception) {
+					}
+				});
+
+				drain.start();
+				clients[0].setTimeout(10 * 1000);
+				assertEquals("paused", clients[0].readBody());
+				peer[0].close();
+				drain.join();
+			} finally {
+				close(servers, clients);
+			}
+		}
+	}
+
+	private static Server[] createServers(int[][] links) throws Exception {
+		Server[] servers = new Server[links.length];
+
+		for (int i = 0; i < links.length; i++) {
+			Mesh mesh = new Mesh(new InetSocketAddress("localhost", MESH_PORT + i));
+			mesh.setRetryInterval(50);
+
+			for (int peer : links[i]) {
+				mesh.addPeer(new InetSocketAddress("localhost", MESH_PORT + peer));
+			}
+
+			Server server = new Server();
+			server.setPort(CLIENT_PORT + i);
+			server.setOnlyLocalHost(true);
+			server.setUsingSSL(false);
+			server.setLogLevels(ServerLog.ERRORS);
+			server.setReactorThreads(2);
+			server.setMesh(mesh);
+			server.setup();
+			server.start();
+			servers[i] = server;
+		}
+
+		return servers;
+	}
+
+	private static void waitForLinks(Server[] servers, int[][] links) throws InterruptedException {
+		long start = System.currentTimeMillis();
+
+		for (int i = 0; i < servers.length; i++) {
+			while (servers[i].getMesh().getConnectedPeers() < links[i].length
+					|| servers[i].getConnectionCount() < 1) {
+				assertTrue("Links are down.", System.currentTimeMillis() - start < 10000);
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	private static void waitForInboundLinks(Server[] servers, int[] links) throws InterruptedException {
+		long start = System.currentTimeMillis();
+
+		for (int i = 0; i < servers.length; i++) {
+			while (servers[i].getMesh().getInboundLinks() < links[i]) {
+				assertTrue("Links are down.", System.currentTimeMillis() - start < 10000);
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	private static long getDuplicates(Server[] servers) {
+		long duplicates = 0;
+
+		for (Server server : servers) {
+			duplicates += server.getMesh().getDuplicates();
+		}
+
+		return duplicates;
+	}
+
+	private static void close(Server[] servers, Client[] clients) throws IOException {
+		for (Client client : clients) {
+			if (client != null) {
+				client.close();
+			}
+		}
+
+		for (Server server : servers) {
+			if (server != null) {
+				server.stop();
+			}
+		}
+	}
+
+	private static class Client {
+		private final String name;
+		private final Socket socket;
+		private final PrintWriter out;
+		private final BufferedReader in;
+
+		Client(Server server, String name) throws IOException {
+			this.name = name;
+			socket = new Socket("localhost", server.getPort());
+			socket.setSoTimeout(10 * 1000);
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		}
+
+		void command(String command) {
+			out.println(command);
+		}
+
+		void send(String body) {
+			out.println(new Message(name, new Date(), body).toString().trim());
+		}
+
+		void setTimeout(int milliseconds) throws IOException {
+			socket.setSoTimeout(milliseconds);
+		}
+
+		String readLine() throws IOException {
+			return in.readLine();
+		}
+
+		String readBody() throws Exception {
+			return Message.parseMessage(readLine()).getMessagBody();
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package org.birdfont.nioserver.tests;
 
+import java.nio.ByteBuffer;
+
 import org.birdfont.nioserver.*;
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -34,4 +36,35 @@ public class MessageBufferTest {
 		}
 	}
 
+	@Test
+	public void testViews() {
+		MessageBuffer buffer = new MessageBuffer(16);
+
+		// move the read and write index close to the end of the ring
+		buffer.add("0123456789\n");
+		assertEquals("0123456789", buffer.nextLine());
+		
+		// the free space wraps around the end of the ring
+		assertEquals(2, buffer.writableViews());
+		ByteBuffer[] views = buffer.getViews();
+		byte[] line = "ABCDEFGH\n".getBytes();
+		int written = 0;
+		
+		for (int i = 0; i < 2; i++) {
+			int length = Math.min(views[i].remaining(), line.length - written);
+			views[i].put(line, written, length);
+			written += length;
+		}
+		
+		buffer.commitWrite(written);
+		assertEquals(line.length, buffer.size());
+		assertEquals(2, buffer.readableViews());
+
+		ByteBuffer region = buffer.readableRegion();
+		assertEquals(line.length, region.remaining());
+		assertEquals('A', region.get(region.position()));
+		assertEquals("ABCDEFGH", buffer.nextLine());
+		assertEquals(0, buffer.size());
+	}
+
 }
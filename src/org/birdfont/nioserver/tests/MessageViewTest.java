@@ -0,0 +1,107 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.time.ZoneOffset;
+import java.util.Date;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Tests for parsing messages in place. */
+public class MessageViewTest {
+
+	@Test
+	public void testParse() throws ParseException {
+		MessageBuffer buffer = new MessageBuffer(64);
+		MessageView view = new MessageView(new TimestampCodec(ZoneOffset.UTC));
+
+		// the line wraps around the end of the ring
+		for (int i = 0; i < 10; i++) {
+			buffer.add("  NAME 1970-01-01 00:00:10 hello åäö  \n");
+			int length = buffer.indexOf('\n');
+			view.wrap(buffer, length);
+			view.parse();
+
+			assertTrue(view.hasBody());
+			assertEquals("NAME", view.getSender());
+			assertEquals("hello åäö", view.getBody());
+			assertEquals(10000, view.getTimeStamp());
+
+			Frame frame = view.toFrame();
+			String line = "NAME 1970-01-01 00:00:10 hello åäö\n";
+			assertEquals(line.getBytes(StandardCharsets.UTF_8).length, frame.length());
+			frame.release();
+
+			buffer.removeFirst(length + 1);
+		}
+	}
+
+	@Test
+	public void testEmptyAndCommands() throws ParseException {
+		MessageBuffer buffer = new MessageBuffer(64);
+		MessageView view = new MessageView();
+
+		buffer.add("NAME 2018-03-01 12:00:00\n");
+		view.wrap(buffer, buffer.indexOf('\n'));
+		view.parse();
+		assertFalse(view.hasBody());
+		buffer.clear();
+
+		buffer.add(" CLOSE\r\n");
+		view.wrap(buffer, buffer.indexOf('\n'));
+		assertTrue(view.equals("CLOSE"));
+		buffer.clear();
+
+		buffer.add("   \n");
+		view.wrap(buffer, buffer.indexOf('\n'));
+		assertTrue(view.isEmpty());
+	}
+
+	@Test
+	public void testInvalid() {
+		String[] lines = {
+			"NAME\n",
+			"NAME 2018-03-01\n",
+			"NAME 2018-03-01 12:00 message\n",
+			"NAME 2018-13-01 12:00:00 message\n",
+			"NAME 2018-03-01T12:00:00 message\n",
+			"NAME 2018-03-01 12:00:00message\n",
+		};
+
+		MessageBuffer buffer = new MessageBuffer(64);
+		MessageView view = new MessageView();
+
+		for (String line : lines) {
+			buffer.clear();
+			buffer.add(line);
+			view.wrap(buffer, buffer.indexOf('\n'));
+
+			try {
+				view.parse();
+				fail("Accepted invalid message: " + line);
+			} catch (ParseException exception) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testTimestampCodec() throws ParseException {
+		TimestampCodec codec = TimestampCodec.getDefault();
+		long now = System.currentTimeMillis() / 1000 * 1000;
+		String text = codec.format(now);
+
+		assertSame(text, codec.format(now + 999));
+		assertEquals(now, codec.parse(text));
+		assertEquals(now, codec.parse(text));
+
+		Message message = new Message("NAME", new Date(now), "body");
+		Message parsed = Message.parseMessage(message.toString().trim());
+		assertEquals(now, parsed.getTimeStamp().getTime());
+		assertEquals("body", parsed.getMessagBody());
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Read the server counters through the platform MBean server. */
+public class MetricsTest {
+
+	@Test
+	public void test() throws Exception {
+		Server server = new Server();
+		server.setOnlyLocalHost(true);
+		server.setUsingSSL(false);
+		server.setLogLevels(ServerLog.ERRORS);
+		server.setup();
+		server.start();
+
+		MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("org.birdfont.nioserver:type=Server,port=" + server.getPort());
+		assertTrue(beans.isRegistered(name));
+		ServerMXBean metrics = JMX.newMXBeanProxy(beans, name, ServerMXBean.class);
+
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			String line = new Message("METRICS", new Date(), "counted").toString().trim();
+
+			out.println(line);
+			assertEquals(line, in.readLine());
+
+			assertEquals(1, metrics.getActiveConnections());
+			assertEquals(1, metrics.getAcceptedConnections());
+			assertEquals(1, metrics.getMessagesIn());
+			assertEquals(1, metrics.getMessagesOut());
+			assertEquals(line.length() + 1, metrics.getBytesIn());
+
+			// the reactor counts the write after the client may have read it
+			long start = System.currentTimeMillis();
+			while (metrics.getBytesOut() == 0 && System.currentTimeMillis() - start < 5000) {
+				Thread.sleep(1);
+			}
+
+			assertEquals(line.length() + 1, metrics.getBytesOut());
+			assertEquals(0, metrics.getBufferOverflows());
+			assertTrue(metrics.getSelectorWakeups() > 0);
+			assertEquals(0, metrics.getSSLInputQueueDepth());
+		} finally {
+			server.stop();
+		}
+
+		assertFalse(beans.isRegistered(name));
+	}
+
+}
@@ -0,0 +1,27 @@
+package org.birdfont.nioserver.tests;
+
+import org.junit.Test;
+
+/** Compare the throughput of a single reactor with a pool of reactors, 
+ * using the same load as the stress test. The rates are printed, the test
+ * checks that both setups deliver every message.
+ */
+public class ReactorThroughputTest {
+
+	@Test
+	public void test() {
+		int reactors = Math.max(4, Runtime.getRuntime().availableProcessors());
+		
+		ServerStressTest singleLoop = new ServerStressTest();
+		double single = singleLoop.runTest(false, 1);
+		singleLoop.assertDelivered();
+
+		ServerStressTest multiLoop = new ServerStressTest();
+		double multi = multiLoop.runTest(false, reactors);
+		multiLoop.assertDelivered();
+
+		System.out.println(String.format("Single reactor: %.0f messages/s", single));
+		System.out.println(String.format("%d reactors: %.0f messages/s", reactors, multi));
+	}
+
+}
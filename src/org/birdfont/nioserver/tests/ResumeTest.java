@@ -0,0 +1,96 @@
+package org.birdfont.nioserver.tests;
+
+import static org.birdfont.nioserver.tests.HistoryFixture.*;
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.net.Socket;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Clients reconnect and receive the broadcasts they missed. */
+public class ResumeTest {
+
+	@Test
+	public void testResume() throws Exception {
+		Server server = createServer(100, 0);
+
+		try (Socket sender = connect(server)) {
+			BufferedReader senderInput = reader(sender);
+
+			try (Socket first = connect(server)) {
+				BufferedReader input = reader(first);
+				waitForConnections(server, 2);
+				send(sender, 0, 5);
+
+				for (int i = 0; i < 5; i++) {
+					assertEquals("@" + (i + 1) + " ", input.readLine().substring(0, 3));
+				}
+			}
+
+			// messages 6 to 10 are sent while the client is away
+			send(sender, 5, 10);
+
+			for (int i = 0; i < 10; i++) {
+				senderInput.readLine();
+			}
+
+			try (Socket second = connect(server)) {
+				BufferedReader input = reader(second);
+				write(second, "RESUME 5\n");
+				assertEquals("RESUMED 6", input.readLine());
+
+				for (int i = 5; i < 10; i++) {
+					String line = input.readLine();
+					assertTrue(line, line.startsWith("@" + (i + 1) + " "));
+					Message message = Message.parseMessage(line.substring(line.indexOf(' ') + 1));
+					assertEquals("Message number " + i, message.getMessagBody());
+				}
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testEvictedAndJoinHistory() throws Exception {
+		Server server = createServer(4, 3);
+
+		try (Socket sender = connect(server)) {
+			BufferedReader senderInput = reader(sender);
+			waitForConnections(server, 1);
+			send(sender, 0, 10);
+
+			for (int i = 0; i < 10; i++) {
+				senderInput.readLine();
+			}
+
+			try (Socket client = connect(server)) {
+				BufferedReader input = reader(client);
+
+				// the last three messages are sent on join
+				for (int i = 8; i <= 10; i++) {
+					assertTrue(input.readLine().startsWith("@" + i + " "));
+				}
+
+				// only the last four messages are left in the ring
+				write(client, "RESUME 2\n");
+				assertEquals("RESUMED 7", input.readLine());
+
+				for (int i = 7; i <= 10; i++) {
+					assertTrue(input.readLine().startsWith("@" + i + " "));
+				}
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static Server createServer(int messages, int join) throws Exception {
+		return HistoryFixture.createServer(server -> {
+			server.setHistory(messages, 64 * 1024);
+			server.setJoinHistory(join);
+		});
+	}
+}
@@ -0,0 +1,29 @@
+package org.birdfont.nioserver.tests;
+
+import org.junit.Test;
+
+/** Compare the throughput of encrypted connections with a single SSL worker
+ * and with a pool of workers. The rates are printed, the test checks that
+ * both setups deliver every message.
+ */
+public class SSLThroughputTest {
+
+	@Test
+	public void test() {
+		int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		
+		ServerStressTest singleWorker = new ServerStressTest();
+		singleWorker.setSSLWorkerThreads(1);
+		double single = singleWorker.runTest(true, threads);
+		singleWorker.assertDelivered();
+
+		ServerStressTest workerPool = new ServerStressTest();
+		workerPool.setSSLWorkerThreads(threads);
+		double pool = workerPool.runTest(true, threads);
+		workerPool.assertDelivered();
+
+		System.out.println(String.format("Single SSL worker: %.0f messages/s", single));
+		System.out.println(String.format("%d SSL workers: %.0f messages/s", threads, pool));
+	}
+
+}
@@ -0,0 +1,124 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.birdfont.nioserver.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for the asynchronous log. */
+public class ServerLogTest {
+	private ServerLogger previous = ServerLog.logger;
+
+	@Before
+	public void drainLog() {
+		ServerLog.flush(1, TimeUnit.SECONDS);
+	}
+
+	@After
+	public void restoreLogger() {
+		ServerLog.flush(1, TimeUnit.SECONDS);
+		ServerLog.setLogger(previous);
+		ServerLog.setLogLevels(ServerLog.CONNECTIONS | ServerLog.ERRORS);
+	}
+
+	@Test
+	public void testParameters() {
+		List<String> lines = new CopyOnWriteArrayList<>();
+		ServerLog.setLogger(lines::add);
+		ServerLog.setLogLevels(ServerLog.ERRORS);
+
+		AtomicBoolean formatted = new AtomicBoolean();
+		Object unused = new Object() {
+			@Override
+			public String toString() {
+				formatted.set(true);
+				return "";
+			}
+		};
+
+		ServerLog.connection("New connection {}", unused);
+		ServerLog.error("{} for connection {}", "Reset", 7);
+		ServerLog.error("Literal {}");
+		ServerLog.error("Missing {} {}", "one");
+		assertTrue(ServerLog.flush(5, TimeUnit.SECONDS));
+
+		assertFalse(formatted.get());
+		assertEquals(3, lines.size());
+		assertEquals("Reset for connection 7", lines.get(0));
+		assertEquals("Literal {}", lines.get(1));
+		assertEquals("Missing one {}", lines.get(2));
+	}
+
+	@Test
+	public void testOrder() throws InterruptedException {
+		List<String> lines = new CopyOnWriteArrayList<>();
+		ServerLog.setLogger(lines::add);
+		ServerLog.setLogLevels(ServerLog.ALL);
+		long dropped = ServerLog.getDroppedRecords();
+
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			int id = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					ServerLog.info("{} {}", id, i);
+				}
+			});
+			threads[t].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(ServerLog.flush(5, TimeUnit.SECONDS));
+		assertEquals(4000, lines.size() + ServerLog.getDroppedRecords() - dropped);
+
+		// records from one thread keep their order
+		int[] last = { -1, -1, -1, -1 };
+		for (String line : lines) {
+			String[] parts = line.split(" ");
+			int id = Integer.parseInt(parts[0]);
+			int i = Integer.parseInt(parts[1]);
+			assertTrue(i > last[id]);
+			last[id] = i;
+		}
+	}
+
+	@Test
+	public void testMappedFile() throws Exception {
+		Path file = Files.createTempFile("nioserver", ".log");
+
+		try {
+			MappedFileLogger logger = new MappedFileLogger(file);
+			ServerLog.setLogger(logger);
+			ServerLog.setLogLevels(ServerLog.CONNECTIONS);
+
+			for (int i = 0; i < 100; i++) {
+				ServerLog.connection("Connection {}", i);
+			}
+
+			assertTrue(ServerLog.flush(5, TimeUnit.SECONDS));
+			ServerLog.setLogger(previous);
+			logger.close();
+
+			List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+			assertEquals(100, lines.size());
+			assertEquals("Connection 0", lines.get(0));
+			assertEquals("Connection 99", lines.get(99));
+			assertEquals(logger.size(), Files.size(file));
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
@@ -21,6 +21,7 @@ import java.util.Date;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -46,6 +47,13 @@ public class ServerStressTest {
 	private static Lock logLock = new ReentrantLock();
 	private static ConcurrentLinkedQueue<Runnable> loggerTasks;
 	private boolean loggerIsRunning;
+	private int connections = 20;
+	private int messagesPerConnection = 100;
+	private int sslWorkerThreads = Runtime.getRuntime().availableProcessors();
+	private Server.Engine engine = Server.Engine.REACTOR;
+	private long flushDelay = 0;
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong echoed = new AtomicLong();
 	
 	@Test
 	public void run() {
@@ -53,10 +61,25 @@ public class ServerStressTest {
 	}
 	
 	public void runTest(boolean useSSL) {
+		runTest(useSSL, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Run the stress test.
+	 * @param useSSL use encrypted connections
+	 * @param reactorThreads number of selector threads in the server
+	 * @return messages per second that were received by the clients
+	 */
+	public double runTest(boolean useSSL, int reactorThreads) {
 		loggerTasks = new ConcurrentLinkedQueue<Runnable>();
+		received.set(0);
+		echoed.set(0);
 
 		server = new Server();
 		server.setOnlyLocalHost(true);
+		server.setReactorThreads(reactorThreads);
+		server.setSSLWorkerThreads(sslWorkerThreads);
+		server.setEngine(engine);
+		server.setFlushDelay(flushDelay);
 		ServerLog.setLogger(new ServerLogger() {
 			
 			@Override
@@ -68,11 +91,7 @@ public class ServerStressTest {
 		
 		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
 		InputStream keyStore = classLoader.getResourceAsStream("testkeys");
-		
-		if (keyStore == null) {
-			System.err.println("No keystore has been added to the project.");
-			return;
-		}
+		assertNotNull("No keystore has been added to the project.", keyStore);
 		
 		server.setKeyStore(keyStore, "testkeys");
 		
@@ -81,7 +100,7 @@ public class ServerStressTest {
 		} catch (IOException e) {
 			System.err.println(e.getMessage());
 			System.err.println("Can't start server.");
-			return;
+			return 0;
 		}
 
 		//server.setLogLevels(ServerLogger.ERRORS);
@@ -115,9 +134,10 @@ public class ServerStressTest {
 		}, 60 * 1000);
 
 		ArrayList<Thread> testThreads = new ArrayList<Thread>();
+		long startTime = System.nanoTime();
 
-		for (int i = 0; i < 20; i++) {
-			TestConnection sender = new TestConnection(i, 100);
+		for (int i = 0; i < connections; i++) {
+			TestConnection sender = new TestConnection(i, messagesPerConnection);
 			Thread senderThread = new Thread(sender);
 			senderThread.start();
 			testThreads.add(senderThread);
@@ -135,6 +155,9 @@ public class ServerStressTest {
 			}
 		}
 
+		long elapsed = System.nanoTime() - startTime;
+		watchDog.cancel();
+
 		if (failed) {
 			fail();
 		}
@@ -153,6 +176,48 @@ public class ServerStressTest {
 				log("Join interrupted");
 			}
 		}
+		
+		double seconds = elapsed / 1e9;
+		return received.get() / seconds;
+	}
+
+	/** Check that each client got all of its messages back and that the
+	 * clients received the broadcasts, call it after runTest.
+	 */
+	public void assertDelivered() {
+		assertEquals((long) connections * messagesPerConnection, echoed.get());
+		assertTrue(received.get() >= echoed.get());
+	}
+
+	/** Messages received by all clients in the last run. */
+	public long getReceivedMessages() {
+		return received.get();
+	}
+
+	public void setConnections(int connections) {
+		this.connections = connections;
+	}
+
+	public void setMessagesPerConnection(int messages) {
+		messagesPerConnection = messages;
+	}
+
+	public void setSSLWorkerThreads(int threads) {
+		sslWorkerThreads = threads;
+	}
+
+	public void setEngine(Server.Engine engine) {
+		this.engine = engine;
+	}
+
+	/** @param microseconds flush delay in the reactors */
+	public void setFlushDelay(long microseconds) {
+		flushDelay = microseconds;
+	}
+
+	/** The server of the last run. */
+	public Server getServer() {
+		return server;
 	}
 
 	public final SSLSocketFactory getSocketFactory() throws SSLException {
@@ -205,6 +270,8 @@ public class ServerStressTest {
 					if (line == null || line.equals("CLOSED")) {
 						break;
 					}
+
+					received.incrementAndGet();
 				}
 
 				clientSocket.close();
@@ -280,14 +347,18 @@ public class ServerStressTest {
 					senderFailure("Invalid message: \"" + line + "\"");
 					return;
 				}
+
+				received.incrementAndGet();
 				
 				if (response.getSender().equals(message.getSender())) {
 					if (!response.getMessagBody().equals(message.getMessagBody())) {
 						senderFailure("Wrong message.");
 						out.println("CLOSE");
 						clientSocket.close();
+						return;
 					}
 
+					echoed.incrementAndGet();
 					break;
 				}
 			}
@@ -0,0 +1,102 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Reconnect with the same client context, the second handshake should 
+ * resume the session of the first one.
+ */
+public class SessionResumptionTest {
+
+	@Test
+	public void test() throws Exception {
+		testResumption("TLSv1.3");
+	}
+
+	/** TLS 1.2 resumes from the session cache of the server. */
+	@Test
+	public void testTLS12() throws Exception {
+		testResumption("TLSv1.2");
+	}
+
+	private void testResumption(String protocol) throws Exception {
+		Server server = new Server();
+		server.setOnlyLocalHost(true);
+		server.setUsingSSL(true);
+		server.setLogLevels(ServerLog.ERRORS);
+
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		InputStream keyStore = classLoader.getResourceAsStream("testkeys");
+		assertNotNull("No keystore has been added to the project.", keyStore);
+		server.setKeyStore(keyStore, "testkeys");
+		
+		server.setup();
+		server.start();
+
+		try {
+			SSLSocketFactory factory = new ServerStressTest().getSocketFactory();
+
+			for (int i = 0; i < 3; i++) {
+				sendMessage(factory, protocol, server.getPort(), "TEST" + i);
+			}
+
+			HandshakeStatistics statistics = server.getHandshakeStatistics();
+			System.out.println(statistics);
+			
+			assertEquals(3, statistics.getHandshakes());
+			assertEquals(1, statistics.getFullHandshakes());
+			assertEquals(2, statistics.getResumedHandshakes());
+		} finally {
+			server.stop();
+		}
+	}
+
+	/** Send one message, wait for it to be relayed back and close the 
+	 * connection. The client receives its session ticket while it reads.
+	 */
+	private void sendMessage(SSLSocketFactory factory, String protocol, int port, String sender) throws Exception {
+		try (Socket socket = factory.createSocket("localhost", port)) {
+			((SSLSocket) socket).setEnabledProtocols(new String[] { protocol });
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(
+					socket.getOutputStream(), StandardCharsets.UTF_8), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), StandardCharsets.UTF_8));
+
+			Message message = new Message(sender, new Date(), "resume");
+			out.println(message.toString().trim());
+			
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (Message.parseMessage(line).getSender().equals(sender)) {
+					break;
+				}
+			}
+			
+			out.println("CLOSE");
+
+			while ((line = in.readLine()) != null) {
+				if (line.equals("CLOSED")) {
+					break;
+				}
+			}
+		} catch (IOException exception) {
+			fail(exception.getMessage());
+		}
+	}
+
+}
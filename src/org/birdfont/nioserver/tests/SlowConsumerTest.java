@@ -0,0 +1,129 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Broadcast to a client that never reads and check that each slow consumer
+ * policy takes action.
+ */
+public class SlowConsumerTest {
+	private static final long TIMEOUT = 20 * 1000;
+
+	@Test
+	public void test() throws Exception {
+		for (SlowConsumerPolicy policy : SlowConsumerPolicy.values()) {
+			SlowConsumerStatistics statistics = run(policy);
+			System.out.println(policy + ": " + statistics);
+
+			switch (policy) {
+			case PAUSE:
+				assertTrue(statistics.getPauses() > 0);
+				assertTrue(statistics.getDroppedPaused() > 0);
+				assertEquals(0, statistics.getDroppedNewest());
+				assertEquals(0, statistics.getDisconnects());
+				break;
+			case DROP_OLDEST:
+				assertTrue(statistics.getDroppedOldest() > 0);
+				break;
+			case DROP_NEWEST:
+				assertTrue(statistics.getDroppedNewest() > 0);
+				break;
+			case DISCONNECT:
+				assertTrue(statistics.getDisconnects() > 0);
+				break;
+			}
+		}
+	}
+
+	private SlowConsumerStatistics run(SlowConsumerPolicy policy) throws Exception {
+		Server server = new Server();
+		server.setOnlyLocalHost(true);
+		server.setUsingSSL(false);
+		server.setReactorThreads(1);
+		server.setOutboundWatermarks(1024, 4096);
+		server.setSlowConsumerPolicy(policy);
+		server.setSlowConsumerGracePeriod(50);
+		server.setLogLevels(ServerLog.ERRORS);
+		server.setup();
+		server.start();
+
+		SlowConsumerStatistics statistics = server.getSlowConsumerStatistics();
+		Socket slow = new Socket();
+		Socket fast = new Socket("localhost", server.getPort());
+
+		try {
+			slow.setReceiveBufferSize(1024);
+			slow.connect(new InetSocketAddress("localhost", server.getPort()));
+
+			Thread drain = new Thread(() -> {
+				byte[] buffer = new byte[8192];
+
+				try {
+					InputStream in = fast.getInputStream();
+					while (in.read(buffer) != -1) {
+						// discard the broadcast
+					}
+				} catch (IOException exception) {
+					// closed at the end of the test
+				}
+			});
+			drain.start();
+
+			StringBuilder body = new StringBuilder();
+			for (int i = 0; i < 500; i++) {
+				body.append('x');
+			}
+
+			String line = new Message("FAST", new Date(), body.toString()).toString().trim() + "\n";
+			byte[] message = line.getBytes(StandardCharsets.UTF_8);
+			OutputStream out = fast.getOutputStream();
+			long start = System.currentTimeMillis();
+
+			while (!hasActed(policy, statistics)) {
+				assertTrue("No action for " + policy, System.currentTimeMillis() - start < TIMEOUT);
+				out.write(message);
+			}
+
+			if (policy == SlowConsumerPolicy.PAUSE) {
+				// more than the queue can hold, the paused connection drops them
+				for (int i = 0; i < 200; i++) {
+					out.write(message);
+				}
+
+				while (statistics.getDroppedPaused() < 100) {
+					assertTrue("No drops while paused", System.currentTimeMillis() - start < TIMEOUT);
+					Thread.sleep(10);
+				}
+			}
+		} finally {
+			slow.close();
+			fast.close();
+			server.stop();
+		}
+
+		return statistics;
+	}
+
+	private static boolean hasActed(SlowConsumerPolicy policy, SlowConsumerStatistics statistics) {
+		switch (policy) {
+		case PAUSE:
+			return statistics.getPauses() > 0;
+		case DROP_OLDEST:
+			return statistics.getDroppedOldest() > 0;
+		case DROP_NEWEST:
+			return statistics.getDroppedNewest() > 0;
+		default:
+			return statistics.getDisconnects() > 0;
+		}
+	}
+}
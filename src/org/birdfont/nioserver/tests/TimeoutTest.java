@@ -0,0 +1,86 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Tests for the timer wheel and the connection timeouts. */
+public class TimeoutTest {
+
+	@Test
+	public void testWheel() {
+		TimerWheel wheel = new TimerWheel(10, 8);
+		AtomicInteger expired = new AtomicInteger();
+		long now = System.currentTimeMillis();
+
+		TimerWheel.Timeout soon = new TimerWheel.Timeout(expired::incrementAndGet);
+		TimerWheel.Timeout late = new TimerWheel.Timeout(expired::incrementAndGet);
+		TimerWheel.Timeout cancelled = new TimerWheel.Timeout(() -> fail("Cancelled timeout expired."));
+
+		wheel.schedule(soon, 20);
+		wheel.schedule(late, 200); // more than two turns of the wheel
+		wheel.schedule(cancelled, 20);
+		assertEquals(3, wheel.size());
+
+		cancelled.cancel();
+		assertFalse(cancelled.isScheduled());
+		assertEquals(2, wheel.size());
+
+		wheel.advance(now + 30);
+		assertEquals(1, expired.get());
+		assertFalse(soon.isScheduled());
+		assertTrue(late.isScheduled());
+
+		wheel.advance(now + 150);
+		assertEquals(1, expired.get());
+
+		wheel.advance(now + 230);
+		assertEquals(2, expired.get());
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testPartialLine() throws Exception {
+		Server server = new Server();
+		server.setOnlyLocalHost(true);
+		server.setUsingSSL(false);
+		server.setReactorThreads(1);
+		server.setPartialLineTimeout(300);
+		server.setIdleTimeout(60 * 1000);
+		server.setLogLevels(ServerLog.ERRORS);
+		server.setup();
+		server.start();
+
+		try (Socket idle = new Socket("localhost", server.getPort());
+				Socket loris = new Socket("localhost", server.getPort())) {
+			OutputStream output = loris.getOutputStream();
+			output.write("Hello wor".getBytes(StandardCharsets.UTF_8));
+			output.flush();
+
+			InputStream input = loris.getInputStream();
+			loris.setSoTimeout(5000);
+			assertEquals(-1, input.read());
+			assertEquals(1, server.getStatistics().getTimeouts());
+
+			// a connection that doesn't send anything is left alone
+			idle.setSoTimeout(200);
+
+			try {
+				idle.getInputStream().read();
+				fail("Idle connection was closed.");
+			} catch (SocketTimeoutException exception) {
+				// expected
+			}
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Messages to a topic are only sent to the clients that have joined it. */
+public class TopicTest {
+
+	@Test
+	public void test() throws Exception {
+		Server server = new Server();
+		server.setOnlyLocalHost(true);
+		server.setUsingSSL(false);
+		server.setLogLevels(ServerLog.ERRORS);
+		server.setup();
+		server.start();
+
+		Client alice = new Client(server, "ALICE");
+		Client bob = new Client(server, "BOB");
+		Client carol = new Client(server, "CAROL");
+
+		try {
+			alice.command("JOIN room");
+			assertEquals("JOINED room", alice.readLine());
+			bob.command("JOIN room");
+			assertEquals("JOINED room", bob.readLine());
+			carol.command("JOIN other");
+			assertEquals("JOINED other", carol.readLine());
+
+			alice.send("#room hello");
+			assertEquals("#room hello", alice.readBody());
+			assertEquals("#room hello", bob.readBody());
+
+			// messages without a topic are for everyone, carol didn't get
+			// the message to the room
+			carol.send("everyone");
+			assertEquals("everyone", alice.readBody());
+			assertEquals("everyone", bob.readBody());
+			assertEquals("everyone", carol.readBody());
+
+			bob.command("LEAVE room");
+			assertEquals("LEFT room", bob.readLine());
+			alice.send("#room again");
+			assertEquals("#room again", alice.readBody());
+
+			carol.send("last");
+			assertEquals("last", alice.readBody());
+			assertEquals("last", bob.readBody());
+			assertEquals("last", carol.readBody());
+
+			// topics without subscribers are removed
+			alice.command("LEAVE room");
+			assertEquals("LEFT room", alice.readLine());
+			alice.send("#room nobody");
+			alice.send("done");
+			assertEquals("done", alice.readBody());
+		} finally {
+			alice.close();
+			bob.close();
+			carol.close();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testLimits() throws Exception {
+		Server server = new Server();
+		server.setOnlyLocalHost(true);
+		server.setUsingSSL(false);
+		server.setLogLevels(ServerLog.ERRORS);
+		server.setTopicLimits(2, 3);
+		server.setup();
+		server.start();
+
+		Client alice = new Client(server, "ALICE");
+		Client bob = new Client(server, "BOB");
+
+		try {
+			// invalid names are not echoed
+			alice.command("JOIN bad/name");
+			assertEquals("REJECTED", alice.readLine());
+			StringBuilder longName = new StringBuilder();
+
+			for (int i = 0; i < 65; i++) {
+				longName.append('x');
+			}
+
+			alice.command("JOIN " + longName);
+			assertEquals("REJECTED", alice.readLine());
+
+			alice.command("JOIN one");
+			assertEquals("JOINED one", alice.readLine());
+			alice.command("JOIN two");
+			assertEquals("JOINED two", alice.readLine());
+			alice.command("JOIN one");
+			assertEquals("JOINED one", alice.readLine());
+			alice.command("JOIN three");
+			assertEquals("REJECTED three", alice.readLine());
+
+			bob.command("JOIN three");
+			assertEquals("JOINED three", bob.readLine());
+			// the server has three topics, joining one of them still works
+			bob.command("JOIN four");
+			assertEquals("REJECTED four", bob.readLine());
+			bob.command("JOIN one");
+			assertEquals("JOINED one", bob.readLine());
+			assertEquals(3, server.getTopicCount());
+		} finally {
+			alice.close();
+			bob.close();
+			server.stop();
+		}
+	}
+
+	private static class Client {
+		private final String name;
+		private final Socket socket;
+		private final PrintWriter out;
+		private final BufferedReader in;
+
+		Client(Server server, String name) throws IOException {
+			this.name = name;
+			socket = new Socket("localhost", server.getPort());
+			socket.setSoTimeout(10 * 1000);
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		}
+
+		void command(String command) {
+			out.println(command);
+		}
+
+		void send(String body) {
+			out.println(new Message(name, new Date(), body).toString().trim());
+		}
+
+		String readLine() throws IOException {
+			return in.readLine();
+		}
+
+		String readBody() throws Exception {
+			return Message.parseMessage(readLine()).getMessagBody();
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+
+}
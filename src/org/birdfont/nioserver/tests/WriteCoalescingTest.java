@@ -0,0 +1,36 @@
+package org.birdfont.nioserver.tests;
+
+import static org.junit.Assert.*;
+
+import org.birdfont.nioserver.*;
+import org.junit.Test;
+
+/** Compare the number of socket writes with and without a flush delay, 
+ * using the load of the stress test.
+ */
+public class WriteCoalescingTest {
+
+	@Test
+	public void test() {
+		long[] delays = { 0, 500 };
+		
+		for (long delay : delays) {
+			ServerStressTest test = new ServerStressTest();
+			test.setFlushDelay(delay);
+			
+			int connections = 20;
+			int messages = 100;
+			test.setConnections(connections);
+			test.setMessagesPerConnection(messages);
+			
+			double rate = test.runTest(false, Runtime.getRuntime().availableProcessors());
+			long writes = test.getServer().getWriteCount();
+			double delivered = connections * connections * messages;
+			
+			assertTrue(writes > 0);
+			System.out.println(String.format("Flush delay %d us: %.0f messages/s, %.2f messages per write", 
+					delay, rate, delivered / writes));
+		}
+	}
+
+}